@@ -0,0 +1,91 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the dithering modes on a poster of 10 × 7 maps, with the bands spread over
+ * every core, and on the calling thread only, to see how they scale.
+ *
+ * <p>Run with {@code mvn -P benchmarks package exec:exec -Dbenchmark=DitherBenchmark}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DitherBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 896;
+
+    @Param({"NONE", "ORDERED", "FLOYD_STEINBERG"})
+    public DitherMode mode;
+
+    private int[] pixels;
+    private ColorQuantizer quantizer;
+
+    @Setup
+    public void setUp() {
+        pixels = BenchmarkImages.photo(WIDTH, HEIGHT, new Random(42)).getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        quantizer = new ColorQuantizer(ColorQuantizer.getServerPalette());
+    }
+
+    @Benchmark
+    public byte[] allCores() {
+        return mode.apply(pixels, WIDTH, HEIGHT, quantizer);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djava.util.concurrent.ForkJoinPool.common.parallelism=0")
+    public byte[] oneCore() {
+        return mode.apply(pixels, WIDTH, HEIGHT, quantizer);
+    }
+}
@@ -45,13 +45,24 @@ import fr.moribus.imageonmap.commands.maptool.GetRemainingCommand;
 import fr.moribus.imageonmap.commands.maptool.GiveCommand;
 import fr.moribus.imageonmap.commands.maptool.ListCommand;
 import fr.moribus.imageonmap.commands.maptool.NewCommand;
+import fr.moribus.imageonmap.commands.maptool.RefreshCommand;
 import fr.moribus.imageonmap.commands.maptool.RenameCommand;
 import fr.moribus.imageonmap.commands.maptool.UpdateCommand;
+import fr.moribus.imageonmap.commands.maptool.UploadCommand;
 import fr.moribus.imageonmap.gui.Gui;
 import fr.moribus.imageonmap.i18n.I18n;
+import fr.moribus.imageonmap.image.ImageLibrary;
+import fr.moribus.imageonmap.image.ImageUtils;
 import fr.moribus.imageonmap.image.MapInitEvent;
+import fr.moribus.imageonmap.image.MapRefreshScheduler;
+import fr.moribus.imageonmap.image.MapStreamer;
+import fr.moribus.imageonmap.image.MapUpdateScheduler;
+import fr.moribus.imageonmap.image.RenderWorkerClient;
+import fr.moribus.imageonmap.image.UploadServer;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.ui.FrameRegistry;
 import fr.moribus.imageonmap.ui.MapItemManager;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -67,6 +78,8 @@ public final class ImageOnMap extends JavaPlugin {
 
     private final Path mapsDirectory;
     private final Path imagesDirectory;
+    private final Path uploadsDirectory;
+    private final Path libraryDirectory;
 
     public ImageOnMap() {
         PLUGIN = this;
@@ -74,6 +87,8 @@ public final class ImageOnMap extends JavaPlugin {
         var folder = getDataFolder().toPath();
         mapsDirectory = folder.resolve("maps");
         imagesDirectory = folder.resolve("images");
+        uploadsDirectory = folder.resolve("uploads");
+        libraryDirectory = folder.resolve("library");
     }
 
     public static ImageOnMap getPlugin() {
@@ -88,10 +103,22 @@ public final class ImageOnMap extends JavaPlugin {
         return mapsDirectory;
     }
 
+    public Path getUploadsDirectory() {
+        return uploadsDirectory;
+    }
+
+    public Path getLibraryDirectory() {
+        return libraryDirectory;
+    }
+
     public Path getImageFile(int mapID) {
         return imagesDirectory.resolve("map" + mapID + ".png");
     }
 
+    public Path getAnimationFile(int mapID) {
+        return imagesDirectory.resolve("map" + mapID + ".frames");
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void onEnable() {
@@ -125,10 +152,18 @@ public final class ImageOnMap extends JavaPlugin {
         //Init all the things !
         I18n.setPrimaryLocale(PluginConfiguration.LANG.get());
 
+        RunTask.setTickBudget(PluginConfiguration.MAIN_THREAD_BUDGET.get());
+        ImageUtils.setFastResizing(PluginConfiguration.FAST_RESIZING.get());
+
         MapManager.init();
         MapInitEvent.init();
+        MapStreamer.init();
         MapItemManager.init();
-
+        FrameRegistry.init();
+        MapRefreshScheduler.init();
+        MapUpdateScheduler.init();
+        UploadServer.init();
+        ImageLibrary.init();
 
         Commands.register(
                 "maptool",
@@ -140,7 +175,9 @@ public final class ImageOnMap extends JavaPlugin {
                 GiveCommand.class,
                 GetRemainingCommand.class,
                 ExploreCommand.class,
-                UpdateCommand.class
+                UpdateCommand.class,
+                RefreshCommand.class,
+                UploadCommand.class
         );
 
         Commands.registerShortcut("maptool", NewCommand.class, "tomap");
@@ -150,8 +187,14 @@ public final class ImageOnMap extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        MapRefreshScheduler.exit();
+        MapUpdateScheduler.exit();
+        RenderWorkerClient.exit();
+        UploadServer.exit();
+        ImageLibrary.exit();
         MapManager.exit();
         MapItemManager.exit();
+        FrameRegistry.exit();
 
         Gui.clearOpenGuis();
     }
@@ -48,6 +48,7 @@ public enum Permissions {
     RENAME("imageonmap.rename"),
     PLACE_SPLATTER_MAP("imageonmap.placesplattermap"),
     REMOVE_SPLATTER_MAP("imageonmap.removesplattermap"),
+    SPAWN_SPLATTER_FRAMES("imageonmap.spawnsplatterframes"),
     DELETE("imageonmap.delete"),
     DELETEOTHER("imageonmap.deleteother"),
     UPDATE("imageonmap.update"),
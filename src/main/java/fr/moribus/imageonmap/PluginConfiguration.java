@@ -36,6 +36,7 @@
 
 package fr.moribus.imageonmap;
 
+import java.util.List;
 import java.util.Locale;
 import java.util.function.Supplier;
 
@@ -73,8 +74,74 @@ public final class PluginConfiguration {
 
     public static final Supplier<Boolean> SAVE_FULL_IMAGE = () -> PLUGIN.getConfig().getBoolean("save-full-image");
 
+    public static final Supplier<Boolean> DEDUPLICATE_IMAGES = () -> PLUGIN.getConfig().getBoolean("deduplicate-images", true);
+
+    public static final Supplier<Boolean> DEDUPLICATE_TILES = () -> PLUGIN.getConfig().getBoolean("deduplicate-tiles", true);
+
+    public static final Supplier<Boolean> SKIP_TRANSPARENT_TILES = () -> PLUGIN.getConfig().getBoolean("skip-transparent-tiles", false);
+
+    public static final Supplier<Boolean> FAST_RESIZING = () -> "fast".equalsIgnoreCase(PLUGIN.getConfig().getString("resize-quality", "fast"));
+
+    public static final Supplier<Integer> STREAMING_POSTER_SIZE = () -> PLUGIN.getConfig().getInt("streaming-poster-size", 64);
+
+    public static final Supplier<Integer> REFRESH_MIN_INTERVAL = () -> Math.max(PLUGIN.getConfig().getInt("refresh-min-interval", 5), 1);
+
+    public static final Supplier<Integer> REFRESH_MAX_CONCURRENT = () -> Math.max(PLUGIN.getConfig().getInt("refresh-max-concurrent", 2), 1);
+
+    public static final Supplier<Boolean> RENDER_WORKER = () -> PLUGIN.getConfig().getBoolean("render-worker", false);
+
+    public static final Supplier<Integer> RENDER_WORKER_MEMORY = () -> Math.max(PLUGIN.getConfig().getInt("render-worker-memory", 512), 64);
+
+    public static final Supplier<Boolean> UPLOAD_SERVER = () -> PLUGIN.getConfig().getBoolean("upload-server", false);
+
+    public static final Supplier<Integer> UPLOAD_PORT = () -> PLUGIN.getConfig().getInt("upload-port", 8190);
+
+    public static final Supplier<String> UPLOAD_BIND_ADDRESS = () -> PLUGIN.getConfig().getString("upload-bind-address", "");
+
+    public static final Supplier<String> UPLOAD_PUBLIC_URL = () -> PLUGIN.getConfig().getString("upload-public-url", "");
+
+    public static final Supplier<Long> UPLOAD_MAX_SIZE = () -> Math.max(PLUGIN.getConfig().getInt("upload-max-size", 10), 1) * 1024L * 1024;
+
+    public static final Supplier<Integer> UPLOAD_LINK_LIFETIME = () -> Math.max(PLUGIN.getConfig().getInt("upload-link-lifetime", 10), 1);
+
+    public static final Supplier<Integer> UPLOAD_THREADS = () -> Math.max(PLUGIN.getConfig().getInt("upload-threads", 4), 1);
+
+    public static final Supplier<Integer> UPLOAD_TIMEOUT = () -> Math.max(PLUGIN.getConfig().getInt("upload-timeout", 60), 1);
+
+    public static final Supplier<Boolean> IMAGE_LIBRARY = () -> PLUGIN.getConfig().getBoolean("image-library", true);
+
+    public static final Supplier<List<String>> LIBRARY_PRERENDER_SIZES = () -> {
+        FileConfiguration config = PLUGIN.getConfig();
+        if (config.isList("library-prerender-sizes")) {
+            return config.getStringList("library-prerender-sizes");
+        }
+        return List.of("native", "1x1", "2x2");
+    };
+
+    public static final Supplier<Long> LIBRARY_CACHE_SIZE = () -> Math.max(PLUGIN.getConfig().getInt("library-cache-size", 64), 0) * 1024L * 1024;
+
+    public static final Supplier<Long> MAIN_THREAD_BUDGET = () -> (long) (Math.max(PLUGIN.getConfig().getDouble("main-thread-budget", 5), 0) * 1_000_000);
+
+    public static final Supplier<Integer> MAP_UPDATES_PER_TICK = () -> Math.max(PLUGIN.getConfig().getInt("map-updates-per-tick", 4), 1);
+
+    public static final Supplier<Integer> MAP_STREAMING_RADIUS = () -> PLUGIN.getConfig().getInt("map-streaming-radius", 32);
+
+    public static final Supplier<Boolean> SPAWN_ITEM_FRAMES = () -> PLUGIN.getConfig().getBoolean("spawn-item-frames", true);
+
+    public static final Supplier<Boolean> DROP_SPLATTER_MAPS = () -> PLUGIN.getConfig().getBoolean("drop-splatter-maps", false);
+
+    public static final Supplier<Integer> OVERFLOW_MAX_MAPS = () -> Math.max(PLUGIN.getConfig().getInt("overflow-max-maps", 512), 0);
+
+    public static final Supplier<Integer> OVERFLOW_LIFETIME = () -> Math.max(PLUGIN.getConfig().getInt("overflow-lifetime", 7), 0);
+
+    public static final Supplier<Boolean> ANIMATIONS = () -> PLUGIN.getConfig().getBoolean("animations", true);
+
+    public static final Supplier<Integer> ANIMATION_MAX_FRAMES = () -> Math.max(PLUGIN.getConfig().getInt("animation-max-frames", 200), 2);
+
     public static final Supplier<Integer> LIMIT_SIZE_X = () -> PLUGIN.getConfig().getInt("limit-map-size-x");
 
     public static final Supplier<Integer> LIMIT_SIZE_Y = () -> PLUGIN.getConfig().getInt("limit-map-size-y");
 
+    public static final Supplier<Long> DOWNLOAD_MAX_SIZE = () -> Math.max(PLUGIN.getConfig().getInt("download-max-size", 20), 1) * 1024L * 1024;
+
 }
@@ -36,6 +36,9 @@
 
 package fr.moribus.imageonmap.commands;
 
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.DitherMode;
+import fr.moribus.imageonmap.image.ImageUtils;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
 
@@ -48,6 +51,29 @@ import org.bukkit.entity.Player;
 
 public abstract class IoMCommand extends Command {
 
+    protected ImageUtils.ScalingType resizeMode(String mode) throws CommandException {
+        return switch (mode) {
+            case "resize" -> ImageUtils.ScalingType.CONTAINED;
+            case "stretch", "stretched", "resize-stretched" -> ImageUtils.ScalingType.STRETCHED;
+            case "cover", "covered", "resize-covered" -> ImageUtils.ScalingType.COVERED;
+            default -> {
+                throwInvalidArgument(I.t("Invalid Stretching mode."));
+                yield  ImageUtils.ScalingType.NONE;
+            }
+        };
+    }
+
+    /**
+     * @return The dithering asked with the --dither or --dither-ordered flags.
+     */
+    protected DitherMode ditherMode() {
+        if (flags.contains("dither")) {
+            return DitherMode.FLOYD_STEINBERG;
+        } else if (flags.contains("dither-ordered")) {
+            return DitherMode.ORDERED;
+        }
+        return DitherMode.NONE;
+    }
 
     protected void retrieveUUID(String arg, Consumer<UUID> consumer) {
         consumer.accept(Bukkit.getOfflinePlayer(arg).getUniqueId());
@@ -58,12 +58,16 @@ public class GetRemainingCommand extends IoMCommand {
         }
 
         int givenMaps = MapItemManager.giveCache(player);
+        int remainingMaps = MapItemManager.getCacheSize(player);
 
-        if (givenMaps == 0) {
+        if (givenMaps == 0 && remainingMaps == 0) {
+            // The remaining maps were all deleted meanwhile.
+            info(I.t("You have no remaining map."));
+        } else if (givenMaps == 0) {
             error(I.t("Your inventory is full! Make some space before requesting the remaining maps."));
         } else {
             info(I.tn("There is {0} map remaining.", "There are {0} maps remaining.",
-                    MapItemManager.getCacheSize(player)));
+                    remainingMaps));
         }
     }
 
@@ -40,14 +40,18 @@ import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.Permissions;
 import fr.moribus.imageonmap.commands.IoMCommand;
 import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageLibrary;
 import fr.moribus.imageonmap.image.ImageRendererExecutor;
 import fr.moribus.imageonmap.image.ImageUtils;
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.moribus.imageonmap.commands.CommandException;
 import fr.moribus.imageonmap.commands.CommandInfo;
+import fr.moribus.imageonmap.commands.WithFlags;
 import fr.zcraft.quartzlib.tools.text.ActionBar;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
@@ -55,26 +59,17 @@ import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
-@CommandInfo(name = "new", usageParameters = "<URL> [resize]")
+@CommandInfo(name = "new", usageParameters = "<URL|lib:name> [resize] [--dither|--dither-ordered]")
+@WithFlags({"dither", "dither-ordered"})
 public class NewCommand extends IoMCommand {
-
-    private ImageUtils.ScalingType resizeMode() throws CommandException {
-        return switch (args[1]) {
-            case "resize" -> ImageUtils.ScalingType.CONTAINED;
-            case "stretch", "stretched", "resize-stretched" -> ImageUtils.ScalingType.STRETCHED;
-            case "cover", "covered", "resize-covered" -> ImageUtils.ScalingType.COVERED;
-            default -> {
-                throwInvalidArgument(I.t("Invalid Stretching mode."));
-                yield  ImageUtils.ScalingType.NONE;
-            }
-        };
-    }
+    private static final String LIBRARY_PREFIX = "lib:";
 
     @Override
     protected void run() throws CommandException {
         final Player player = playerSender();
         ImageUtils.ScalingType scaling = ImageUtils.ScalingType.NONE;
-        URL url;
+        URL url = null;
+        String libraryImage = null;
         int width = 0;
         int height = 0;
 
@@ -82,11 +77,18 @@ public class NewCommand extends IoMCommand {
             throwInvalidArgument(I.t("You must give an URL to take the image from."));
         }
 
-        try {
-            url = new URL(args[0]);
-        } catch (MalformedURLException ex) {
-            throwInvalidArgument(I.t("Invalid URL."));
-            return;
+        if (args[0].startsWith(LIBRARY_PREFIX)) {
+            if (!ImageLibrary.isEnabled()) {
+                error(I.t("The image library is disabled on this server."));
+            }
+            libraryImage = args[0].substring(LIBRARY_PREFIX.length());
+        } else {
+            try {
+                url = new URL(args[0]);
+            } catch (MalformedURLException ex) {
+                throwInvalidArgument(I.t("Invalid URL."));
+                return;
+            }
         }
 
         if (args.length >= 2) {
@@ -94,11 +96,14 @@ public class NewCommand extends IoMCommand {
                 width = Integer.parseInt(args[2]);
                 height = Integer.parseInt(args[3]);
             }
-            scaling = resizeMode();
+            scaling = resizeMode(args[1]);
         }
         try {
             ActionBar.sendPermanentMessage(player, ChatColor.DARK_GREEN + I.t("Rendering..."));
-            ImageRendererExecutor.render(url, scaling, player.getUniqueId(), width, height)
+            (libraryImage != null
+                    ? ImageRendererExecutor.renderLibrary(libraryImage, scaling, ditherMode(), player.getUniqueId(),
+                            width, height)
+                    : ImageRendererExecutor.render(url, scaling, ditherMode(), player.getUniqueId(), width, height))
                     .exceptionallyAsync((exception) -> {
                         player.sendMessage(I.t("{ce}Map rendering failed: {0}", exception.getMessage()));
                         ImageOnMap.getPlugin().getLogger().warning("Rendering from " + player.getName() + " failed: "
@@ -124,6 +129,17 @@ public class NewCommand extends IoMCommand {
         }
     }
 
+    @Override
+    protected List<String> complete() throws CommandException {
+        if (args.length == 1 && args[0].startsWith(LIBRARY_PREFIX) && ImageLibrary.isEnabled()) {
+            return ImageLibrary.getImageNames().stream()
+                    .map(name -> LIBRARY_PREFIX + name)
+                    .filter(name -> name.startsWith(args[0]))
+                    .collect(Collectors.toList());
+        }
+        return null;
+    }
+
     @Override
     public boolean canExecute(CommandSender sender) {
         return Permissions.NEW.grantedTo(sender);
@@ -0,0 +1,138 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.commands.CommandException;
+import fr.moribus.imageonmap.commands.CommandInfo;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.image.MapRefreshScheduler;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.MapSource;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+@CommandInfo(name = "refresh", usageParameters = "<map name> [minutes|off]")
+public class RefreshCommand extends IoMCommand {
+
+    @Override
+    protected void run() throws CommandException {
+        ArrayList<String> argList = getArgs();
+
+        if (argList.isEmpty() || argList.size() > 2) {
+            warning(I.t("Not enough or too many arguments! Usage: /maptool refresh <map name> [minutes|off]"));
+            return;
+        }
+
+        final Player player = playerSender();
+        final ImageMap map = MapManager.getMap(player.getUniqueId(), argList.get(0));
+        if (map == null) {
+            error(I.t("This map does not exist."));
+            return;
+        }
+
+        final MapSource source = map.getSource();
+        if (source == null) {
+            error(I.t("This map was not rendered from an URL, and cannot be refreshed."));
+            return;
+        }
+
+        if (argList.size() == 1) {
+            info(I.t("Refreshing..."));
+            ImageRendererExecutor.refresh(map).whenCompleteAsync((result, throwable) -> {
+                if (throwable != null) {
+                    warning(player, I.t("Map rendering failed: {0}", throwable.getMessage()));
+                } else if (result == null) {
+                    info(player, I.t("The image did not change."));
+                } else {
+                    success(player, I.tn("The map was refreshed, {0} part changed.",
+                            "The map was refreshed, {0} parts changed.", result.updatedParts()));
+                }
+            }, ImageRendererExecutor.getMainThread());
+            return;
+        }
+
+        final int interval;
+        if (argList.get(1).equalsIgnoreCase("off")) {
+            interval = 0;
+        } else {
+            try {
+                interval = Integer.parseInt(argList.get(1));
+            } catch (NumberFormatException ex) {
+                throwInvalidArgument(I.t("The refresh interval must be a number of minutes, or off."));
+                return;
+            }
+
+            if (interval < PluginConfiguration.REFRESH_MIN_INTERVAL.get()) {
+                throwInvalidArgument(I.tn("The refresh interval must be at least {0} minute.",
+                        "The refresh interval must be at least {0} minutes.",
+                        PluginConfiguration.REFRESH_MIN_INTERVAL.get()));
+                return;
+            }
+        }
+
+        source.setRefreshInterval(interval);
+        MapRefreshScheduler.schedule(map);
+
+        if (interval == 0) {
+            success(sender, I.t("This map will not be refreshed anymore."));
+        } else {
+            success(sender, I.tn("This map will be refreshed every minute.",
+                    "This map will be refreshed every {0} minutes.", interval));
+        }
+    }
+
+    @Override
+    protected List<String> complete() throws CommandException {
+        if (args.length == 1) {
+            return getMatchingMapNames(playerSender(), args[0]);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return Permissions.UPDATE.grantedTo(sender);
+    }
+}
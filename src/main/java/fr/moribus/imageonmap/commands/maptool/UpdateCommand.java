@@ -193,13 +193,18 @@ public class UpdateCommand extends IoMCommand {
                                 return null;
                             })
                             .thenAccept(result -> {
-                                if (playerSender != null) {
+                                if (playerSender != null && result != null) {
                                     ActionBar.removeMessage(playerSender);
                                     playerSender.sendActionBar(Component.text()
                                             .color(NamedTextColor.DARK_GREEN)
                                             .append(Component.text(I.t("The map was updated using the new image!")))
                                             .build()
                                     );
+                                    if (result.skippedParts() > 0) {
+                                        info(playerSender, I.tn("{0} part did not change and was skipped.",
+                                                "{0} parts did not change and were skipped.",
+                                                result.skippedParts()));
+                                    }
                                 }
                             });
                 } finally {
@@ -0,0 +1,121 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.commands.CommandException;
+import fr.moribus.imageonmap.commands.CommandInfo;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.commands.WithFlags;
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageUtils;
+import fr.moribus.imageonmap.image.UploadServer;
+import fr.moribus.imageonmap.map.PosterMap;
+import java.util.concurrent.CompletionException;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+@CommandInfo(name = "upload", usageParameters = "[resize] [width height] [--dither|--dither-ordered]")
+@WithFlags({"dither", "dither-ordered"})
+public class UploadCommand extends IoMCommand {
+
+    @Override
+    protected void run() throws CommandException {
+        final Player player = playerSender();
+        ImageUtils.ScalingType scaling = ImageUtils.ScalingType.NONE;
+        int width = 0;
+        int height = 0;
+
+        if (!UploadServer.isEnabled()) {
+            error(I.t("Uploading images is disabled on this server."));
+        }
+
+        if (args.length >= 1) {
+            scaling = resizeMode(args[0]);
+        }
+        if (args.length >= 3) {
+            try {
+                width = Integer.parseInt(args[1]);
+                height = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                throwInvalidArgument(I.t("The width and height must be numbers."));
+            }
+        }
+
+        final String link = UploadServer.createLink(player.getUniqueId(), scaling, ditherMode(), width, height,
+                (result, throwable) -> {
+                    if (!player.isOnline()) {
+                        return;
+                    }
+
+                    if (throwable != null) {
+                        final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                                ? throwable.getCause() : throwable;
+                        warning(player, I.t("Map rendering failed: {0}", cause.getMessage()));
+                        ImageOnMap.getPlugin().getLogger().warning("Rendering uploaded image from " + player.getName()
+                                + " failed: " + cause.getClass().getCanonicalName() + ": " + cause.getMessage());
+                        return;
+                    }
+
+                    success(player, I.t("Rendering finished!"));
+
+                    if (result.give(player)
+                            && (result instanceof PosterMap && !((PosterMap) result).hasColumnData())) {
+                        info(player, I.t("The rendered map was too big to fit in your inventory."));
+                        info(player, I.t("Use '/maptool getremaining' to get the remaining maps."));
+                    }
+                });
+
+        player.sendMessage(Component.text()
+                .append(Component.text(I.t("Click here to upload your image: "), NamedTextColor.GRAY))
+                .append(Component.text(link, NamedTextColor.AQUA).clickEvent(ClickEvent.openUrl(link)))
+                .build());
+        info(I.tn("This link can be used once, within {0} minute.", "This link can be used once, within {0} minutes.",
+                PluginConfiguration.UPLOAD_LINK_LIFETIME.get()));
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return Permissions.NEW.grantedTo(sender);
+    }
+}
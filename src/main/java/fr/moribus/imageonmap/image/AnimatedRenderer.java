@@ -0,0 +1,140 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.map.MapOwnership;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapView;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Displays an animated map.
+ *
+ * <p>The frames are drawn when the map is rendered; {@link MapUpdateScheduler} sends the map
+ * again when a new frame is due, and only while players are seeing it. Everything here
+ * happens on the main thread, except {@link #setAnimation(TileAnimation)}.</p>
+ */
+public final class AnimatedRenderer extends Renderer {
+    private volatile TileAnimation animation = null;
+
+    private TileAnimation drawnAnimation = null;
+    private int drawnFrame = -1;
+
+    private AnimatedRenderer(MapView map) {
+        super(map);
+    }
+
+    @SuppressWarnings("deprecation")
+    public static void installRenderer(TileAnimation animation, int mapID) {
+        MapView map = Bukkit.getMap(mapID);
+        if (map == null) {
+            ImageOnMap.getPlugin().getLogger().warning("Could not install renderer for map " + mapID + ": the Minecraft map does not exist");
+        } else {
+            installRenderer(map).setAnimation(animation);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public static AnimatedRenderer installRenderer(MapView map) {
+        AnimatedRenderer renderer = new AnimatedRenderer(map);
+        removeRenderers(map);
+        map.addRenderer(renderer);
+        MapOwnership.setRendered(map.getId(), true);
+        MapUpdateScheduler.registerAnimation(renderer);
+        return renderer;
+    }
+
+    /**
+     * @param animation The frames to display.
+     */
+    public void setAnimation(TileAnimation animation) {
+        this.animation = animation;
+        MapUpdateScheduler.requestUpdate(getMap());
+    }
+
+    @Override
+    boolean isLoaded() {
+        return animation != null;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void render(@NotNull MapView v, final @NotNull MapCanvas canvas, @NotNull Player p) {
+        MapUpdateScheduler.addViewer(v, p);
+
+        final TileAnimation animation = this.animation;
+        if (animation == null) {
+            return;
+        }
+
+        if (animation != drawnAnimation) {
+            final byte[] keyframe = animation.getKeyframe();
+            for (int y = 0; y < PosterImage.HEIGHT; y++) {
+                for (int x = 0; x < PosterImage.WIDTH; x++) {
+                    canvas.setPixel(x, y, keyframe[y * PosterImage.WIDTH + x]);
+                }
+            }
+            drawnAnimation = animation;
+            drawnFrame = 0;
+        }
+
+        // Only the pixels which changed are drawn, frame after frame.
+        final int frame = animation.getFrameAt(System.currentTimeMillis());
+        while (drawnFrame != frame) {
+            drawnFrame = (drawnFrame + 1) % animation.getFrameCount();
+
+            final char[] pixels = animation.getChangedPixels(drawnFrame);
+            final byte[] colors = animation.getChangedColors(drawnFrame);
+            for (int i = 0; i < pixels.length; i++) {
+                canvas.setPixel(pixels[i] % PosterImage.WIDTH, pixels[i] / PosterImage.WIDTH, colors[i]);
+            }
+        }
+    }
+
+    /**
+     * @param now The current time, in milliseconds.
+     * @return {@code true} if the frame displayed at this time was not drawn yet.
+     */
+    boolean hasNewFrame(long now) {
+        final TileAnimation animation = this.animation;
+        return animation != null && (animation != drawnAnimation || animation.getFrameAt(now) != drawnFrame);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import org.bukkit.map.MapPalette;
+
+/**
+ * Converts ARGB pixels to the colors of Minecraft maps, like {@link MapPalette#matchColor(Color)}
+ * does, but without any dependency on the server once created, and caching each match.
+ */
+public final class ColorQuantizer {
+    /**
+     * The map color used for transparent pixels.
+     */
+    public static final byte TRANSPARENT = 0;
+
+    private static final int FIRST_OPAQUE_COLOR = 4;
+
+    private final int[] palette;
+    private final IndexColorModel colorModel;
+
+    /**
+     * The match of every RGB color, or {@link #TRANSPARENT} if not computed yet.
+     * Allocated on the first match, as it takes 16 MB, and filled lazily; concurrent
+     * fills are harmless as they always write the same value.
+     */
+    private volatile byte[] matches;
+
+    /**
+     * @param palette The RGB colors of the Minecraft map colors, indexed by map color. The
+     *                first four colors are transparent and never matched.
+     */
+    public ColorQuantizer(int[] palette) {
+        if (palette.length <= FIRST_OPAQUE_COLOR || palette.length > 256) {
+            throw new IllegalArgumentException("Invalid palette size: " + palette.length);
+        }
+        this.palette = palette.clone();
+
+        int[] argb = new int[256];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = toARGB((byte) i);
+        }
+        this.colorModel = new IndexColorModel(8, argb.length, argb, 0, true, -1, DataBuffer.TYPE_BYTE);
+    }
+
+    /**
+     * @return The quantizer using the palette of the server.
+     */
+    public static ColorQuantizer getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return The RGB colors of the map colors of the server.
+     */
+    @SuppressWarnings("deprecation")
+    public static int[] getServerPalette() {
+        int[] palette = new int[getServerPaletteSize()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = MapPalette.getColor((byte) i).getRGB() & 0xFFFFFF;
+        }
+        return palette;
+    }
+
+    /**
+     * The API has no way to get the number of map colors, which grows with the Minecraft
+     * versions, so it is found by asking {@link MapPalette} for each color until it fails.
+     */
+    @SuppressWarnings("deprecation")
+    private static int getServerPaletteSize() {
+        int size = 0;
+        while (size < 256) {
+            try {
+                if (MapPalette.getColor((byte) size) == null) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                break;
+            }
+            size++;
+        }
+
+        if (size <= FIRST_OPAQUE_COLOR) {
+            throw new IllegalStateException("Unable to read the map colors of the server");
+        }
+        return size;
+    }
+
+    /**
+     * @return A copy of the RGB colors of the map colors.
+     */
+    public int[] getPalette() {
+        return palette.clone();
+    }
+
+    /**
+     * @param color A map color.
+     * @return Its ARGB value, fully transparent for transparent map colors.
+     */
+    public int toARGB(byte color) {
+        int index = color & 0xFF;
+        return index < FIRST_OPAQUE_COLOR || index >= palette.length ? 0 : 0xFF000000 | palette[index];
+    }
+
+    /**
+     * @param argb An ARGB pixel.
+     * @return The closest map color; {@link #TRANSPARENT} if the pixel is not opaque enough.
+     */
+    public byte quantize(int argb) {
+        return quantize(argb, matches());
+    }
+
+    private byte quantize(int argb, byte[] matches) {
+        // Minecraft maps only draw pixels with an alpha of at least 128.
+        if ((argb >>> 24) < 128) {
+            return TRANSPARENT;
+        }
+
+        int rgb = argb & 0xFFFFFF;
+        byte match = matches[rgb];
+        if (match == TRANSPARENT) {
+            match = findClosest(rgb);
+            matches[rgb] = match;
+        }
+        return match;
+    }
+
+    /**
+     * Quantizes a whole image.
+     *
+     * @param image The image; only its first 128×128 pixels are used.
+     * @return The map colors, row by row.
+     */
+    public byte[] quantize(BufferedImage image) {
+        int width = Math.min(image.getWidth(), PosterImage.WIDTH);
+        int height = Math.min(image.getHeight(), PosterImage.HEIGHT);
+        byte[] colors = new byte[PosterImage.WIDTH * PosterImage.HEIGHT];
+        byte[] matches = matches();
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                colors[y * PosterImage.WIDTH + x] = quantize(row[x], matches);
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Converts map colors back to an image, e.g. to save them. The image is indexed
+     * on the map colors, so that it is read back to the very same colors.
+     *
+     * @param colors The map colors of a tile, row by row. They are not copied.
+     * @return A new 128×128 image.
+     */
+    public BufferedImage toImage(byte[] colors) {
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(colors, colors.length),
+                PosterImage.WIDTH, PosterImage.HEIGHT, PosterImage.WIDTH, 1, new int[] {0}, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private byte[] matches() {
+        byte[] matches = this.matches;
+        if (matches == null) {
+            synchronized (this) {
+                matches = this.matches;
+                if (matches == null) {
+                    matches = new byte[1 << 24];
+                    this.matches = matches;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Same weighted distance as the server, so that the result does not change.
+     */
+    private byte findClosest(int rgb) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+
+        int index = FIRST_OPAQUE_COLOR;
+        double best = Double.MAX_VALUE;
+        for (int i = FIRST_OPAQUE_COLOR; i < palette.length; i++) {
+            int color = palette[i];
+            int paletteRed = (color >> 16) & 0xFF;
+
+            double rmean = (red + paletteRed) / 2.0;
+            double r = red - paletteRed;
+            double g = green - ((color >> 8) & 0xFF);
+            double b = blue - (color & 0xFF);
+            double distance = (2 + rmean / 256.0) * r * r + 4.0 * g * g + (2 + (255 - rmean) / 256.0) * b * b;
+
+            if (distance < best) {
+                best = distance;
+                index = i;
+            }
+        }
+        return (byte) index;
+    }
+
+    private static final class DefaultHolder {
+        private static final ColorQuantizer INSTANCE = new ColorQuantizer(getServerPalette());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The dithering algorithms. Images are processed in bands of rows, in parallel.
+ */
+final class Ditherer {
+    /**
+     * The rows dithered above each band only to carry the error into it, so that
+     * the seams between bands do not show.
+     */
+    static final int OVERLAP = 16;
+
+    private static final int BAND_HEIGHT = 64;
+
+    /**
+     * Strength of the ordered dithering pattern, in color levels.
+     */
+    private static final int ORDERED_SPREAD = 32;
+
+    private static final int[] BAYER = {
+            0, 32, 8, 40, 2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44, 4, 36, 14, 46, 6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+            3, 35, 11, 43, 1, 33, 9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47, 7, 39, 13, 45, 5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private Ditherer() {
+    }
+
+    static byte[] none(int[] pixels, int width, int height, ColorQuantizer quantizer) {
+        final byte[] colors = new byte[width * height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int i = y * width, end = i + width; i < end; i++) {
+                colors[i] = quantizer.quantize(pixels[i]);
+            }
+        });
+        return colors;
+    }
+
+    static byte[] ordered(int[] pixels, int width, int height, ColorQuantizer quantizer) {
+        final byte[] colors = new byte[width * height];
+        IntStream.range(0, height).parallel().forEach(y -> {
+            final int row = (y & 7) << 3;
+            for (int x = 0; x < width; x++) {
+                final int i = y * width + x;
+                final int pixel = pixels[i];
+                if ((pixel >>> 24) < 128) {
+                    colors[i] = ColorQuantizer.TRANSPARENT;
+                    continue;
+                }
+
+                final int offset = ((BAYER[row | (x & 7)] * 2 + 1) * ORDERED_SPREAD) / 128 - ORDERED_SPREAD / 2;
+                colors[i] = quantizer.quantize(0xFF000000
+                        | clamp(((pixel >> 16) & 0xFF) + offset) << 16
+                        | clamp(((pixel >> 8) & 0xFF) + offset) << 8
+                        | clamp((pixel & 0xFF) + offset));
+            }
+        });
+        return colors;
+    }
+
+    static byte[] floydSteinberg(int[] pixels, int width, int height, ColorQuantizer quantizer) {
+        final byte[] colors = new byte[width * height];
+        final int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            final int from = band * BAND_HEIGHT;
+            floydSteinberg(pixels, width, Math.max(0, from - OVERLAP), from, Math.min(from + BAND_HEIGHT, height),
+                    quantizer, colors);
+        });
+        return colors;
+    }
+
+    /**
+     * Dithers a band of rows, with a serpentine scan.
+     *
+     * @param start The first row dithered, only to compute the error carried to the band.
+     * @param from  The first row of the band.
+     * @param to    The row after the band.
+     */
+    private static void floydSteinberg(int[] pixels, int width, int start, int from, int to,
+                                       ColorQuantizer quantizer, byte[] colors) {
+        // Errors times 16, for each channel, with a column of padding on each side
+        int[] currentErrors = new int[(width + 2) * 3];
+        int[] nextErrors = new int[(width + 2) * 3];
+
+        for (int y = start; y < to; y++) {
+            final boolean leftToRight = (y & 1) == 0;
+            final int step = leftToRight ? 1 : -1;
+
+            for (int n = 0; n < width; n++) {
+                final int x = leftToRight ? n : width - 1 - n;
+                final int i = y * width + x;
+                final int pixel = pixels[i];
+
+                byte color;
+                if ((pixel >>> 24) < 128) {
+                    // Transparent pixels do not carry any error.
+                    color = ColorQuantizer.TRANSPARENT;
+                } else {
+                    final int e = (x + 1) * 3;
+                    final int red = clamp(((pixel >> 16) & 0xFF) + currentErrors[e] / 16);
+                    final int green = clamp(((pixel >> 8) & 0xFF) + currentErrors[e + 1] / 16);
+                    final int blue = clamp((pixel & 0xFF) + currentErrors[e + 2] / 16);
+
+                    color = quantizer.quantize(0xFF000000 | red << 16 | green << 8 | blue);
+                    final int matched = quantizer.toARGB(color);
+
+                    spread(red - ((matched >> 16) & 0xFF), e, step, currentErrors, nextErrors);
+                    spread(green - ((matched >> 8) & 0xFF), e + 1, step, currentErrors, nextErrors);
+                    spread(blue - (matched & 0xFF), e + 2, step, currentErrors, nextErrors);
+                }
+
+                if (y >= from) {
+                    colors[i] = color;
+                }
+            }
+
+            int[] errors = currentErrors;
+            currentErrors = nextErrors;
+            nextErrors = errors;
+            Arrays.fill(nextErrors, 0);
+        }
+    }
+
+    private static void spread(int error, int index, int step, int[] currentErrors, int[] nextErrors) {
+        final int forward = index + step * 3;
+        final int backward = index - step * 3;
+        currentErrors[forward] += error * 7;
+        nextErrors[backward] += error * 3;
+        nextErrors[index] += error * 5;
+        nextErrors[forward] += error;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+}
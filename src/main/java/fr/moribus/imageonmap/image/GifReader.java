@@ -0,0 +1,254 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Reads the frames of an animated GIF, as they are displayed.
+ *
+ * <p>GIF frames only cover the part of the image which changes, and are drawn over
+ * the previous ones; this composites them into full frames. Frames must be read in order.</p>
+ */
+final class GifReader implements AutoCloseable {
+    private static final String GIF_FORMAT = "gif";
+    private static final String STREAM_METADATA_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final String IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    /**
+     * Browsers display frames with a very short delay at this speed, so we do too.
+     */
+    private static final int DEFAULT_DELAY = 100;
+    private static final int MIN_DELAY = 20;
+
+    private static final int DISPOSE_NONE = 0;
+    private static final int DISPOSE_KEEP = 1;
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int frameCount;
+    private final int width;
+    private final int height;
+
+    private final BufferedImage canvas;
+    private final Graphics2D graphics;
+    private BufferedImage restore;
+    private int nextFrame = 0;
+    private int previousDisposal = DISPOSE_NONE;
+    private int[] previousBounds;
+
+    private GifReader(ImageInputStream input, ImageReader reader) throws IOException {
+        this.input = input;
+        this.reader = reader;
+
+        reader.setInput(input, false, false);
+        this.frameCount = reader.getNumImages(true);
+
+        int screenWidth = 0;
+        int screenHeight = 0;
+        IIOMetadata streamMetadata = reader.getStreamMetadata();
+        if (streamMetadata != null) {
+            Node descriptor = child(streamMetadata.getAsTree(STREAM_METADATA_FORMAT), "LogicalScreenDescriptor");
+            if (descriptor != null) {
+                screenWidth = intAttribute(descriptor, "logicalScreenWidth", 0);
+                screenHeight = intAttribute(descriptor, "logicalScreenHeight", 0);
+            }
+        }
+
+        // Some encoders write an empty screen size; the first frame then gives the size.
+        this.width = screenWidth > 0 ? screenWidth : reader.getWidth(0);
+        this.height = screenHeight > 0 ? screenHeight : reader.getHeight(0);
+
+        this.canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.graphics = canvas.createGraphics();
+    }
+
+    /**
+     * @param data An image file.
+     * @return A reader for its frames, or {@code null} if this is not a GIF with more than one frame.
+     * @throws IOException if the GIF could not be read.
+     */
+    static GifReader open(byte[] data) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (input == null) {
+            return null;
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            while (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                if (!GIF_FORMAT.equalsIgnoreCase(reader.getFormatName())) {
+                    continue;
+                }
+
+                GifReader gif = new GifReader(input, reader);
+                if (gif.getFrameCount() > 1) {
+                    return gif;
+                }
+                gif.close();
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+
+        input.close();
+        return null;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @param delays Where to store the delay of the frame, in milliseconds, at its index.
+     * @return The full frame. It is only valid until the next call.
+     * @throws IOException if the frame could not be read.
+     */
+    BufferedImage readNextFrame(int[] delays) throws IOException {
+        int index = nextFrame++;
+
+        // Disposes of the previous frame before drawing the next one.
+        if (previousDisposal == DISPOSE_BACKGROUND) {
+            graphics.setComposite(AlphaComposite.Clear);
+            graphics.fillRect(previousBounds[0], previousBounds[1], previousBounds[2], previousBounds[3]);
+            graphics.setComposite(AlphaComposite.SrcOver);
+        } else if (previousDisposal == DISPOSE_PREVIOUS && restore != null) {
+            canvas.setData(restore.getRaster());
+        }
+
+        BufferedImage frame = reader.read(index);
+        Node control = null;
+        Node descriptor = null;
+        IIOMetadata metadata = reader.getImageMetadata(index);
+        if (metadata != null) {
+            Node tree = metadata.getAsTree(IMAGE_METADATA_FORMAT);
+            control = child(tree, "GraphicControlExtension");
+            descriptor = child(tree, "ImageDescriptor");
+        }
+
+        int disposal = control != null ? disposal(control) : DISPOSE_NONE;
+        int delay = control != null ? intAttribute(control, "delayTime", 0) * 10 : 0;
+        delays[index] = delay < MIN_DELAY ? DEFAULT_DELAY : delay;
+
+        int x = descriptor != null ? intAttribute(descriptor, "imageLeftPosition", 0) : 0;
+        int y = descriptor != null ? intAttribute(descriptor, "imageTopPosition", 0) : 0;
+
+        if (disposal == DISPOSE_PREVIOUS) {
+            if (restore == null) {
+                restore = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            restore.setData(canvas.getRaster());
+        }
+
+        graphics.drawImage(frame, x, y, null);
+
+        previousDisposal = disposal;
+        previousBounds = new int[] {x, y, frame.getWidth(), frame.getHeight()};
+        return canvas;
+    }
+
+    @Override
+    public void close() throws IOException {
+        graphics.dispose();
+        reader.dispose();
+        input.close();
+    }
+
+    private static int disposal(Node control) {
+        Node attribute = control.getAttributes().getNamedItem("disposalMethod");
+        if (attribute == null) {
+            return DISPOSE_NONE;
+        }
+        switch (attribute.getNodeValue()) {
+            case "doNotDispose":
+                return DISPOSE_KEEP;
+            case "restoreToBackgroundColor":
+                return DISPOSE_BACKGROUND;
+            case "restoreToPrevious":
+                return DISPOSE_PREVIOUS;
+            default:
+                return DISPOSE_NONE;
+        }
+    }
+
+    private static Node child(Node parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (name.equals(node.getNodeName())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static int intAttribute(Node node, String name, int fallback) {
+        Node attribute = node.getAttributes().getNamedItem(name);
+        if (attribute == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(attribute.getNodeValue());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
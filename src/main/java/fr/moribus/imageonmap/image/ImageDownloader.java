@@ -0,0 +1,136 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import javax.imageio.ImageIO;
+
+/**
+ * Downloads the images to render. This does not depend on the server, so that the
+ * {@link RenderWorker render worker} can use it too.
+ */
+final class ImageDownloader {
+    private ImageDownloader() {
+    }
+
+    /**
+     * Downloads and decodes an image.
+     *
+     * @param url     The URL of the image.
+     * @param maxSize The maximum size of the file, in bytes.
+     * @return The downloaded file, and the decoded image, or {@code null} if it is not a valid image.
+     * @throws IOException if the image could not be downloaded, or is too large.
+     */
+    static DownloadedImage download(URL url, long maxSize) throws IOException {
+        byte[] data = null;
+        BufferedImage image = null;
+        var strUrl = url.toString();
+        //If the link is an imgur one
+        if (strUrl.toLowerCase().startsWith("https://imgur.com/")) {
+            //Not handled, can't with the hash only access the image in i.imgur.com/<hash>.<extension>
+            if (strUrl.contains("gallery/")) {
+                throw new IOException(
+                        "We do not support imgur gallery yet, please use direct link to image instead."
+                                + " Right click on the picture you want "
+                                + "to use then select copy picture link:) ");
+            }
+
+            for (Extension ext : Extension.values()) {
+                var newLink = "https://i.imgur.com/" + strUrl.substring(18) + "." + ext.toString();
+
+                data = read(new URL(newLink).openConnection(), maxSize);
+                image = ImageIO.read(new ByteArrayInputStream(data));
+
+                //valid image
+                if (image != null) {
+                    break;
+                }
+            }
+        } else {
+            data = read(url.openConnection(), maxSize);
+            image = ImageIO.read(new ByteArrayInputStream(data));
+        }
+
+        return new DownloadedImage(data, image);
+    }
+
+    /**
+     * Reads a whole file, without ever keeping more than the maximum size in memory: files
+     * announcing a larger size are not read at all, and the others are cut when they exceed it.
+     *
+     * @param connection The connection to the file, not opened yet.
+     * @param maxSize    The maximum size of the file, in bytes.
+     * @return The content of the file.
+     * @throws IOException if the file could not be read, or is too large.
+     */
+    static byte[] read(URLConnection connection, long maxSize) throws IOException {
+        if (connection.getContentLengthLong() > maxSize) {
+            throw new IOException(tooLarge(maxSize));
+        }
+
+        byte[] data;
+        try (InputStream stream = connection.getInputStream()) {
+            data = stream.readNBytes((int) Math.min(maxSize + 1, Integer.MAX_VALUE - 8));
+        }
+
+        if (data.length > maxSize) {
+            throw new IOException(tooLarge(maxSize));
+        }
+        return data;
+    }
+
+    private static String tooLarge(long maxSize) {
+        return "This image is too large. The maximum size is " + maxSize / (1024 * 1024) + " MB.";
+    }
+
+    /**
+     * @param data  The downloaded file.
+     * @param image The decoded image, or {@code null} if the file is not a valid image.
+     */
+    record DownloadedImage(byte[] data, BufferedImage image) {
+    }
+
+    private enum Extension {
+        png, jpg, jpeg, gif
+    }
+}
@@ -38,13 +38,17 @@ package fr.moribus.imageonmap.image;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import fr.moribus.imageonmap.ImageOnMap;
-import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.PosterMap;
 import fr.moribus.imageonmap.util.ExceptionCatcher;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -65,8 +69,8 @@ public class ImageIOExecutor {
         void run() throws Throwable;
     }
 
-    private static void run(ExceptionalRunnable runnable) {
-        CompletableFuture.runAsync(() -> {
+    private static CompletableFuture<Void> run(ExceptionalRunnable runnable) {
+        return CompletableFuture.runAsync(() -> {
             try {
                 runnable.run();
             } catch (Throwable t) {
@@ -78,34 +82,76 @@ public class ImageIOExecutor {
     public static void loadImage(final Path file, final Renderer mapRenderer) {
         run(() -> {
             BufferedImage image = ImageIO.read(file.toFile());
-            mapRenderer.setImage(image);
+            mapRenderer.setColors(ColorQuantizer.getDefault().quantize(image));
             image.flush(); //Safe to free
         });
     }
 
-    public static void saveImage(final Path file, final BufferedImage image) {
-        run(() -> ImageIO.write(image, "png", file.toFile()));
+    public static void loadAnimation(final Path file, final AnimatedRenderer mapRenderer) {
+        run(() -> {
+            try (InputStream stream = Files.newInputStream(file)) {
+                mapRenderer.setAnimation(TileAnimation.read(stream));
+            }
+        });
+    }
+
+    public static CompletableFuture<Void> saveImage(final Path file, final BufferedImage image) {
+        return run(() -> ImageIO.write(image, "png", file.toFile()));
     }
 
     public static void saveImage(int mapID, BufferedImage image) {
         saveImage(ImageOnMap.getPlugin().getImageFile(mapID), image);
+        deleteAnimation(mapID);
     }
 
-    public static void saveImage(int[] mapsIDs, PosterImage image) {
-        for (int i = 0, c = mapsIDs.length; i < c; i++) {
-            BufferedImage img = image.getImageAt(i);
-            ImageIOExecutor.saveImage(ImageOnMap.getPlugin().getImageFile(mapsIDs[i]), img);
-            img.flush();//Safe to free
+    /**
+     * Saves the given parts of a poster, as still maps.
+     *
+     * @return A future completed once all the parts are saved, and their former animations deleted.
+     */
+    public static CompletableFuture<Void> saveImage(int[] mapsIDs, PosterImage image, int[] indexes) {
+        List<CompletableFuture<Void>> saves = new ArrayList<>(indexes.length);
+        for (int i : indexes) {
+            if (mapsIDs[i] == PosterMap.BLANK_MAP_ID) {
+                continue;
+            }
+            saves.add(ImageIOExecutor.saveImage(ImageOnMap.getPlugin().getImageFile(mapsIDs[i]), image.getImageAt(i)));
+
+            // The map may have been animated before.
+            saves.add(deleteAnimation(mapsIDs[i]));
         }
+        return CompletableFuture.allOf(saves.toArray(new CompletableFuture[0]));
     }
 
-    public static void deleteImage(ImageMap map) {
-        for (int mapsID : map.getMapsIDs()) {
-            deleteImage(ImageOnMap.getPlugin().getImageFile(mapsID));
-        }
+    /**
+     * Saves an animated map: its first frame, as for still maps, and all its frames.
+     *
+     * @return A future completed once both are saved.
+     */
+    public static CompletableFuture<Void> saveAnimation(int mapID, BufferedImage firstFrame, TileAnimation animation) {
+        return CompletableFuture.allOf(
+                saveImage(ImageOnMap.getPlugin().getImageFile(mapID), firstFrame),
+                run(() -> {
+                    try (OutputStream stream = Files.newOutputStream(ImageOnMap.getPlugin().getAnimationFile(mapID))) {
+                        animation.write(stream);
+                    }
+                }));
+    }
+
+    public static CompletableFuture<Void> deleteImage(Path file) {
+        return run(() -> Files.delete(file));
+    }
+
+    public static CompletableFuture<Void> deleteAnimation(int mapID) {
+        return run(() -> Files.deleteIfExists(ImageOnMap.getPlugin().getAnimationFile(mapID)));
     }
 
-    public static void deleteImage(Path file) {
-        run(() -> Files.delete(file));
+    /**
+     * Runs some other file reads or writes on the IO threads.
+     *
+     * @return A future completed once the task ran.
+     */
+    public static CompletableFuture<Void> submit(Runnable task) {
+        return run(task::run);
     }
 }
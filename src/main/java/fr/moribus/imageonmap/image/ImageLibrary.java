@@ -0,0 +1,416 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.map.ImageMap;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+/**
+ * The images put by the administrators in the library directory, which players can
+ * render with {@code lib:<name>} instead of an URL.
+ *
+ * <p>The directory is watched, and the library images are rendered in the background,
+ * at a low priority and while no other image is rendering, for the sizes configured in
+ * {@code library-prerender-sizes}. A render of a library image with one of these sizes
+ * then only has to allocate and draw the maps.</p>
+ */
+public final class ImageLibrary {
+    private static final long IDLE_CHECK_PERIOD = 1000L;
+
+    private static final Map<String, Path> images = new ConcurrentHashMap<>();
+    private static final Set<String> scheduledImages = ConcurrentHashMap.newKeySet();
+
+    private static Cache<Key, Prepared> cache = null;
+    private static ExecutorService prerenderer = null;
+    private static WatchService watchService = null;
+    private static Thread watcher = null;
+
+    private ImageLibrary() {
+    }
+
+    /**
+     * Loads the library, and starts watching it and rendering its images, if it is enabled.
+     */
+    public static void init() {
+        if (!PluginConfiguration.IMAGE_LIBRARY.get()) {
+            return;
+        }
+
+        final Path directory = ImageOnMap.getPlugin().getLibraryDirectory();
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(PluginConfiguration.LIBRARY_CACHE_SIZE.get())
+                .weigher((Key key, Prepared prepared) -> prepared.getSize())
+                .build();
+
+        prerenderer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .setNameFormat("Image library renderer")
+                .build());
+
+        try {
+            Files.createDirectories(directory);
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                    "Could not watch the image library; new images will only be found after a restart", e);
+            watchService = null;
+        }
+
+        scan(directory);
+
+        if (watchService != null) {
+            watcher = new Thread(() -> watch(directory), "Image library watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * Stops watching and rendering the library.
+     */
+    public static void exit() {
+        if (prerenderer == null) {
+            return;
+        }
+
+        prerenderer.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        images.clear();
+        scheduledImages.clear();
+        cache.invalidateAll();
+        cache = null;
+        prerenderer = null;
+        watchService = null;
+        watcher = null;
+    }
+
+    /**
+     * @return {@code true} if the library is enabled.
+     */
+    public static boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @return The names of the images of the library, sorted.
+     */
+    public static List<String> getImageNames() {
+        List<String> names = new ArrayList<>(images.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @param name The name of a library image, without its extension.
+     * @return Its file, or {@code null} if there is no such image.
+     */
+    public static Path getFile(String name) {
+        return images.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets a library image rendered in the given way, rendering it now if it was not yet.
+     *
+     * @return The rendered image, or {@code null} if it cannot be rendered in advance, e.g.
+     *     because it is animated or is a large poster rendered in several steps.
+     * @throws IOException if the image could not be read.
+     */
+    static Prepared getPrepared(String name, ImageUtils.ScalingType scaling, DitherMode dither,
+                                int width, int height) throws IOException {
+        final Cache<Key, Prepared> cache = ImageLibrary.cache;
+        final Path file = getFile(name);
+        if (cache == null || file == null || !isCacheable(scaling, width, height)) {
+            return null;
+        }
+
+        final Key key = new Key(name.toLowerCase(Locale.ROOT), scaling, dither, width, height);
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        Prepared prepared = cache.getIfPresent(key);
+        if (prepared == null || prepared.lastModified() != lastModified) {
+            prepared = prepare(file, lastModified, scaling, dither, width, height);
+            if (prepared == null) {
+                return null;
+            }
+            cache.put(key, prepared);
+        }
+
+        return prepared;
+    }
+
+    /**
+     * The full image is needed to save it, and the tiles of streamed posters are never
+     * all in memory, so these renders cannot use the cache.
+     */
+    private static boolean isCacheable(ImageUtils.ScalingType scaling, int width, int height) {
+        return !PluginConfiguration.SAVE_FULL_IMAGE.get()
+                && (scaling == ImageUtils.ScalingType.NONE || (width <= 1 && height <= 1)
+                        || !ImageRendererExecutor.isStreamed(width * height));
+    }
+
+    /**
+     * Decodes, resizes, matches to map colors and splits an image, like
+     * {@link ImageRendererExecutor} would.
+     *
+     * @return The rendered image, or {@code null} if it is animated.
+     */
+    private static Prepared prepare(Path file, long lastModified, ImageUtils.ScalingType scaling,
+                                    DitherMode dither, int width, int height) throws IOException {
+        ImageDownloader.DownloadedImage download = ImageDownloader.download(file.toUri().toURL(),
+                PluginConfiguration.DOWNLOAD_MAX_SIZE.get());
+        BufferedImage image = download.image();
+        if (image == null) {
+            throw new IOException(I.t("The given URL is not a valid image"));
+        }
+
+        if (PluginConfiguration.ANIMATIONS.get()) {
+            try (GifReader gif = GifReader.open(download.data())) {
+                if (gif != null) {
+                    return null;
+                }
+            }
+        }
+
+        final String contentHash = ImageUtils.contentHash(image, scaling, dither, width, height);
+        final int imageWidth = image.getWidth();
+        final int imageHeight = image.getHeight();
+
+        final BufferedImage resizedImage;
+        if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
+            resizedImage = scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT);
+        } else {
+            resizedImage = scaling.resize(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height);
+        }
+
+        PosterImage poster = new PosterImage(resizedImage, dither);
+        poster.splitImages();
+        image.flush();
+        resizedImage.flush();
+
+        byte[][] tiles = new byte[poster.getImagesCount()][];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = poster.getColorsAt(i);
+        }
+
+        return new Prepared(lastModified, contentHash, imageWidth, imageHeight, poster.getColumns(),
+                poster.getLines(), tiles);
+    }
+
+    private static void scan(Path directory) {
+        images.clear();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                added(file);
+            }
+        } catch (IOException e) {
+            ImageOnMap.getPlugin().getLogger().log(Level.WARNING, "Could not read the image library", e);
+        }
+    }
+
+    private static void watch(Path directory) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan(directory);
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        removed(directory.resolve((Path) event.context()));
+                    } else {
+                        added(directory.resolve((Path) event.context()));
+                    }
+                }
+
+                if (!key.reset()) {
+                    ImageOnMap.getPlugin().getLogger().warning("The image library directory is not watched anymore");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The plugin is stopping.
+        }
+    }
+
+    private static void added(Path file) {
+        final String name = getName(file);
+        if (name == null || !Files.isRegularFile(file)) {
+            return;
+        }
+
+        images.put(name, file);
+        schedulePrerender(name);
+    }
+
+    private static void removed(Path file) {
+        final String name = getName(file);
+        final Cache<Key, Prepared> cache = ImageLibrary.cache;
+        if (name != null && cache != null && images.remove(name, file)) {
+            cache.asMap().keySet().removeIf(key -> key.name().equals(name));
+        }
+    }
+
+    /**
+     * @return The name of a library image, i.e. its file name without extension, or
+     *     {@code null} for hidden files.
+     */
+    private static String getName(Path file) {
+        String fileName = file.getFileName().toString();
+        if (fileName.startsWith(".")) {
+            return null;
+        }
+
+        int extension = fileName.lastIndexOf('.');
+        return (extension > 0 ? fileName.substring(0, extension) : fileName).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Renders an image for each of the configured sizes, once no other image is rendering.
+     * An image changed several times before being rendered is only rendered once.
+     */
+    private static void schedulePrerender(String name) {
+        if (!scheduledImages.add(name)) {
+            return;
+        }
+
+        prerenderer.execute(() -> {
+            try {
+                while (!ImageRendererExecutor.isIdle()) {
+                    Thread.sleep(IDLE_CHECK_PERIOD);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            scheduledImages.remove(name);
+
+            for (String size : PluginConfiguration.LIBRARY_PRERENDER_SIZES.get()) {
+                try {
+                    if (size.equalsIgnoreCase("native")) {
+                        getPrepared(name, ImageUtils.ScalingType.NONE, DitherMode.NONE, 0, 0);
+                    } else {
+                        int[] dimensions = parseSize(size);
+                        getPrepared(name, ImageUtils.ScalingType.CONTAINED, DitherMode.NONE, dimensions[0],
+                                dimensions[1]);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The file may still be written, in which case it will be rendered again.
+                    ImageOnMap.getPlugin().getLogger().log(Level.FINE,
+                            "Could not render the library image " + name + " (" + size + ")", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param size A size like {@code 2x3}, in maps. {@code 1x1} is rendered like a single
+     *             resized map, i.e. without giving any size.
+     * @return The width and height.
+     */
+    private static int[] parseSize(String size) {
+        String[] parts = size.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid library pre-render size: " + size);
+        }
+
+        int width = Integer.parseInt(parts[0].trim());
+        int height = Integer.parseInt(parts[1].trim());
+        return width <= 1 && height <= 1 ? new int[] {0, 0} : new int[] {width, height};
+    }
+
+    private record Key(String name, ImageUtils.ScalingType scaling, DitherMode dither, int width, int height) {
+    }
+
+    /**
+     * A library image already resized, matched to map colors and split.
+     *
+     * @param lastModified The modification time of the file it was rendered from.
+     * @param contentHash  The {@link ImageUtils#contentHash content hash} of the render.
+     * @param imageWidth   The width of the source image, in pixels.
+     * @param imageHeight  The height of the source image, in pixels.
+     */
+    record Prepared(long lastModified, String contentHash, int imageWidth, int imageHeight, int columns, int lines,
+                    byte[][] tiles) {
+        /**
+         * @return A new poster with the rendered tiles, which are shared with the cache.
+         */
+        PosterImage toPoster() {
+            return new PosterImage(columns, lines, tiles.clone(), ColorQuantizer.getDefault());
+        }
+
+        private int getSize() {
+            return tiles.length * PosterImage.WIDTH * PosterImage.HEIGHT;
+        }
+    }
+}
@@ -43,22 +43,42 @@ import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.i18n.I;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.MapSource;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.moribus.imageonmap.ui.MapItemManager;
 import fr.moribus.imageonmap.util.ExceptionCatcher;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 
 import org.bukkit.Bukkit;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 public class ImageRendererExecutor {
 
+    private static final int REFRESH_TIMEOUT = 15000;
+
     private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
             Math.min(Runtime.getRuntime().availableProcessors(), 4),
             new ThreadFactoryBuilder()
@@ -68,10 +88,22 @@ public class ImageRendererExecutor {
                     .build()
     );
 
+    /**
+     * The last update or refresh of each image being updated.
+     */
+    private static final Map<ImageMap, CompletableFuture<?>> UPDATES = new HashMap<>();
+
     public static Executor getMainThread() {
         return Bukkit.getScheduler().getMainThreadExecutor(ImageOnMap.getPlugin());
     }
 
+    /**
+     * @return {@code true} if no image is rendering.
+     */
+    static boolean isIdle() {
+        return ((ThreadPoolExecutor) EXECUTOR).getActiveCount() == 0;
+    }
+
     @FunctionalInterface
     interface ExceptionalSupplier<T> {
         T supply() throws Throwable;
@@ -87,140 +119,869 @@ public class ImageRendererExecutor {
         }, EXECUTOR);
     }
 
-    private static void checkSizeLimit(final UUID playerUUID, final BufferedImage image) throws IOException {
+    /**
+     * Runs an update of an image once the previous updates and refreshes of the same image are
+     * over, as they would otherwise move and redraw the same parts at the same time.
+     */
+    private static <T> CompletableFuture<T> supplyUpdate(ImageMap map, ExceptionalSupplier<T> supplier) {
+        synchronized (UPDATES) {
+            final CompletableFuture<?> previous = UPDATES.get(map);
+            final CompletableFuture<T> update = previous == null ? supply(supplier)
+                    : previous.handle((result, throwable) -> null).thenCompose(ignored -> supply(supplier));
+
+            UPDATES.put(map, update);
+            update.whenComplete((result, throwable) -> {
+                synchronized (UPDATES) {
+                    UPDATES.remove(map, update);
+                }
+            });
+            return update;
+        }
+    }
+
+    private static boolean bypassesSizeLimit(final UUID playerUUID) {
         var player = Bukkit.getPlayer(playerUUID);
+        return player != null && Permissions.BYPASS_SIZE.grantedTo(player);
+    }
+
+    private static void checkSizeLimit(final UUID playerUUID, final BufferedImage image) throws IOException {
+        checkSizeLimit(playerUUID, image.getWidth(), image.getHeight());
+    }
 
+    private static void checkSizeLimit(final UUID playerUUID, final int width, final int height) throws IOException {
         if ((PluginConfiguration.LIMIT_SIZE_X.get() > 0 || PluginConfiguration.LIMIT_SIZE_Y.get() > 0)
-                && !(player != null && Permissions.BYPASS_SIZE.grantedTo(player))) {
+                && !bypassesSizeLimit(playerUUID)) {
             if (PluginConfiguration.LIMIT_SIZE_X.get() > 0
-                    && image.getWidth() > PluginConfiguration.LIMIT_SIZE_X.get()) {
+                    && width > PluginConfiguration.LIMIT_SIZE_X.get()) {
                 throw new IOException(I.t("The image is too wide!"));
             }
 
             if (PluginConfiguration.LIMIT_SIZE_Y.get() > 0 &&
-                    image.getHeight() > PluginConfiguration.LIMIT_SIZE_Y.get()) {
+                    height > PluginConfiguration.LIMIT_SIZE_Y.get()) {
                 throw new IOException(I.t("The image is too tall!"));
             }
         }
     }
 
-    public static CompletableFuture<ImageMap> render(final URL url, final ImageUtils.ScalingType scaling, final UUID playerUUID,
+    public static CompletableFuture<ImageMap> render(final URL url, final ImageUtils.ScalingType scaling,
+                                                     final DitherMode dither, final UUID playerUUID,
                                                      final int width, final int height) {
+        return supply(() -> render(url, scaling, dither, playerUUID, width, height, true));
+    }
+
+    /**
+     * Renders an image uploaded to the server. The file is deleted once rendered.
+     *
+     * @param file The uploaded file.
+     * @return The new image. It cannot be refreshed.
+     */
+    public static CompletableFuture<ImageMap> renderUpload(final Path file, final ImageUtils.ScalingType scaling,
+                                                           final DitherMode dither, final UUID playerUUID,
+                                                           final int width, final int height) {
+        final URL url;
+        try {
+            url = file.toUri().toURL();
+        } catch (MalformedURLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return supply(() -> render(url, scaling, dither, playerUUID, width, height, false))
+                .whenComplete((map, throwable) -> ImageIOExecutor.deleteImage(file));
+    }
+
+    /**
+     * Renders an image of the {@link ImageLibrary library}. It is taken from the library
+     * cache if it was already rendered the same way.
+     *
+     * @param name The name of the library image.
+     * @return The new image. It is refreshed from the library file.
+     */
+    public static CompletableFuture<ImageMap> renderLibrary(final String name, final ImageUtils.ScalingType scaling,
+                                                            final DitherMode dither, final UUID playerUUID,
+                                                            final int width, final int height) {
+        final Path file = ImageLibrary.getFile(name);
+        if (file == null) {
+            return CompletableFuture.failedFuture(
+                    new IOException(I.t("There is no image named {0} in the library.", name)));
+        }
+
+        final URL url;
+        try {
+            url = file.toUri().toURL();
+        } catch (MalformedURLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
         return supply(() -> {
-            BufferedImage image = null;
-            var strUrl = url.toString();
-            //If the link is an imgur one
-            if (strUrl.toLowerCase().startsWith("https://imgur.com/")) {
-                //Not handled, can't with the hash only access the image in i.imgur.com/<hash>.<extension>
-                if (strUrl.contains("gallery/")) {
-                    throw new IOException(
-                            "We do not support imgur gallery yet, please use direct link to image instead."
-                                    + " Right click on the picture you want "
-                                    + "to use then select copy picture link:) ");
-                }
+            ImageLibrary.Prepared prepared = ImageLibrary.getPrepared(name, scaling, dither, width, height);
+            if (prepared == null) {
+                return render(url, scaling, dither, playerUUID, width, height, true);
+            }
 
-                for (Extension ext : Extension.values()) {
-                    var newLink = "https://i.imgur.com/" + strUrl.substring(18) + "." + ext.toString();
+            checkSizeLimit(playerUUID, prepared.imageWidth(), prepared.imageHeight());
 
-                    try (var stream = new URL(newLink).openStream()) {
-                        image = ImageIO.read(stream);
-                    }
+            String contentHash = PluginConfiguration.DEDUPLICATE_IMAGES.get() ? prepared.contentHash() : null;
+            ImageMap existingMap = contentHash != null ? MapManager.getMapByContent(contentHash) : null;
 
-                    //valid image
-                    if (image != null) {
-                        break;
-                    }
-                }
+            ImageMap map;
+            if (existingMap != null) {
+                map = MapManager.createSharedMap(existingMap, playerUUID);
+            } else if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
+                map = renderSingle(prepared.toPoster(), playerUUID, contentHash);
             } else {
-                try (var stream = url.openStream()) {
-                    image = ImageIO.read(stream);
+                map = renderPoster(prepared.toPoster(), playerUUID, contentHash);
+            }
+
+            map.setSource(new MapSource(url.toString(), scaling, dither, 0));
+            return map;
+        });
+    }
+
+    /**
+     * @param keepSource {@code true} to remember the URL, so that the image can be refreshed.
+     */
+    private static ImageMap render(final URL url, final ImageUtils.ScalingType scaling, final DitherMode dither,
+                                   final UUID playerUUID, final int width, final int height,
+                                   final boolean keepSource) throws Throwable {
+        var strUrl = url.toString();
+
+        // The full image is only known by the worker, so it cannot be saved.
+        if (RenderWorkerClient.isEnabled() && !PluginConfiguration.SAVE_FULL_IMAGE.get()) {
+            ImageMap map = renderInWorker(strUrl, scaling, dither, playerUUID, width, height);
+            if (map != null) {
+                if (keepSource) {
+                    map.setSource(new MapSource(strUrl, scaling, dither, 0));
                 }
+                return map;
             }
+        }
+
+        ImageDownloader.DownloadedImage download = ImageDownloader.download(url,
+                PluginConfiguration.DOWNLOAD_MAX_SIZE.get());
+        BufferedImage image = download.image();
+        byte[] data = download.data();
+
+        if (image == null) {
+            throw new IOException(I.t("The given URL is not a valid image"));
+        }
+
+        // Limits are in place and the player does NOT have rights to avoid them.
+        checkSizeLimit(playerUUID, image);
+
+        final GifReader gif = PluginConfiguration.ANIMATIONS.get() ? GifReader.open(data) : null;
+
+        String contentHash = null;
+        ImageMap existingMap = null;
+        if (PluginConfiguration.DEDUPLICATE_IMAGES.get()) {
+            contentHash = ImageUtils.contentHash(image, scaling, dither, width, height);
+            if (gif != null) {
+                contentHash = ImageUtils.animationHash(contentHash, data);
+            }
+
+            // The same image was already rendered the same way: its maps can be reused.
+            existingMap = MapManager.getMapByContent(contentHash);
+        }
+
+        ImageMap map;
+        try (gif) {
+            map = renderImage(image, gif, scaling, dither, playerUUID, width, height, existingMap, contentHash);
+        }
+
+        if (keepSource) {
+            map.setSource(new MapSource(strUrl, scaling, dither, 0));
+        }
+        return map;
+    }
+
+    /**
+     * Renders an image in the render worker, out of the server.
+     *
+     * @return The new image, or {@code null} if it has to be rendered by the server instead.
+     */
+    private static ImageMap renderInWorker(final String url, final ImageUtils.ScalingType scaling,
+                                           final DitherMode dither, final UUID playerUUID,
+                                           final int width, final int height) throws Throwable {
+        final boolean bypassSizeLimit = bypassesSizeLimit(playerUUID);
+
+        RenderWorkerClient.Result result;
+        try {
+            result = RenderWorkerClient.render(url, scaling, dither, width, height,
+                    bypassSizeLimit ? 0 : PluginConfiguration.LIMIT_SIZE_X.get(),
+                    bypassSizeLimit ? 0 : PluginConfiguration.LIMIT_SIZE_Y.get(),
+                    PluginConfiguration.ANIMATIONS.get()).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RenderWorkerClient.WorkerUnavailableException) {
+                return null;
+            }
+            throw e.getCause();
+        }
 
+        // Animated images are rendered by the server.
+        if (result == null) {
+            return null;
+        }
+
+        String contentHash = PluginConfiguration.DEDUPLICATE_IMAGES.get() ? result.contentHash() : null;
+        ImageMap existingMap = contentHash != null ? MapManager.getMapByContent(contentHash) : null;
+        if (existingMap != null) {
+            return MapManager.createSharedMap(existingMap, playerUUID);
+        }
+
+        PosterImage poster = new PosterImage(result.columns(), result.lines(), result.tiles(),
+                ColorQuantizer.getDefault());
+        if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
+            return renderSingle(poster, playerUUID, contentHash);
+        }
+        return renderPoster(poster, playerUUID, contentHash);
+    }
+
+    private static ImageMap renderImage(final BufferedImage image, final GifReader gif,
+                                        final ImageUtils.ScalingType scaling, final DitherMode dither,
+                                        final UUID playerUUID, final int width, final int height,
+                                        final ImageMap existingMap, final String contentHash) throws Throwable {
+        ImageMap map;
+        if (existingMap != null) {
+            image.flush();
+            map = MapManager.createSharedMap(existingMap, playerUUID);
+        } else if (gif != null) {
+            image.flush();
+            map = renderAnimated(gif, scaling, dither, playerUUID, width, height, contentHash);
+        } else if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
+            map = renderSingle(scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT), dither, playerUUID,
+                    contentHash);
+            image.flush();
+        } else if (scaling != ImageUtils.ScalingType.NONE && isStreamed(width * height)) {
+            map = renderPosterStreaming(scaling.prepare(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height),
+                    dither, playerUUID, contentHash);
+            image.flush();
+        } else {
+            var resizedImage = scaling.resize(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height);
+            image.flush();
+
+            map = renderPoster(resizedImage, dither, playerUUID, contentHash);
+        }
+        return map;
+    }
+
+    public static CompletableFuture<UpdateResult> update(final URL url, final ImageUtils.ScalingType scaling,
+                                                         final UUID playerUUID, final ImageMap map,
+                                                         final int width, final int height) {
+        return supplyUpdate(map, () -> {
+            final byte[] data = ImageDownloader.read(url.openConnection(), PluginConfiguration.DOWNLOAD_MAX_SIZE.get());
+
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
             if (image == null) {
                 throw new IOException(I.t("The given URL is not a valid image"));
             }
+            checkNotAnimated(data);
 
-            // Limits are in place and the player does NOT have rights to avoid them.
-            checkSizeLimit(playerUUID, image);
+            // The dithering and the refresh delay are kept, but the next refreshes will use the new URL.
+            MapSource oldSource = map.getSource();
+            DitherMode dither = oldSource != null ? oldSource.getDither() : DitherMode.NONE;
 
-            if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
-                ImageMap ret = renderSingle(scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT), playerUUID);
-                image.flush();
-                return ret;
-            } else {
-                var resizedImage = scaling.resize(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height);
-                image.flush();
+            UpdateResult result = updateImage(image, scaling, dither, playerUUID, map, width, height);
 
-                return renderPoster(resizedImage, playerUUID);
-            }
+            map.setSource(new MapSource(url.toString(), scaling, dither,
+                    oldSource != null ? oldSource.getRefreshInterval() : 0));
+
+            return result;
         });
     }
 
-    public static CompletableFuture<ImageMap> update(final URL url, final ImageUtils.ScalingType scaling, final UUID playerUUID,
-                                                     final ImageMap map, final int width, final int height) {
-        return supply(() -> {
-            BufferedImage image;
+    /**
+     * Updates only redraw still images: an animated image would be flattened to its first
+     * frame, so it is rejected instead, unless animations are disabled, as when rendering.
+     *
+     * @param data The downloaded file.
+     * @throws IOException if the file is an animated image.
+     */
+    private static void checkNotAnimated(final byte[] data) throws IOException {
+        if (!PluginConfiguration.ANIMATIONS.get()) {
+            return;
+        }
 
-            try (var stream = url.openStream()) {
-                image = ImageIO.read(stream);
+        try (GifReader gif = GifReader.open(data)) {
+            if (gif != null) {
+                throw new IOException(I.t("Animated images cannot be updated. Render them again with /maptool new."));
             }
+        }
+    }
 
-            if (image == null) {
-                throw new IOException(I.t("The given URL is not a valid image"));
+    /**
+     * Downloads again the image an image was rendered from, and updates it if it changed.
+     * Conditional requests are used, so that unchanged images are not downloaded again
+     * when the server supports them.
+     *
+     * @param map The image to refresh; it must have a {@link MapSource}.
+     * @return The result of the update, or {@code null} if the source did not change.
+     */
+    public static CompletableFuture<UpdateResult> refresh(final ImageMap map) {
+        return supplyUpdate(map, () -> {
+            final MapSource source = map.getSource();
+            if (source == null) {
+                throw new IOException(I.t("This image was not rendered from an URL."));
             }
 
-            // Limits are in place and the player does NOT have rights to avoid them.
-            checkSizeLimit(playerUUID, image);
+            final int width;
+            final int height;
+            if (map instanceof PosterMap poster) {
+                if (!poster.hasColumnData()) {
+                    throw new IOException(I.t("The size of this poster is unknown."));
+                }
+                width = poster.getColumnCount();
+                height = poster.getRowCount();
+            } else {
+                width = 1;
+                height = 1;
+            }
 
-            var resizedImage = scaling.resize(image, width * 128, height * 128);
+            URLConnection connection = new URL(source.getUrl()).openConnection();
+            connection.setConnectTimeout(REFRESH_TIMEOUT);
+            connection.setReadTimeout(REFRESH_TIMEOUT);
+            connection.setRequestProperty("User-Agent", "ImageOnMap/" + ImageOnMap.getPlugin().getDescription().getVersion());
 
-            updateMap(new PosterImage(resizedImage), map.getMapsIDs());
+            if (connection instanceof HttpURLConnection http) {
+                if (source.getEtag() != null) {
+                    http.setRequestProperty("If-None-Match", source.getEtag());
+                }
+                if (source.getLastModified() != null) {
+                    http.setRequestProperty("If-Modified-Since", source.getLastModified());
+                }
 
-            return map;
+                if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    http.disconnect();
+                    return null;
+                }
+            }
+
+            final byte[] data = ImageDownloader.read(connection, PluginConfiguration.DOWNLOAD_MAX_SIZE.get());
+
+            final String etag = connection.getHeaderField("ETag");
+            final String lastModified = connection.getHeaderField("Last-Modified");
+
+            // Some servers do not send validators: the downloaded bytes are compared instead.
+            final String dataHash = ImageUtils.dataHash(data);
+            if (dataHash.equals(source.getContentHash())) {
+                source.setValidators(etag, lastModified, dataHash);
+                return null;
+            }
+
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image == null) {
+                throw new IOException(I.t("The given URL is not a valid image"));
+            }
+            checkNotAnimated(data);
+
+            UpdateResult result = updateImage(image, source.getScaling(), source.getDither(), map.getUserUUID(), map,
+                    width, height);
+            source.setValidators(etag, lastModified, dataHash);
+
+            return result;
         });
     }
 
-    private static void updateMap(PosterImage poster, int[] mapsIDs) {
+    private static UpdateResult updateImage(final BufferedImage image, final ImageUtils.ScalingType scaling,
+                                            final DitherMode dither, final UUID playerUUID, final ImageMap map,
+                                            final int width, final int height) throws Throwable {
+        // Limits are in place and the player does NOT have rights to avoid them.
+        checkSizeLimit(playerUUID, image);
+
+        String contentHash = PluginConfiguration.DEDUPLICATE_IMAGES.get()
+                ? ImageUtils.contentHash(image, scaling, dither, width, height) : null;
+
+        PosterImage poster = new PosterImage(scaling.resize(image, width * 128, height * 128), dither);
+        image.flush();
         poster.splitImages();
 
-        ImageIOExecutor.saveImage(mapsIDs, poster);
+        // Images which are not resized must keep the same number of columns and rows.
+        if (poster.getColumns() != width || poster.getLines() != height
+                || poster.getImagesCount() != map.getMapCount()) {
+            throw new IOException(I.t("The new image does not have the same size as the old one."));
+        }
+
+        String[] tileHashes = poster.getTileHashes();
+        int[] changedIndexes = getChangedTiles(map, tileHashes);
+
+        // Parts whose map is shared with other images, or with parts keeping their content, move
+        // to other maps, so that the others are left untouched; the other ones are redrawn in place.
+        // Another image may take or release maps meanwhile: the maps are then chosen again.
+        final IntArrayList spareMapsIDs = new IntArrayList();
+        int[] movedIndexes;
+        int[] oldMapsIDs;
+        int[] drawnIndexes;
+        while (true) {
+            movedIndexes = MapManager.getMapsIndexesToDetach(map, changedIndexes, tileHashes);
+            oldMapsIDs = new int[movedIndexes.length];
+            for (int j = 0; j < movedIndexes.length; j++) {
+                oldMapsIDs[j] = map.getMapIdAt(movedIndexes[j]);
+            }
+
+            final int[] newMapsIDs = new int[movedIndexes.length];
+            final boolean[] reused = new boolean[movedIndexes.length];
+            final int[] freshIndexes = allocateMovedTiles(map, changedIndexes, movedIndexes, tileHashes,
+                    newMapsIDs, reused, spareMapsIDs);
+
+            if (MapManager.updateMap(map, changedIndexes, movedIndexes, newMapsIDs, reused, contentHash,
+                    tileHashes)) {
+                final int[] moved = movedIndexes;
+                drawnIndexes = IntStream.concat(
+                        Arrays.stream(changedIndexes).filter(i -> Arrays.binarySearch(moved, i) < 0),
+                        Arrays.stream(freshIndexes)).sorted().toArray();
+                break;
+            }
+
+            for (int j : freshIndexes) {
+                spareMapsIDs.add(newMapsIDs[Arrays.binarySearch(movedIndexes, j)]);
+            }
+        }
+
+        // Maps allocated by a failed attempt and not taken by the last one are not used by any image.
+        if (!spareMapsIDs.isEmpty()) {
+            final int[] releasedMapsIDs = spareMapsIDs.toIntArray();
+            CompletableFuture.runAsync(() -> MapManager.releaseMapsIds(releasedMapsIDs), getMainThread());
+        }
+
+        if (drawnIndexes.length > 0) {
+            drawTiles(poster, map.getMapsIDs(), drawnIndexes);
+        }
+
+        // The frames and the items of the moved parts follow them.
+        if (oldMapsIDs.length > 0) {
+            final int[] updatedMapsIDs = oldMapsIDs;
+            CompletableFuture.runAsync(() -> MapItemManager.updatePlacedMaps(updatedMapsIDs), getMainThread()).join();
+        }
+
+        return new UpdateResult(map, changedIndexes.length, tileHashes.length - changedIndexes.length);
+    }
+
+    /**
+     * Finds a Minecraft map for each part of an image moving to another map on update. Moved
+     * parts identical to another part or image reuse its map, unless that map is about to be
+     * redrawn, and new maps are allocated for the other ones.
+     *
+     * @param map            The image being updated.
+     * @param changedIndexes The sorted indexes of the parts which change.
+     * @param movedIndexes   The sorted indexes of the parts moving to other maps.
+     * @param tileHashes     The new hashes of all the parts.
+     * @param mapsIDs        The array to fill with the new map of each moved part.
+     * @param reused         The array to fill with whether each moved part reuses an existing map.
+     * @param spareMapsIDs   Maps allocated by a previous attempt and left unused, taken first.
+     * @return The sorted indexes of the parts using new maps, which have to be drawn.
+     */
+    private static int[] allocateMovedTiles(ImageMap map, int[] changedIndexes, int[] movedIndexes,
+                                            String[] tileHashes, int[] mapsIDs, boolean[] reused,
+                                            IntArrayList spareMapsIDs) {
+        final boolean deduplicate = PluginConfiguration.DEDUPLICATE_TILES.get();
+
+        final IntOpenHashSet redrawnMapsIDs = new IntOpenHashSet();
+        for (int i : changedIndexes) {
+            if (Arrays.binarySearch(movedIndexes, i) < 0) {
+                redrawnMapsIDs.add(map.getMapIdAt(i));
+            }
+        }
+
+        Map<String, Integer> firstIndexes = new HashMap<>();
+        int[] sameAs = new int[movedIndexes.length];
+        int[] newIndexes = new int[movedIndexes.length];
+        int newCount = 0;
+
+        for (int j = 0; j < movedIndexes.length; j++) {
+            final String tileHash = tileHashes[movedIndexes[j]];
+            sameAs[j] = j;
+
+            if (deduplicate) {
+                Integer firstIndex = firstIndexes.putIfAbsent(tileHash, j);
+                if (firstIndex != null) {
+                    sameAs[j] = firstIndex;
+                    continue;
+                }
+
+                Integer existingMapID = MapManager.getMapIDByTile(tileHash);
+                if (existingMapID != null && !redrawnMapsIDs.contains(existingMapID.intValue())) {
+                    mapsIDs[j] = existingMapID;
+                    reused[j] = true;
+                    continue;
+                }
+            }
+
+            newIndexes[newCount++] = j;
+        }
+
+        final int spareCount = Math.min(newCount, spareMapsIDs.size());
+        final int count = newCount - spareCount;
+        int[] newMapsIDs = count > 0
+                ? CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(count), getMainThread()).join()
+                : new int[0];
+        for (int k = 0; k < newCount; k++) {
+            mapsIDs[newIndexes[k]] = k < spareCount ? spareMapsIDs.popInt() : newMapsIDs[k - spareCount];
+        }
+
+        for (int j = 0; j < movedIndexes.length; j++) {
+            mapsIDs[j] = mapsIDs[sameAs[j]];
+            reused[j] = reused[sameAs[j]];
+        }
+
+        int[] freshIndexes = new int[newCount];
+        for (int k = 0; k < newCount; k++) {
+            freshIndexes[k] = movedIndexes[newIndexes[k]];
+        }
+        return freshIndexes;
+    }
+
+    /**
+     * Compares the new parts of an image with the current ones.
+     *
+     * @param map        The image being updated.
+     * @param tileHashes The hashes of the new parts.
+     * @return The sorted indexes of the parts which changed, or whose content is unknown.
+     */
+    private static int[] getChangedTiles(ImageMap map, String[] tileHashes) {
+        String[] currentHashes = map.getTileHashes();
+        if (currentHashes == null || currentHashes.length != tileHashes.length) {
+            return IntStream.range(0, tileHashes.length).toArray();
+        }
+
+        // The first part must have a map, which images rendered by older versions may lack.
+        return IntStream.range(0, tileHashes.length)
+                .filter(i -> currentHashes[i] == null || !tileHashes[i].equals(currentHashes[i])
+                        || i == 0 && map.getMapIdAt(0) == PosterMap.BLANK_MAP_ID)
+                .toArray();
+    }
+
+    /**
+     * Saves and displays the given parts of a poster.
+     *
+     * @param poster  The split poster.
+     * @param mapsIDs The Minecraft maps of the poster.
+     * @param indexes The indexes of the parts to draw.
+     * @return A future completed once the parts are saved.
+     */
+    private static CompletableFuture<Void> drawTiles(PosterImage poster, int[] mapsIDs, int[] indexes) {
+        CompletableFuture<Void> saves = ImageIOExecutor.saveImage(mapsIDs, poster, indexes);
 
         if (PluginConfiguration.SAVE_FULL_IMAGE.get()) {
             ImageIOExecutor.saveImage(ImageMap.getFullImageFile(mapsIDs[0], mapsIDs[mapsIDs.length - 1]), poster.getImage());
         }
 
-        getMainThread().execute(() -> Renderer.installRenderer(poster, mapsIDs));
+        Renderer.installRenderer(poster, mapsIDs, indexes);
+
+        return saves;
+    }
+
+    /**
+     * Finds a Minecraft map for each part of a poster. Fully transparent parts may not
+     * get any, parts identical to another part of this poster or of another image reuse
+     * its map, and new maps are allocated for the other ones.
+     *
+     * <p>The first part of an image must always get a map, so that single maps and fully
+     * transparent posters have one to be shown by: it is never reported as transparent.</p>
+     *
+     * @param isTransparent Tells whether a part of the poster is fully transparent and may be left blank.
+     * @param tileHashes  The hashes of the parts.
+     * @param mapsIDs     The array to fill with the Minecraft maps of each part.
+     * @param posterTiles The maps already allocated for other parts of the same poster, by hash.
+     *                    The maps allocated here are added to it.
+     * @return The indexes of the parts using new maps, which have to be drawn.
+     */
+    private static int[] allocateTiles(IntPredicate isTransparent, String[] tileHashes, int[] mapsIDs,
+                                       Map<String, Integer> posterTiles) {
+        final boolean skipTransparent = PluginConfiguration.SKIP_TRANSPARENT_TILES.get();
+        final boolean deduplicate = PluginConfiguration.DEDUPLICATE_TILES.get();
+
+        Map<String, Integer> firstIndexes = new HashMap<>();
+        int[] sameAs = new int[mapsIDs.length];
+        int[] newIndexes = new int[mapsIDs.length];
+        int newCount = 0;
+
+        for (int i = 0; i < mapsIDs.length; i++) {
+            sameAs[i] = i;
+
+            if (skipTransparent && isTransparent.test(i)) {
+                mapsIDs[i] = PosterMap.BLANK_MAP_ID;
+                continue;
+            }
+
+            if (deduplicate) {
+                Integer posterMapID = posterTiles.get(tileHashes[i]);
+                if (posterMapID != null) {
+                    mapsIDs[i] = posterMapID;
+                    continue;
+                }
+
+                Integer firstIndex = firstIndexes.putIfAbsent(tileHashes[i], i);
+                if (firstIndex != null) {
+                    sameAs[i] = firstIndex;
+                    continue;
+                }
+
+                Integer existingMapID = MapManager.getMapIDByTile(tileHashes[i]);
+                if (existingMapID != null) {
+                    mapsIDs[i] = existingMapID;
+                    continue;
+                }
+            }
+
+            newIndexes[newCount++] = i;
+        }
+
+        final int count = newCount;
+        if (count > 0) {
+            int[] newMapsIDs = CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(count), getMainThread()).join();
+            for (int i = 0; i < count; i++) {
+                mapsIDs[newIndexes[i]] = newMapsIDs[i];
+                if (deduplicate) {
+                    posterTiles.put(tileHashes[newIndexes[i]], newMapsIDs[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < mapsIDs.length; i++) {
+            mapsIDs[i] = mapsIDs[sameAs[i]];
+        }
+
+        return Arrays.copyOf(newIndexes, count);
+    }
+
+    private static ImageMap renderSingle(final BufferedImage image, final DitherMode dither, final UUID playerUUID,
+                                         final String contentHash) throws Throwable {
+        PosterImage tile = new PosterImage(image, dither);
+        tile.splitImages();
+        return renderSingle(tile, playerUUID, contentHash);
     }
 
-    private static ImageMap renderSingle(final BufferedImage image, final UUID playerUUID) throws Throwable {
+    private static ImageMap renderSingle(final PosterImage tile, final UUID playerUUID, final String contentHash)
+            throws Throwable {
         MapManager.checkMapLimit(1, playerUUID);
 
+        String tileHash = tile.getTileHash(0);
+
+        Integer existingMapID = PluginConfiguration.DEDUPLICATE_TILES.get() ? MapManager.getMapIDByTile(tileHash) : null;
+        if (existingMapID != null) {
+            return MapManager.createMap(playerUUID, existingMapID, contentHash, tileHash);
+        }
+
         int mapID = CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(1)[0], getMainThread()).join();
 
-        ImageIOExecutor.saveImage(mapID, image);
+        ImageIOExecutor.saveImage(mapID, tile.getImageAt(0));
 
-        getMainThread().execute(() -> Renderer.installRenderer(image, mapID));
+        RunTask.budgeted(() -> Renderer.installRenderer(tile.getColorsAt(0), mapID));
 
-        return MapManager.createMap(playerUUID, mapID);
+        return MapManager.createMap(playerUUID, mapID, contentHash, tileHash);
     }
 
-    private static ImageMap renderPoster(final BufferedImage image, final UUID playerUUID) throws Throwable {
-        PosterImage poster = new PosterImage(image);
+    private static ImageMap renderPoster(final BufferedImage image, final DitherMode dither, final UUID playerUUID,
+                                         final String contentHash) throws Throwable {
+        PosterImage poster = new PosterImage(image, dither);
+        poster.splitImages();
+
+        return renderPoster(poster, playerUUID, contentHash);
+    }
 
+    private static ImageMap renderPoster(final PosterImage poster, final UUID playerUUID, final String contentHash)
+            throws Throwable {
         int mapCount = poster.getImagesCount();
         MapManager.checkMapLimit(mapCount, playerUUID);
 
-        int[] mapsIDs = CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(mapCount), getMainThread()).join();
+        String[] tileHashes = poster.getTileHashes();
+        int[] mapsIDs = new int[mapCount];
+        int[] newIndexes = allocateTiles(i -> i > 0 && poster.isTransparentAt(i), tileHashes, mapsIDs,
+                new HashMap<>());
+
+        drawTiles(poster, mapsIDs, newIndexes);
+
+        if (poster.getImage() != null) {
+            poster.getImage().flush();
+        }
+
+        return MapManager.createMap(poster, playerUUID, mapsIDs, contentHash, tileHashes);
+    }
+
+    /**
+     * Renders an animated image. Each frame is resized, matched to map colors and split
+     * once, and each part only keeps the changes between its frames. Parts which do not
+     * change during the animation are rendered as still maps.
+     *
+     * @param gif         The frames of the image.
+     * @param scaling     The scaling mode.
+     * @param dither      The way the pixels are matched to map colors.
+     * @param playerUUID  The owner of the new image.
+     * @param width       The width of the poster, in maps.
+     * @param height      The height of the poster, in maps.
+     * @param contentHash The hash of the source image, or {@code null}.
+     * @return The new image.
+     */
+    private static ImageMap renderAnimated(final GifReader gif, final ImageUtils.ScalingType scaling,
+                                           final DitherMode dither, final UUID playerUUID,
+                                           final int width, final int height, final String contentHash)
+            throws Throwable {
+        final boolean single = scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1;
+        final int frameCount = Math.min(gif.getFrameCount(), PluginConfiguration.ANIMATION_MAX_FRAMES.get());
+        final int[] delays = new int[gif.getFrameCount()];
+
+        PosterImage firstFrame = null;
+        TileAnimation.Builder[] animations = null;
+
+        for (int frame = 0; frame < frameCount; frame++) {
+            BufferedImage image = gif.readNextFrame(delays);
+            if (scaling == ImageUtils.ScalingType.NONE && frame == 0) {
+                // The reader draws the next frames over this one, but the first one is kept.
+                BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                copy.setData(image.getRaster());
+                image = copy;
+            }
+
+            PosterImage poster = new PosterImage(single
+                    ? scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT)
+                    : scaling.resize(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height), dither);
+            poster.splitImages();
+
+            if (firstFrame == null) {
+                MapManager.checkMapLimit(poster.getImagesCount(), playerUUID);
+
+                firstFrame = poster;
+                animations = new TileAnimation.Builder[poster.getImagesCount()];
+                for (int i = 0; i < animations.length; i++) {
+                    animations[i] = new TileAnimation.Builder(poster.getColorsAt(i));
+                }
+            } else {
+                for (int i = 0; i < animations.length; i++) {
+                    animations[i].addFrame(poster.getColorsAt(i));
+                }
+                poster.getImage().flush();
+            }
+        }
 
-        updateMap(poster, mapsIDs);
+        final PosterImage poster = firstFrame;
+        final int mapCount = animations.length;
+        final int[] frameDelays = Arrays.copyOf(delays, frameCount);
+        final TileAnimation[] tileAnimations = new TileAnimation[mapCount];
+        final String[] tileHashes = new String[mapCount];
+
+        for (int i = 0; i < mapCount; i++) {
+            TileAnimation animation = animations[i].build(frameDelays);
+            if (animation.isStatic()) {
+                tileHashes[i] = poster.getTileHash(i);
+            } else {
+                tileAnimations[i] = animation;
+                tileHashes[i] = animation.getHash();
+            }
+        }
+
+        int[] mapsIDs = new int[mapCount];
+        int[] newIndexes = allocateTiles(
+                i -> i > 0 && tileAnimations[i] == null && poster.isTransparentAt(i),
+                tileHashes, mapsIDs, new HashMap<>());
+
+        drawTiles(poster, mapsIDs, Arrays.stream(newIndexes).filter(i -> tileAnimations[i] == null).toArray());
+        drawAnimations(poster, tileAnimations, mapsIDs,
+                Arrays.stream(newIndexes).filter(i -> tileAnimations[i] != null).toArray());
 
         poster.getImage().flush();
 
-        return MapManager.createMap(poster, playerUUID, mapsIDs);
+        if (single) {
+            return MapManager.createMap(playerUUID, mapsIDs[0], contentHash, tileHashes[0]);
+        }
+        return MapManager.createMap(poster, playerUUID, mapsIDs, contentHash, tileHashes);
+    }
+
+    /**
+     * Saves and displays the given animated parts of a poster.
+     *
+     * @param firstFrame The first frame of the poster, split.
+     * @param animations The animations of the parts.
+     * @param mapsIDs    The Minecraft maps of the poster.
+     * @param indexes    The indexes of the parts to draw.
+     * @return A future completed once the parts are saved.
+     */
+    private static CompletableFuture<Void> drawAnimations(PosterImage firstFrame, TileAnimation[] animations,
+                                                          int[] mapsIDs, int[] indexes) {
+        CompletableFuture<?>[] saves = new CompletableFuture[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            saves[i] = ImageIOExecutor.saveAnimation(mapsIDs[index], firstFrame.getImageAt(index), animations[index]);
+            RunTask.budgeted(() -> AnimatedRenderer.installRenderer(animations[index], mapsIDs[index]));
+        }
+
+        return CompletableFuture.allOf(saves);
+    }
+
+    static boolean isStreamed(int mapCount) {
+        int streamingSize = PluginConfiguration.STREAMING_POSTER_SIZE.get();
+
+        // The full image is never built when streaming, so it cannot be saved.
+        return streamingSize > 0 && mapCount >= streamingSize && !PluginConfiguration.SAVE_FULL_IMAGE.get();
+    }
+
+    /**
+     * Renders a poster one line of maps at a time: each line is resized, split and saved
+     * before the next one is computed, so that the whole resized image is never in memory.
+     *
+     * @param resampler   The resampler resizing the source image to the size of the poster.
+     * @param dither      The way the pixels are matched to map colors.
+     * @param playerUUID  The owner of the new image.
+     * @param contentHash The hash of the source image, or {@code null}.
+     * @return The new image.
+     */
+    private static ImageMap renderPosterStreaming(final Resampler resampler, final DitherMode dither,
+                                                  final UUID playerUUID, final String contentHash)
+            throws Throwable {
+        final int columns = resampler.getBufferWidth() / ImageMap.WIDTH;
+        final int lines = resampler.getBufferHeight() / ImageMap.HEIGHT;
+        final int mapCount = columns * lines;
+        MapManager.checkMapLimit(mapCount, playerUUID);
+
+        String[] tileHashes = new String[mapCount];
+        int[] mapsIDs = new int[mapCount];
+        Map<String, Integer> posterTiles = new HashMap<>();
+        IntArrayList newMapsIDs = new IntArrayList();
+        CompletableFuture<Void> previousSaves = CompletableFuture.completedFuture(null);
+
+        try {
+            for (int line = 0; line < lines; line++) {
+                // The rows above the line are resized too when dithering, for the seams not to show.
+                int margin = Math.min(dither.getMargin(), line * ImageMap.HEIGHT);
+                PosterImage band = new PosterImage(
+                        resampler.resampleRows(line * ImageMap.HEIGHT - margin, (line + 1) * ImageMap.HEIGHT),
+                        ColorQuantizer.getDefault(), dither, margin);
+                band.splitImages();
+
+                String[] bandHashes = band.getTileHashes();
+                int[] bandMapsIDs = new int[columns];
+                final boolean firstLine = line == 0;
+                int[] newIndexes = allocateTiles(i -> (!firstLine || i > 0) && band.isTransparentAt(i), bandHashes,
+                        bandMapsIDs, posterTiles);
+                for (int i : newIndexes) {
+                    newMapsIDs.add(bandMapsIDs[i]);
+                }
+
+                // At most one line waits to be saved while the next one is computed.
+                previousSaves.join();
+                previousSaves = drawTiles(band, bandMapsIDs, newIndexes);
+
+                System.arraycopy(bandHashes, 0, tileHashes, line * columns, columns);
+                System.arraycopy(bandMapsIDs, 0, mapsIDs, line * columns, columns);
+            }
+
+            // The image is only created once all its maps are saved.
+            previousSaves.join();
+            return MapManager.createMap(columns, lines, playerUUID, mapsIDs, contentHash, tileHashes);
+        } catch (Throwable throwable) {
+            // The maps allocated for this poster are not used by any image: they are given back once
+            // the pending saves are over, so that their files are removed too.
+            previousSaves.exceptionally(ignored -> null).join();
+            final int[] releasedMapsIDs = newMapsIDs.toIntArray();
+            CompletableFuture.runAsync(() -> MapManager.releaseMapsIds(releasedMapsIDs), getMainThread());
+            throw throwable;
+        }
     }
 
-    private enum Extension {
-        png, jpg, jpeg, gif
+    /**
+     * The outcome of an image update.
+     *
+     * @param map          The updated image.
+     * @param updatedParts The number of parts which were redrawn.
+     * @param skippedParts The number of parts which were left untouched, as they did not change.
+     */
+    public record UpdateResult(ImageMap map, int updatedParts, int skippedParts) {
     }
 }
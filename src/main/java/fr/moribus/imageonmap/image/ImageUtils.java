@@ -36,9 +36,12 @@
 
 package fr.moribus.imageonmap.image;
 
-import fr.moribus.imageonmap.ImageOnMap;
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 /**
  * Various image-related utilities
@@ -46,14 +49,33 @@ import java.awt.image.BufferedImage;
 public class ImageUtils {
 
     /**
-     * Generates a resized buffer of the given source
+     * Whether images are resized with Java2D instead of the Lanczos resampler.
+     */
+    private static volatile boolean fastResizing = true;
+
+    /**
+     * Sets how the images are resized from now on.
+     *
+     * @param fast {@code true} to draw them with Java2D, much faster but sampling the
+     *             nearest pixel; {@code false} to filter them.
+     */
+    public static void setFastResizing(boolean fast) {
+        fastResizing = fast;
+    }
+
+    public static boolean isFastResizing() {
+        return fastResizing;
+    }
+
+    /**
+     * Prepares a resized buffer of the given source
      *
      * @param source       The source buffer to draw
      * @param destinationW resize width
      * @param destinationH resize height
-     * @return The new buffer, with the source buffer drawn on it
+     * @return The resampler drawing the source buffer on the new buffer
      */
-    private static BufferedImage resize(BufferedImage source, int destinationW, int destinationH, boolean covered) {
+    private static Resampler resize(BufferedImage source, int destinationW, int destinationH, boolean covered) {
         float ratioW = (float) destinationW / (float) source.getWidth();
         float ratioH = (float) destinationH / (float) source.getHeight();
         int finalW;
@@ -72,57 +94,117 @@ public class ImageUtils {
         x = (destinationW - finalW) / 2;
         y = (destinationH - finalH) / 2;
 
-        return drawImage(source,
+        return new Resampler(source,
                 destinationW, destinationH,
-                x, y, finalW, finalH);
+                x, y, finalW, finalH, fastResizing);
     }
 
     /**
      * @param source       The source buffer to draw
      * @param destinationW resize width
      * @param destinationH resize height
-     * @return The new buffer, with the source buffer drawn on it
+     * @return The resampler drawing the source buffer on the new buffer
      */
-    private static BufferedImage resizeStretched(BufferedImage source, int destinationW, int destinationH) {
-        return drawImage(source,
+    private static Resampler resizeStretched(BufferedImage source, int destinationW, int destinationH) {
+        return new Resampler(source,
                 destinationW, destinationH,
-                0, 0, destinationW, destinationH);
+                0, 0, destinationW, destinationH, fastResizing);
     }
 
     /**
-     * Draws the source image on a new buffer, and returns it.
-     * The source buffer can be drawn at any size and position in the new buffer.
+     * Computes a hash of the decoded pixels of an image, and of the way it is going
+     * to be rendered. Two renders with the same hash produce the same maps.
      *
-     * @param source  The source buffer to draw
-     * @param bufferW The width of the new buffer
-     * @param bufferH The height of the new buffer
-     * @param posX    The X position of the source buffer
-     * @param posY    The Y position of the source buffer
-     * @param sourceW The width of the source buffer
-     * @param sourceH The height of the source buffer
-     * @return The new buffer, with the source buffer drawn on it
+     * @param source  The decoded image.
+     * @param scaling The scaling mode.
+     * @param dither  The dithering mode.
+     * @param width   The target width, in maps.
+     * @param height  The target height, in maps.
+     * @return The hash, as an hexadecimal string.
      */
-    private static BufferedImage drawImage(BufferedImage source,
-                                           int bufferW, int bufferH,
-                                           int posX, int posY,
-                                           int sourceW, int sourceH) {
-        Graphics graphics;
-        BufferedImage newImage = null;
-        try {
-            newImage = new BufferedImage(bufferW, bufferH, BufferedImage.TYPE_INT_ARGB);
-
-            graphics = newImage.getGraphics();
-            graphics.drawImage(source, posX, posY, sourceW, sourceH, null);
-
-            return newImage;
-        } catch (final Throwable e) {
-            ImageOnMap.getPlugin().getLogger().warning("Exception/error at drawImage");
-            if (newImage != null) {
-                newImage.flush();//Safe to free
-            }
-            throw e;
+    public static String contentHash(BufferedImage source, ScalingType scaling, DitherMode dither,
+                                     int width, int height) {
+        MessageDigest digest = newDigest();
+
+        int imageWidth = source.getWidth();
+        int imageHeight = source.getHeight();
+        int[] row = new int[imageWidth];
+        ByteBuffer buffer = ByteBuffer.allocate(imageWidth * Integer.BYTES);
+
+        for (int y = 0; y < imageHeight; y++) {
+            source.getRGB(0, y, imageWidth, 1, row, 0, imageWidth);
+            buffer.clear();
+            buffer.asIntBuffer().put(row);
+            digest.update(buffer);
+        }
+
+        digest.update(ByteBuffer.allocate(Integer.BYTES * 5)
+                .putInt(imageWidth).putInt(imageHeight)
+                .putInt(scaling.ordinal()).putInt(width).putInt(height)
+                .flip());
+
+        // Undithered renders keep the hashes they had before dithering existed.
+        if (dither != DitherMode.NONE) {
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(dither.ordinal()).flip());
         }
 
+        // Both resamplers give different maps, which must not be shared.
+        if (fastResizing && scaling != ScalingType.NONE) {
+            digest.update((byte) 1);
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Computes a hash of the colors of a map tile. Tiles with the same hash can be
+     * displayed using the same Minecraft map.
+     *
+     * @param colors The map colors of the tile.
+     * @return The hash, as an hexadecimal string.
+     */
+    public static String tileHash(byte[] colors) {
+        MessageDigest digest = newDigest();
+        digest.update(colors);
+        return tileHash(digest);
+    }
+
+    static String tileHash(MessageDigest digest) {
+        // 128 bits are plenty to tell tiles apart, and keep the maps files small.
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /**
+     * Computes a hash of an animated image, and of the way it is going to be rendered.
+     * The decoded pixels only cover the first frame, so the file itself is hashed too.
+     *
+     * @param contentHash The {@link #contentHash content hash} of the first frame.
+     * @param data        The image file.
+     * @return The hash, as an hexadecimal string.
+     */
+    public static String animationHash(String contentHash, byte[] data) {
+        MessageDigest digest = newDigest();
+        digest.update(contentHash.getBytes(StandardCharsets.US_ASCII));
+        digest.update(data);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Computes a hash of raw data, e.g. a downloaded file.
+     *
+     * @param data The data.
+     * @return The hash, as an hexadecimal string.
+     */
+    public static String dataHash(byte[] data) {
+        return HexFormat.of().formatHex(newDigest().digest(data));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
     }
 
     public enum ScalingType {
@@ -133,11 +215,21 @@ public class ImageUtils {
         ;
 
         public BufferedImage resize(BufferedImage source, int destinationW, int destinationH) {
+            Resampler resampler = prepare(source, destinationW, destinationH);
+            return resampler != null ? resampler.resampleRows(0, destinationH) : source;
+        }
+
+        /**
+         * Prepares the resizing of an image, so that it can be computed band by band.
+         *
+         * @return The resampler, or {@code null} if this scaling does not resize images.
+         */
+        Resampler prepare(BufferedImage source, int destinationW, int destinationH) {
             return switch (this) {
                 case CONTAINED -> ImageUtils.resize(source, destinationW, destinationH, false);
                 case COVERED -> ImageUtils.resize(source, destinationW, destinationH, true);
                 case STRETCHED -> resizeStretched(source, destinationW, destinationH);
-                default -> source;
+                default -> null;
             };
         }
     }
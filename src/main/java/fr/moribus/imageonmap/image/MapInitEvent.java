@@ -37,7 +37,9 @@
 package fr.moribus.imageonmap.image;
 
 import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.MapOwnership;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -79,14 +81,25 @@ public class MapInitEvent implements Listener {
 
     @SuppressWarnings("deprecation")
     public static void initMap(int id) {
+        // Vanilla maps, and maps already displayed, are the most common by far.
+        if (!MapManager.managesMap(id) || MapOwnership.isRendered(id)) {
+            return;
+        }
         initMap(Bukkit.getServer().getMap(id));
     }
 
+    @SuppressWarnings("deprecation")
     public static void initMap(MapView map) {
         if (map == null) {
             return;
         }
-        if (Renderer.isHandled(map)) {
+        if (!MapManager.managesMap(map.getId()) || Renderer.isHandled(map)) {
+            return;
+        }
+
+        Path animationFile = ImageOnMap.getPlugin().getAnimationFile(map.getId());
+        if (PluginConfiguration.ANIMATIONS.get() && Files.isRegularFile(animationFile)) {
+            ImageIOExecutor.loadAnimation(animationFile, AnimatedRenderer.installRenderer(map));
             return;
         }
 
@@ -0,0 +1,154 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.MapSource;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Refreshes periodically the images bound to an URL.
+ * Everything here happens on the main thread, except the refreshes themselves.
+ */
+public final class MapRefreshScheduler {
+    private static final long CHECK_PERIOD = 20L;
+
+    private static final Map<ImageMap, Long> nextRefreshes = new IdentityHashMap<>();
+    private static BukkitTask task;
+    private static int runningRefreshes = 0;
+
+    private MapRefreshScheduler() {
+    }
+
+    public static void init() {
+        long now = System.currentTimeMillis();
+
+        for (ImageMap map : MapManager.getAllMaps()) {
+            MapSource source = map.getSource();
+            if (source != null && source.getRefreshInterval() > 0) {
+                // The first refreshes are spread, so that they do not all happen when the server starts.
+                nextRefreshes.put(map, now + ThreadLocalRandom.current().nextLong(getInterval(source)));
+            }
+        }
+
+        task = RunTask.timer(MapRefreshScheduler::checkRefreshes, CHECK_PERIOD, CHECK_PERIOD);
+    }
+
+    public static void exit() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        nextRefreshes.clear();
+    }
+
+    /**
+     * Schedules the next refresh of an image, after its refresh interval.
+     * Images without a refresh interval are unscheduled.
+     *
+     * @param map The image.
+     */
+    public static void schedule(ImageMap map) {
+        MapSource source = map.getSource();
+        if (source == null || source.getRefreshInterval() <= 0) {
+            nextRefreshes.remove(map);
+            return;
+        }
+
+        long interval = getInterval(source);
+
+        // A jitter of ±10% keeps images refreshed at the same time from staying in sync.
+        long jitter = ThreadLocalRandom.current().nextLong(-interval / 10, interval / 10 + 1);
+        nextRefreshes.put(map, System.currentTimeMillis() + interval + jitter);
+    }
+
+    private static long getInterval(MapSource source) {
+        return TimeUnit.MINUTES.toMillis(
+                Math.max(source.getRefreshInterval(), PluginConfiguration.REFRESH_MIN_INTERVAL.get()));
+    }
+
+    private static void checkRefreshes() {
+        final long now = System.currentTimeMillis();
+        final int maxRefreshes = PluginConfiguration.REFRESH_MAX_CONCURRENT.get();
+
+        Iterator<Map.Entry<ImageMap, Long>> iterator = nextRefreshes.entrySet().iterator();
+        while (runningRefreshes < maxRefreshes && iterator.hasNext()) {
+            Map.Entry<ImageMap, Long> entry = iterator.next();
+            if (entry.getValue() > now) {
+                continue;
+            }
+
+            ImageMap map = entry.getKey();
+            iterator.remove();
+
+            // The image may have been deleted since its refresh was scheduled.
+            if (MapManager.getMap(map.getUserUUID(), map.getId()) != map) {
+                continue;
+            }
+
+            runningRefreshes++;
+            ImageRendererExecutor.refresh(map).whenCompleteAsync((result, throwable) -> {
+                runningRefreshes--;
+
+                if (throwable != null) {
+                    Throwable cause = throwable;
+                    while (cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+
+                    ImageOnMap.getPlugin().getLogger().log(Level.WARNING, "Could not refresh the image "
+                            + map.getId() + " of " + map.getUserUUID() + ": " + cause.getMessage());
+                }
+
+                if (task != null) {
+                    schedule(map);
+                }
+            }, ImageRendererExecutor.getMainThread());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.ui.FrameRegistry;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.map.MapView;
+import org.bukkit.util.Vector;
+
+/**
+ * Sends the maps around a player who just arrived somewhere, the closest ones and the ones
+ * in front of them first, instead of letting them fill in in any order.
+ */
+public class MapStreamer implements Listener {
+    /**
+     * The destination chunks and their item frames are loaded a few ticks after the player arrives.
+     */
+    private static final long STREAM_DELAY = 5L;
+
+    public static void init() {
+        Bukkit.getPluginManager().registerEvents(new MapStreamer(), ImageOnMap.getPlugin());
+    }
+
+    /**
+     * Sends the maps around a player, in the order they are likely to look at them.
+     *
+     * @param player The player.
+     */
+    public static void stream(Player player) {
+        final int radius = PluginConfiguration.MAP_STREAMING_RADIUS.get();
+        if (radius <= 0 || !player.isOnline()) {
+            return;
+        }
+
+        final Location eye = player.getEyeLocation();
+        final Vector direction = eye.getDirection();
+        final Map<MapView, Double> priorities = new HashMap<>();
+
+        // The maps in hand are the first ones the player sees.
+        addMap(priorities, player.getInventory().getItemInMainHand(), 0);
+        addMap(priorities, player.getInventory().getItemInOffHand(), 0);
+
+        // The frames are found even if their chunk is not loaded yet.
+        FrameRegistry.forEachFrameAround(eye, radius, (mapID, x, y, z, frameFacing) -> {
+            Vector toFrame = new Vector(x + 0.5, y + 0.5, z + 0.5).subtract(eye.toVector());
+            double distance = toFrame.length();
+
+            // Frames behind the player come up to three times later than frames in front of them.
+            double facing = distance > 0 ? direction.dot(toFrame) / distance : 1;
+            addMap(priorities, mapID, distance * (2 - facing));
+        });
+
+        if (priorities.isEmpty()) {
+            return;
+        }
+
+        List<MapView> maps = new ArrayList<>(priorities.keySet());
+        maps.sort(Comparator.comparingDouble(priorities::get));
+        MapUpdateScheduler.stream(player, maps);
+    }
+
+    private static void addMap(Map<MapView, Double> priorities, ItemStack item, double priority) {
+        if (item != null && item.getType() == Material.FILLED_MAP) {
+            addMap(priorities, MapManager.getMapIdFromItemStack(item), priority);
+        }
+    }
+
+    private static void addMap(Map<MapView, Double> priorities, int mapID, double priority) {
+        @SuppressWarnings("deprecation")
+        MapView map = Bukkit.getMap(mapID);
+        MapInitEvent.initMap(map);
+
+        if (Renderer.isHandled(map)) {
+            priorities.merge(map, priority, Math::min);
+        }
+    }
+
+    private static void streamLater(Player player) {
+        RunTask.later(() -> stream(player), STREAM_DELAY);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        streamLater(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        streamLater(event.getPlayer());
+    }
+
+    @EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        // The client forgets its maps when it changes of world.
+        MapUpdateScheduler.forgetSentMaps(event.getPlayer());
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        MapUpdateScheduler.forgetSentMaps(event.getPlayer());
+    }
+}
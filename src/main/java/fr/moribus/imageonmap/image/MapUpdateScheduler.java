@@ -0,0 +1,289 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.map.MapView;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Sends the maps whose content changed to the players who can see them.
+ *
+ * <p>Minecraft only sends maps again when their vanilla content changes, so the maps we
+ * redraw have to be sent by hand. A player is seeing a map if it was rendered for them
+ * recently, i.e. they hold it or are close enough to an item frame holding it. The maps
+ * changed during a tick are sent once, and each player only receives a few maps per tick;
+ * the others wait for the next ticks. Everything here happens on the main thread, except
+ * {@link #requestUpdate(MapView)}.</p>
+ */
+public final class MapUpdateScheduler {
+    /**
+     * Item frames are rendered every 10 ticks to the players around: a player who did not
+     * render a map for longer than this cannot see it anymore.
+     */
+    private static final long VIEWER_TIMEOUT = 2000L;
+    private static final long CLEANUP_PERIOD = 100L;
+
+    private static final Map<Integer, Map<UUID, Long>> viewers = new HashMap<>();
+    private static final Set<MapView> changedMaps = ConcurrentHashMap.newKeySet();
+    private static final Map<UUID, Set<MapView>> pendingMaps = new LinkedHashMap<>();
+    private static final Map<Integer, Integer> versions = new ConcurrentHashMap<>();
+    private static final Map<UUID, Map<Integer, Integer>> sentVersions = new HashMap<>();
+    private static final Set<AnimatedRenderer> animations = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private static BukkitTask task;
+    private static long ticks = 0;
+    private static boolean pushing = false;
+
+    private MapUpdateScheduler() {
+    }
+
+    public static void init() {
+        task = RunTask.timer(MapUpdateScheduler::sendUpdates, 1L, 1L);
+    }
+
+    public static void exit() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        viewers.clear();
+        changedMaps.clear();
+        pendingMaps.clear();
+        versions.clear();
+        sentVersions.clear();
+        animations.clear();
+    }
+
+    /**
+     * Sends a map again to the players seeing it, as its content changed.
+     * Can be called from any thread.
+     *
+     * @param map The map.
+     */
+    public static void requestUpdate(MapView map) {
+        versions.merge(map.getId(), 1, Integer::sum);
+        changedMaps.add(map);
+    }
+
+    /**
+     * Sends maps to a player before the other maps waiting for them, in the given order.
+     * The maps the player already received, and which did not change since, are skipped.
+     * The player is considered to be seeing all of them, so that they receive them once
+     * they are loaded, and their next changes.
+     *
+     * @param player The player.
+     * @param maps   The maps, in the order they should be sent.
+     */
+    static void stream(Player player, List<MapView> maps) {
+        final UUID uuid = player.getUniqueId();
+        final long now = System.currentTimeMillis();
+        final Map<Integer, Integer> sent = sentVersions.getOrDefault(uuid, Collections.emptyMap());
+        final Set<MapView> queue = new LinkedHashSet<>();
+
+        for (MapView map : maps) {
+            viewers.computeIfAbsent(map.getId(), id -> new HashMap<>()).put(uuid, now);
+
+            // Maps still loading are sent when they are loaded, like any other change.
+            Renderer renderer = Renderer.getRenderer(map);
+            if (renderer == null || !renderer.isLoaded()) {
+                continue;
+            }
+
+            Integer sentVersion = sent.get(map.getId());
+            if (sentVersion == null || !sentVersion.equals(versions.getOrDefault(map.getId(), 0))) {
+                queue.add(map);
+            }
+        }
+
+        Set<MapView> pending = pendingMaps.remove(uuid);
+        if (pending != null) {
+            queue.addAll(pending);
+        }
+        if (!queue.isEmpty()) {
+            pendingMaps.put(uuid, queue);
+        }
+    }
+
+    /**
+     * Forgets which maps a player received, e.g. because their client dropped them.
+     *
+     * @param player The player.
+     */
+    static void forgetSentMaps(Player player) {
+        sentVersions.remove(player.getUniqueId());
+    }
+
+    static void registerAnimation(AnimatedRenderer renderer) {
+        animations.add(renderer);
+    }
+
+    static void unregisterAnimation(AnimatedRenderer renderer) {
+        animations.remove(renderer);
+    }
+
+    /**
+     * Records that a map was rendered for a player, i.e. that the player is seeing it.
+     *
+     * @param map    The map.
+     * @param player The player.
+     */
+    static void addViewer(MapView map, Player player) {
+        // The maps we send ourselves are not a sign that the player is around.
+        if (!pushing) {
+            viewers.computeIfAbsent(map.getId(), id -> new HashMap<>())
+                    .put(player.getUniqueId(), System.currentTimeMillis());
+        }
+    }
+
+    private static void sendUpdates() {
+        final long now = System.currentTimeMillis();
+
+        // Animations only move forward while someone is watching them.
+        for (AnimatedRenderer animation : animations) {
+            if (viewers.containsKey(animation.getMap().getId()) && animation.hasNewFrame(now)) {
+                changedMaps.add(animation.getMap());
+            }
+        }
+
+        Iterator<MapView> changes = changedMaps.iterator();
+        while (changes.hasNext()) {
+            MapView map = changes.next();
+            changes.remove();
+
+            Map<UUID, Long> mapViewers = viewers.get(map.getId());
+            if (mapViewers == null) {
+                continue;
+            }
+
+            Iterator<Map.Entry<UUID, Long>> iterator = mapViewers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<UUID, Long> viewer = iterator.next();
+                if (now - viewer.getValue() > VIEWER_TIMEOUT) {
+                    iterator.remove();
+                } else {
+                    pendingMaps.computeIfAbsent(viewer.getKey(), uuid -> new LinkedHashSet<>()).add(map);
+                }
+            }
+
+            if (mapViewers.isEmpty()) {
+                viewers.remove(map.getId());
+            }
+        }
+
+        if (!pendingMaps.isEmpty()) {
+            sendPendingMaps();
+        }
+
+        if (++ticks % CLEANUP_PERIOD == 0) {
+            removeOldViewers(now);
+        }
+    }
+
+    private static void sendPendingMaps() {
+        final int budget = PluginConfiguration.MAP_UPDATES_PER_TICK.get();
+        final long start = System.nanoTime();
+        final long timeBudget = RunTask.getTickBudget();
+        final List<Map.Entry<UUID, Set<MapView>>> served = new ArrayList<>();
+
+        pushing = true;
+        try {
+            Iterator<Map.Entry<UUID, Set<MapView>>> players = pendingMaps.entrySet().iterator();
+            while (players.hasNext()) {
+                // Rendering the maps takes time too: the players left are served first next tick.
+                if (!served.isEmpty() && System.nanoTime() - start > timeBudget) {
+                    break;
+                }
+
+                Map.Entry<UUID, Set<MapView>> entry = players.next();
+                players.remove();
+
+                Player player = Bukkit.getPlayer(entry.getKey());
+                if (player == null) {
+                    continue;
+                }
+
+                Map<Integer, Integer> sent = sentVersions.computeIfAbsent(entry.getKey(), uuid -> new HashMap<>());
+                Iterator<MapView> maps = entry.getValue().iterator();
+                for (int count = 0; count < budget && maps.hasNext(); count++) {
+                    MapView map = maps.next();
+                    maps.remove();
+
+                    player.sendMap(map);
+                    sent.put(map.getId(), versions.getOrDefault(map.getId(), 0));
+                }
+
+                served.add(entry);
+            }
+        } finally {
+            pushing = false;
+
+            for (Map.Entry<UUID, Set<MapView>> entry : served) {
+                if (!entry.getValue().isEmpty()) {
+                    pendingMaps.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static void removeOldViewers(long now) {
+        Iterator<Map<UUID, Long>> maps = viewers.values().iterator();
+        while (maps.hasNext()) {
+            Map<UUID, Long> mapViewers = maps.next();
+            mapViewers.values().removeIf(lastSeen -> now - lastSeen > VIEWER_TIMEOUT);
+            if (mapViewers.isEmpty()) {
+                maps.remove();
+            }
+        }
+    }
+}
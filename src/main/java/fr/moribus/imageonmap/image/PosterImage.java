@@ -36,19 +36,29 @@
 
 package fr.moribus.imageonmap.image;
 
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
 
 /**
- * This class represents an image split into pieces
+ * This class represents an image split into pieces.
+ * The pieces are read directly from the pixels of the image, without copying them.
  */
 public class PosterImage {
 
-    private static final int WIDTH = 128;
-    private static final int HEIGHT = 128;
+    static final int WIDTH = 128;
+    static final int HEIGHT = 128;
 
     private final BufferedImage originalImage;
+    private final int[] pixels;
+    private final ColorQuantizer quantizer;
+    private final DitherMode dither;
+    private final int marginTop;
 
-    private BufferedImage[] cutImages;
+    private byte[][] tilesColors;
+    private String[] tilesHashes;
+    private boolean[] tilesTransparency;
     private int lines;
     private int columns;
     private int cutImagesCount;
@@ -61,13 +71,96 @@ public class PosterImage {
      * @param originalImage the original image
      */
     public PosterImage(BufferedImage originalImage) {
-        this.originalImage = originalImage;
+        this(originalImage, ColorQuantizer.getDefault(), DitherMode.NONE, 0);
+    }
+
+    /**
+     * Creates a new Poster from an entire image
+     *
+     * @param originalImage the original image
+     * @param dither        the way the pixels are matched to map colors
+     */
+    public PosterImage(BufferedImage originalImage, DitherMode dither) {
+        this(originalImage, ColorQuantizer.getDefault(), dither, 0);
+    }
+
+    /**
+     * Creates a new Poster from a part of an image
+     *
+     * @param originalImage the part of the image
+     * @param quantizer     the quantizer converting the pixels to map colors
+     * @param dither        the way the pixels are matched to map colors
+     * @param marginTop     the rows at the top of the image which are not part of the poster,
+     *                      only used to dither the rows below like the whole image
+     */
+    public PosterImage(BufferedImage originalImage, ColorQuantizer quantizer, DitherMode dither, int marginTop) {
+        this.originalImage = toIntARGB(originalImage);
+        this.pixels = ((DataBufferInt) this.originalImage.getRaster().getDataBuffer()).getData();
+        this.quantizer = quantizer;
+        this.dither = dither;
+        this.marginTop = marginTop;
         calculateDimensions();
     }
 
+    /**
+     * Creates a new Poster from pieces already converted to map colors, e.g. by the
+     * {@link RenderWorker render worker}. It is already split, and has no image.
+     *
+     * @param columns     the number of columns of the poster
+     * @param lines       the number of lines of the poster
+     * @param tilesColors the map colors of each piece, line by line
+     * @param quantizer   the quantizer the colors were matched with
+     */
+    public PosterImage(int columns, int lines, byte[][] tilesColors, ColorQuantizer quantizer) {
+        this.originalImage = null;
+        this.pixels = null;
+        this.quantizer = quantizer;
+        this.dither = DitherMode.NONE;
+        this.marginTop = 0;
+        this.columns = columns;
+        this.lines = lines;
+        this.cutImagesCount = columns * lines;
+
+        this.tilesColors = tilesColors;
+        this.tilesHashes = new String[cutImagesCount];
+        this.tilesTransparency = new boolean[cutImagesCount];
+
+        IntStream.range(0, cutImagesCount).parallel().forEach(i -> {
+            tilesHashes[i] = ImageUtils.tileHash(tilesColors[i]);
+
+            boolean transparent = true;
+            for (byte color : tilesColors[i]) {
+                if (color != ColorQuantizer.TRANSPARENT) {
+                    transparent = false;
+                    break;
+                }
+            }
+            tilesTransparency[i] = transparent;
+        });
+    }
+
+    /**
+     * The pixels are read straight from the data buffer, so the image must be
+     * a standalone ARGB one; resized images already are.
+     */
+    private static BufferedImage toIntARGB(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getParent() == null) {
+            return image;
+        }
+
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = converted.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return converted;
+    }
+
     private void calculateDimensions() {
         int originalWidth = originalImage.getWidth();
-        int originalHeight = originalImage.getHeight();
+        int originalHeight = originalImage.getHeight() - marginTop;
 
         columns = (int) Math.ceil((double) originalWidth / WIDTH);
         lines = (int) Math.ceil((double) originalHeight / HEIGHT);
@@ -86,49 +179,100 @@ public class PosterImage {
         cutImagesCount = columns * lines;
     }
 
+    /**
+     * Converts each piece to map colors, and computes its hash. The pieces are processed in parallel.
+     */
     public void splitImages() {
-        try {
-            cutImages = new BufferedImage[cutImagesCount];
-
-            int imageX;
-            int imageY = remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2;
-            for (int i = 0; i < lines; i++) {
-                imageX = remainderX == 0 ? 0 : (remainderX - WIDTH) / 2;
-                for (int j = 0; j < columns; j++) {
-                    cutImages[i * columns + j] = makeSubImage(originalImage, imageX, imageY);
-                    imageX += WIDTH;
-                }
-                imageY += HEIGHT;
+        tilesColors = new byte[cutImagesCount][];
+        tilesHashes = new String[cutImagesCount];
+        tilesTransparency = new boolean[cutImagesCount];
+
+        // Undithered pixels are matched on their own, while splitting.
+        final byte[] colors = dither == DitherMode.NONE ? null
+                : dither.apply(pixels, originalImage.getWidth(), originalImage.getHeight(), quantizer);
+
+        IntStream.range(0, cutImagesCount).parallel().forEach(i -> splitImage(i, colors));
+    }
+
+    private void splitImage(int i, byte[] imageColors) {
+        final int imageWidth = originalImage.getWidth();
+        final int imageHeight = originalImage.getHeight();
+        final int tileX = getTileX(i);
+        final int tileY = getTileY(i) + marginTop;
+
+        final byte[] colors = new byte[WIDTH * HEIGHT];
+        boolean transparent = true;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            final int imageY = tileY + y;
+            if (imageY < marginTop || imageY >= imageHeight) {
+                // Pieces on the edges may go past the image: this part is transparent.
+                continue;
             }
-        } catch (final Throwable e) {
-            if (cutImages != null) {
-                for (BufferedImage bi : cutImages) {
-                    if (bi != null) {
-                        bi.flush();//Safe to free
-                    }
+
+            for (int x = 0; x < WIDTH; x++) {
+                final int imageX = tileX + x;
+                if (imageX < 0 || imageX >= imageWidth) {
+                    continue;
                 }
+
+                final int index = imageY * imageWidth + imageX;
+                final byte color = imageColors != null ? imageColors[index] : quantizer.quantize(pixels[index]);
+                colors[y * WIDTH + x] = color;
+                transparent &= color == ColorQuantizer.TRANSPARENT;
             }
-            throw e;
         }
+
+        tilesColors[i] = colors;
+        tilesHashes[i] = ImageUtils.tileHash(colors);
+        tilesTransparency[i] = transparent;
+    }
+
+    private int getTileX(int i) {
+        return (remainderX == 0 ? 0 : (remainderX - WIDTH) / 2) + (i % columns) * WIDTH;
+    }
+
+    private int getTileY(int i) {
+        return (remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2) + (i / columns) * HEIGHT;
     }
 
     /**
-     * Generates the subimage that intersects with the given map rectangle.
-     *
-     * @param x X coordinate of top-left point of the map.
-     * @param y Y coordinate of top-left point of the map.
-     * @return the requested subimage.
+     * @param i The index of the split image.
+     * @return the split image, as displayed on the map.
      */
-    private BufferedImage makeSubImage(BufferedImage originalImage, int x, int y) {
-        BufferedImage newImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    public BufferedImage getImageAt(int i) {
+        return quantizer.toImage(tilesColors[i]);
+    }
 
-        newImage.getGraphics().drawImage(originalImage, -x, -y, null);
+    /**
+     * @param i The index of the split image.
+     * @return the map colors of this split image, row by row.
+     */
+    public byte[] getColorsAt(int i) {
+        return tilesColors[i];
+    }
 
-        return newImage;
+    /**
+     * @param i The index of the split image.
+     * @return the hash of this split image, see {@link ImageUtils#tileHash(byte[])}.
+     */
+    public String getTileHash(int i) {
+        return tilesHashes[i];
     }
 
-    public BufferedImage getImageAt(int i) {
-        return cutImages[i];
+    /**
+     * @return the hashes of all the split images, in order.
+     */
+    public String[] getTileHashes() {
+        return tilesHashes.clone();
+    }
+
+    /**
+     * @param i The index of the split image.
+     * @return {@code true} if this split image would be fully transparent on a map.
+     */
+    public boolean isTransparentAt(int i) {
+        return tilesTransparency[i];
     }
 
     public BufferedImage getImage() {
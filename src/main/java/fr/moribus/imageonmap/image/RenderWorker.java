@@ -0,0 +1,253 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The render worker: a separate JVM, started by {@link RenderWorkerClient} from the plugin
+ * jar, which downloads, resizes and converts images to map colors. The server only gets the
+ * map colors of the tiles back, so that the memory used while rendering does not add to its
+ * garbage collection pauses.
+ *
+ * <p>Jobs are read from the standard input and results written to the standard output, once
+ * the server sent the palette to use. The worker stops when its standard input is closed.
+ * This class, and the ones it uses, must not depend on the server.</p>
+ */
+public final class RenderWorker {
+    static final int MAGIC = 0x494F4D57;
+    static final int VERSION = 1;
+
+    static final byte STATUS_DONE = 0;
+    static final byte STATUS_ANIMATED = 1;
+    static final byte STATUS_INVALID_IMAGE = 2;
+    static final byte STATUS_TOO_WIDE = 3;
+    static final byte STATUS_TOO_TALL = 4;
+    static final byte STATUS_FAILED = 5;
+
+    /**
+     * The system property telling the worker to resize images as {@link ImageUtils#setFastResizing} does.
+     */
+    static final String FAST_RESIZING_PROPERTY = "imageonmap.fastResizing";
+
+    /**
+     * The system property giving the maximum size of the downloaded files, in bytes.
+     */
+    static final String DOWNLOAD_MAX_SIZE_PROPERTY = "imageonmap.downloadMaxSize";
+
+    private static final int THREADS = 2;
+
+    private final ColorQuantizer quantizer;
+    private final DataOutputStream output;
+    private final long downloadMaxSize;
+
+    private RenderWorker(ColorQuantizer quantizer, DataOutputStream output, long downloadMaxSize) {
+        this.quantizer = quantizer;
+        this.output = output;
+        this.downloadMaxSize = downloadMaxSize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+        // Anything printed by mistake must not end up in the results.
+        System.setOut(System.err);
+
+        ImageUtils.setFastResizing(Boolean.getBoolean(FAST_RESIZING_PROPERTY));
+
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            System.err.println("This render worker does not match the version of the plugin.");
+            System.exit(1);
+        }
+
+        int[] palette = new int[input.readInt()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = input.readInt();
+        }
+
+        RenderWorker worker = new RenderWorker(new ColorQuantizer(palette), output,
+                Long.getLong(DOWNLOAD_MAX_SIZE_PROPERTY, 20L * 1024 * 1024));
+        output.writeInt(MAGIC);
+        output.flush();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            while (true) {
+                Job job = Job.read(input);
+                executor.execute(() -> worker.run(job));
+            }
+        } catch (EOFException e) {
+            // The server does not need the worker anymore.
+        }
+
+        executor.shutdownNow();
+        System.exit(0);
+    }
+
+    private void run(Job job) {
+        try {
+            ImageDownloader.DownloadedImage download = ImageDownloader.download(new URL(job.url()), downloadMaxSize);
+            BufferedImage image = download.image();
+
+            if (image == null) {
+                respond(job.id(), STATUS_INVALID_IMAGE);
+                return;
+            }
+            if (job.limitX() > 0 && image.getWidth() > job.limitX()) {
+                respond(job.id(), STATUS_TOO_WIDE);
+                return;
+            }
+            if (job.limitY() > 0 && image.getHeight() > job.limitY()) {
+                respond(job.id(), STATUS_TOO_TALL);
+                return;
+            }
+
+            // Animations are rendered by the server, which keeps their frames.
+            if (job.animations()) {
+                try (GifReader gif = GifReader.open(download.data())) {
+                    if (gif != null) {
+                        respond(job.id(), STATUS_ANIMATED);
+                        return;
+                    }
+                }
+            }
+
+            String contentHash = ImageUtils.contentHash(image, job.scaling(), job.dither(), job.width(), job.height());
+
+            BufferedImage resized = job.isSingle()
+                    ? job.scaling().resize(image, PosterImage.WIDTH, PosterImage.HEIGHT)
+                    : job.scaling().resize(image, PosterImage.WIDTH * job.width(), PosterImage.HEIGHT * job.height());
+            image.flush();
+
+            PosterImage poster = new PosterImage(resized, quantizer, job.dither(), 0);
+            poster.splitImages();
+
+            synchronized (output) {
+                output.writeInt(job.id());
+                output.writeByte(STATUS_DONE);
+                output.writeUTF(contentHash);
+                output.writeInt(poster.getColumns());
+                output.writeInt(poster.getLines());
+                for (int i = 0; i < poster.getImagesCount(); i++) {
+                    output.write(poster.getColorsAt(i));
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            fail(job.id(), e.getMessage() != null ? e.getMessage() : e.toString());
+        } catch (Throwable t) {
+            fail(job.id(), t.toString());
+        }
+    }
+
+    private void respond(int id, byte status) throws IOException {
+        synchronized (output) {
+            output.writeInt(id);
+            output.writeByte(status);
+            output.flush();
+        }
+    }
+
+    private void fail(int id, String message) {
+        try {
+            synchronized (output) {
+                output.writeInt(id);
+                output.writeByte(STATUS_FAILED);
+                output.writeUTF(message);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The server is gone.
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A render, as sent to the worker.
+     *
+     * @param id         The identifier of the render, to match the result with.
+     * @param url        The URL of the image.
+     * @param scaling    The scaling mode.
+     * @param dither     The dithering mode.
+     * @param width      The width of the poster, in maps.
+     * @param height     The height of the poster, in maps.
+     * @param limitX     The maximum width of the image, in pixels, or 0.
+     * @param limitY     The maximum height of the image, in pixels, or 0.
+     * @param animations {@code true} if animated images are rendered as animations.
+     */
+    record Job(int id, String url, ImageUtils.ScalingType scaling, DitherMode dither, int width, int height,
+               int limitX, int limitY, boolean animations) {
+
+        /**
+         * @return {@code true} if the image is rendered on a single map.
+         */
+        boolean isSingle() {
+            return scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1;
+        }
+
+        void write(DataOutputStream output) throws IOException {
+            output.writeInt(id);
+            output.writeUTF(url);
+            output.writeByte(scaling.ordinal());
+            output.writeByte(dither.ordinal());
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(limitX);
+            output.writeInt(limitY);
+            output.writeBoolean(animations);
+        }
+
+        static Job read(DataInputStream input) throws IOException {
+            return new Job(input.readInt(), input.readUTF(),
+                    ImageUtils.ScalingType.values()[input.readByte()], DitherMode.values()[input.readByte()],
+                    input.readInt(), input.readInt(), input.readInt(), input.readInt(), input.readBoolean());
+        }
+    }
+}
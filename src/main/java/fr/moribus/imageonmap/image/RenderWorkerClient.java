@@ -0,0 +1,336 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.i18n.I;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * Sends renders to the {@link RenderWorker render worker}, starting it when needed.
+ *
+ * <p>If the worker crashes, the renders it was running fail with a
+ * {@link WorkerUnavailableException}, so that they can be done in the server instead, and a
+ * new worker is started for the next ones. After too many crashes in a row, the worker is
+ * not used anymore until the plugin is restarted.</p>
+ */
+public final class RenderWorkerClient {
+    private static final int MAX_CRASHES = 3;
+    private static final long RENDER_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    private static final int TILE_SIZE = PosterImage.WIDTH * PosterImage.HEIGHT;
+
+    private static final Object lock = new Object();
+    private static final Map<Integer, CompletableFuture<Result>> pendingRenders = new ConcurrentHashMap<>();
+
+    private static Process process = null;
+    private static DataOutputStream output = null;
+    private static int nextRenderID = 0;
+    private static int crashes = 0;
+    private static volatile boolean disabled = false;
+
+    private RenderWorkerClient() {
+    }
+
+    /**
+     * @return {@code true} if renders should be sent to the worker.
+     */
+    public static boolean isEnabled() {
+        return PluginConfiguration.RENDER_WORKER.get() && !disabled;
+    }
+
+    /**
+     * Stops the worker. The renders it was running fail.
+     */
+    public static void exit() {
+        synchronized (lock) {
+            if (process != null) {
+                stop(process, new WorkerUnavailableException("The plugin is stopping"));
+            }
+        }
+    }
+
+    /**
+     * Renders an image in the worker.
+     *
+     * @return A future completed with the rendered tiles, or with {@code null} if the image is
+     *     animated and has to be rendered by the server. It fails with a
+     *     {@link WorkerUnavailableException} if the worker could not render it.
+     */
+    static CompletableFuture<Result> render(String url, ImageUtils.ScalingType scaling, DitherMode dither,
+                                            int width, int height, int limitX, int limitY, boolean animations) {
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        final Process renderProcess;
+
+        synchronized (lock) {
+            final int id = nextRenderID++;
+            RenderWorker.Job job = new RenderWorker.Job(id, url, scaling, dither, width, height, limitX, limitY,
+                    animations);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                job.write(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            try {
+                start();
+                pendingRenders.put(id, future);
+                bytes.writeTo(output);
+                output.flush();
+            } catch (IOException e) {
+                crashed(process, e);
+                future.completeExceptionally(new WorkerUnavailableException("Could not send the render", e));
+            }
+
+            renderProcess = process;
+        }
+
+        return future.orTimeout(RENDER_TIMEOUT, TimeUnit.MILLISECONDS).exceptionallyCompose(throwable -> {
+            if (throwable instanceof TimeoutException) {
+                // The worker may be stuck: it is restarted, and the other renders are done by the server.
+                synchronized (lock) {
+                    if (process == renderProcess && renderProcess != null) {
+                        ImageOnMap.getPlugin().getLogger().warning("The render worker took too long to render an image, restarting it");
+                        stop(renderProcess, new WorkerUnavailableException("The render worker was restarted"));
+                    }
+                }
+                return CompletableFuture.failedFuture(new IOException(I.t("The image took too long to render.")));
+            }
+            return CompletableFuture.failedFuture(throwable);
+        });
+    }
+
+    private static void start() throws IOException {
+        if (process != null) {
+            return;
+        }
+
+        final Path javaPath = Path.of(System.getProperty("java.home"), "bin", "java");
+        final Path pluginPath;
+        try {
+            pluginPath = Path.of(RenderWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Cannot find the plugin file", e);
+        }
+
+        final Process started = new ProcessBuilder(
+                javaPath.toString(),
+                "-Xmx" + PluginConfiguration.RENDER_WORKER_MEMORY.get() + "m",
+                "-Djava.awt.headless=true",
+                "-D" + RenderWorker.FAST_RESIZING_PROPERTY + "=" + ImageUtils.isFastResizing(),
+                "-D" + RenderWorker.DOWNLOAD_MAX_SIZE_PROPERTY + "=" + PluginConfiguration.DOWNLOAD_MAX_SIZE.get(),
+                "-cp", pluginPath.toString(),
+                RenderWorker.class.getName())
+                .start();
+
+        process = started;
+        output = new DataOutputStream(new BufferedOutputStream(started.getOutputStream()));
+
+        output.writeInt(RenderWorker.MAGIC);
+        output.writeInt(RenderWorker.VERSION);
+        int[] palette = ColorQuantizer.getDefault().getPalette();
+        output.writeInt(palette.length);
+        for (int color : palette) {
+            output.writeInt(color);
+        }
+        output.flush();
+
+        Thread reader = new Thread(() -> readResults(started), "Image Render Worker - Results");
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread errors = new Thread(() -> readErrors(started), "Image Render Worker - Errors");
+        errors.setDaemon(true);
+        errors.start();
+    }
+
+    private static void readResults(Process worker) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(worker.getInputStream()))) {
+            if (input.readInt() != RenderWorker.MAGIC) {
+                throw new IOException("Unexpected answer from the render worker");
+            }
+
+            while (true) {
+                final int id = input.readInt();
+                final byte status = input.readByte();
+
+                Result result = null;
+                IOException error = null;
+                switch (status) {
+                    case RenderWorker.STATUS_DONE -> {
+                        String contentHash = input.readUTF();
+                        int columns = input.readInt();
+                        int lines = input.readInt();
+                        byte[][] tiles = new byte[columns * lines][TILE_SIZE];
+                        for (byte[] tile : tiles) {
+                            input.readFully(tile);
+                        }
+                        result = new Result(contentHash, columns, lines, tiles);
+                    }
+                    case RenderWorker.STATUS_ANIMATED -> {
+                    }
+                    case RenderWorker.STATUS_INVALID_IMAGE -> error = new IOException(I.t("The given URL is not a valid image"));
+                    case RenderWorker.STATUS_TOO_WIDE -> error = new IOException(I.t("The image is too wide!"));
+                    case RenderWorker.STATUS_TOO_TALL -> error = new IOException(I.t("The image is too tall!"));
+                    case RenderWorker.STATUS_FAILED -> error = new IOException(input.readUTF());
+                    default -> throw new IOException("Unexpected status from the render worker: " + status);
+                }
+
+                synchronized (lock) {
+                    crashes = 0;
+                }
+
+                CompletableFuture<Result> future = pendingRenders.remove(id);
+                if (future == null) {
+                    continue;
+                }
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(result);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (process == worker) {
+                    crashed(worker, e);
+                }
+            }
+        }
+    }
+
+    private static void readErrors(Process worker) {
+        try (BufferedReader errors = new BufferedReader(
+                new InputStreamReader(worker.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = errors.readLine()) != null) {
+                ImageOnMap.getPlugin().getLogger().warning("[Render worker] " + line);
+            }
+        } catch (IOException ignored) {
+            // The worker stopped.
+        }
+    }
+
+    /**
+     * @param worker The worker which crashed, or {@code null} if it could not be started.
+     */
+    private static void crashed(Process worker, IOException cause) {
+        crashes++;
+        if (crashes >= MAX_CRASHES) {
+            disabled = true;
+            ImageOnMap.getPlugin().getLogger().log(Level.SEVERE,
+                    "The render worker crashed " + crashes + " times in a row; images will be rendered by the server until it restarts", cause);
+        } else {
+            ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                    "The render worker crashed; it will be restarted for the next images", cause);
+        }
+
+        if (worker != null) {
+            stop(worker, new WorkerUnavailableException("The render worker crashed", cause));
+        }
+    }
+
+    private static void stop(Process worker, WorkerUnavailableException reason) {
+        if (process == worker) {
+            process = null;
+            output = null;
+        }
+
+        // Closing its input stops the worker cleanly; it is killed if this is not enough.
+        try {
+            worker.getOutputStream().close();
+        } catch (IOException ignored) {
+            // Already stopped.
+        }
+        worker.onExit().orTimeout(5, TimeUnit.SECONDS).whenComplete((stopped, throwable) -> {
+            if (throwable != null) {
+                worker.destroyForcibly();
+            }
+        });
+
+        for (Integer id : pendingRenders.keySet()) {
+            CompletableFuture<Result> future = pendingRenders.remove(id);
+            if (future != null) {
+                future.completeExceptionally(reason);
+            }
+        }
+    }
+
+    /**
+     * The tiles of an image rendered by the worker.
+     *
+     * @param contentHash The {@link ImageUtils#contentHash content hash} of the image.
+     * @param columns     The number of columns of the poster.
+     * @param lines       The number of lines of the poster.
+     * @param tiles       The map colors of each tile, line by line.
+     */
+    record Result(String contentHash, int columns, int lines, byte[][] tiles) {
+    }
+
+    /**
+     * Thrown when the worker could not render an image because it stopped, or could not be started.
+     * The image can still be rendered by the server.
+     */
+    public static class WorkerUnavailableException extends IOException {
+        WorkerUnavailableException(String message) {
+            super(message);
+        }
+
+        WorkerUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
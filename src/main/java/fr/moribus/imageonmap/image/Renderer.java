@@ -37,7 +37,9 @@
 package fr.moribus.imageonmap.image;
 
 import fr.moribus.imageonmap.ImageOnMap;
-import java.awt.image.BufferedImage;
+import fr.moribus.imageonmap.map.MapOwnership;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.map.MapCanvas;
@@ -46,63 +48,119 @@ import org.bukkit.map.MapView;
 import org.jetbrains.annotations.NotNull;
 
 public class Renderer extends MapRenderer {
-    private BufferedImage image = null;
+    private final MapView map;
+    private volatile byte[] colors = null;
+    private volatile boolean loaded = false;
 
-    private Renderer() {
+    Renderer(MapView map) {
+        this.map = map;
     }
 
+    @SuppressWarnings("deprecation")
     public static boolean isHandled(MapView map) {
-        if (map == null) {
-            return false;
+        return map != null && MapOwnership.isRendered(map.getId());
+    }
+
+    /**
+     * @param map A map.
+     * @return The renderer drawing this map, or {@code null} if it is not an ImageOnMap map.
+     */
+    public static Renderer getRenderer(MapView map) {
+        if (!isHandled(map)) {
+            return null;
         }
         for (MapRenderer renderer : map.getRenderers()) {
-            if (renderer instanceof Renderer) {
-                return true;
+            if (renderer instanceof Renderer imageRenderer) {
+                return imageRenderer;
             }
         }
-        return false;
+        return null;
     }
 
-    public static void installRenderer(PosterImage image, int[] mapsIds) {
-        for (int i = 0; i < mapsIds.length; i++) {
-            installRenderer(image.getImageAt(i), mapsIds[i]);
+    /**
+     * Installs the renderers of the given parts of a poster, a few per tick so that large
+     * posters do not slow the server down. Can be called from any thread.
+     */
+    public static void installRenderer(PosterImage image, int[] mapsIds, int[] indexes) {
+        for (int i : indexes) {
+            if (mapsIds[i] != PosterMap.BLANK_MAP_ID) {
+                final byte[] colors = image.getColorsAt(i);
+                final int mapID = mapsIds[i];
+                RunTask.budgeted(() -> installRenderer(colors, mapID));
+            }
         }
     }
 
     @SuppressWarnings("deprecation")
-    public static void installRenderer(BufferedImage image, int mapID) {
+    public static void installRenderer(byte[] colors, int mapID) {
         MapView map = Bukkit.getMap(mapID);
         if (map == null) {
             ImageOnMap.getPlugin().getLogger().warning("Could not install renderer for map " + mapID + ": the Minecraft map does not exist");
         } else {
-            installRenderer(map).setImage(image);
+            installRenderer(map).setColors(colors);
         }
     }
 
+    @SuppressWarnings("deprecation")
     public static Renderer installRenderer(MapView map) {
-        Renderer renderer = new Renderer();
+        Renderer renderer = new Renderer(map);
         removeRenderers(map);
         map.addRenderer(renderer);
+        MapOwnership.setRendered(map.getId(), true);
         return renderer;
     }
 
+    @SuppressWarnings("deprecation")
     public static void removeRenderers(MapView map) {
         for (MapRenderer renderer : map.getRenderers()) {
+            if (renderer instanceof AnimatedRenderer animatedRenderer) {
+                MapUpdateScheduler.unregisterAnimation(animatedRenderer);
+            }
             map.removeRenderer(renderer);
         }
+        MapOwnership.setRendered(map.getId(), false);
     }
 
+    @SuppressWarnings("deprecation")
     @Override
     public void render(@NotNull MapView v, final @NotNull MapCanvas canvas, @NotNull Player p) {
+        MapUpdateScheduler.addViewer(v, p);
+
         //Render only once to avoid overloading the server
-        if (image == null) {
+        final byte[] colors = this.colors;
+        if (colors == null) {
             return;
         }
-        canvas.drawImage(0, 0, image);
-        image = null;
+
+        // The colors were matched beforehand, out of the main thread.
+        for (int y = 0; y < PosterImage.HEIGHT; y++) {
+            for (int x = 0; x < PosterImage.WIDTH; x++) {
+                canvas.setPixel(x, y, colors[y * PosterImage.WIDTH + x]);
+            }
+        }
+        this.colors = null;
+    }
+
+    /**
+     * @param colors The map colors to draw, row by row, as returned by {@link ColorQuantizer}.
+     */
+    public void setColors(byte[] colors) {
+        this.colors = colors;
+        this.loaded = true;
+        MapUpdateScheduler.requestUpdate(map);
+    }
+
+    /**
+     * @return {@code true} once the content of the map is known.
+     */
+    boolean isLoaded() {
+        return loaded;
     }
 
-    public void setImage(BufferedImage image) {
-        this.image = image;
+    /**
+     * @return The map this renderer draws.
+     */
+    public MapView getMap() {
+        return map;
     }
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Resizes images with a separable Lanczos filter, computing bands of rows in parallel.
+ *
+ * <p>Large reductions are first done by halving the image with a box filter, which is
+ * as good as a wide Lanczos filter at these ratios and much cheaper. Pixels are
+ * premultiplied by their alpha while being filtered, so that transparent pixels do
+ * not bleed their color.</p>
+ *
+ * <p>A fast resampler can be used instead, drawing the image with the default hints of
+ * Java2D, i.e. sampling the nearest pixel: much cheaper, but aliased when reducing.</p>
+ */
+final class Resampler {
+    private static final int LOBES = 3;
+    private static final int BAND_HEIGHT = 64;
+
+    /**
+     * The image to draw, for the fast resampler only.
+     */
+    private final BufferedImage source;
+    private final int targetW;
+    private final int targetH;
+
+    private final int[] pixels;
+    private final int width;
+
+    private final int bufferW;
+    private final int bufferH;
+    private final int posX;
+    private final int posY;
+
+    /**
+     * The filters of the visible part of the resized image, or {@code null} if nothing is visible.
+     */
+    private final Filter horizontal;
+    private final Filter vertical;
+
+    /**
+     * Prepares the source image to be resized and drawn on a transparent buffer.
+     * The resized image can go past the buffer, in which case it is cropped.
+     *
+     * @param source  The image to resize.
+     * @param bufferW The width of the new buffer.
+     * @param bufferH The height of the new buffer.
+     * @param posX    The X position of the resized image in the buffer.
+     * @param posY    The Y position of the resized image in the buffer.
+     * @param targetW The width of the resized image.
+     * @param targetH The height of the resized image.
+     * @param fast    Whether to draw the image with Java2D instead of filtering it.
+     */
+    Resampler(BufferedImage source, int bufferW, int bufferH, int posX, int posY, int targetW, int targetH,
+              boolean fast) {
+        this.bufferW = bufferW;
+        this.bufferH = bufferH;
+        this.posX = posX;
+        this.posY = posY;
+        this.targetW = targetW;
+        this.targetH = targetH;
+
+        if (fast) {
+            this.source = source;
+            this.pixels = null;
+            this.width = 0;
+            this.horizontal = null;
+            this.vertical = null;
+            return;
+        }
+        this.source = null;
+
+        // Only the visible part of the resized image is computed.
+        final int fromX = Math.max(0, -posX);
+        final int toX = Math.min(targetW, bufferW - posX);
+        final int fromY = Math.max(0, -posY);
+        final int toY = Math.min(targetH, bufferH - posY);
+        if (fromX >= toX || fromY >= toY) {
+            this.pixels = null;
+            this.width = 0;
+            this.horizontal = null;
+            this.vertical = null;
+            return;
+        }
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] pixels = premultiply(readPixels(source), width);
+
+        while (width >= 2 * targetW || height >= 2 * targetH) {
+            int newWidth = width >= 2 * targetW ? (width + 1) / 2 : width;
+            int newHeight = height >= 2 * targetH ? (height + 1) / 2 : height;
+            pixels = halve(pixels, width, height, newWidth, newHeight);
+            width = newWidth;
+            height = newHeight;
+        }
+
+        this.pixels = pixels;
+        this.width = width;
+        this.horizontal = new Filter(width, targetW, fromX, toX);
+        this.vertical = new Filter(height, targetH, fromY, toY);
+    }
+
+    /**
+     * Computes some rows of the buffer only. The whole buffer is never allocated, so that
+     * large images can be resized band by band.
+     *
+     * @param from The first row of the buffer, inclusive.
+     * @param to   The last row of the buffer, exclusive.
+     * @return A new ARGB image, as wide as the buffer, holding these rows.
+     */
+    BufferedImage resampleRows(int from, int to) {
+        final BufferedImage destination = new BufferedImage(bufferW, to - from, BufferedImage.TYPE_INT_ARGB);
+        if (source != null) {
+            // Java2D only computes the pixels within the destination.
+            final Graphics2D graphics = destination.createGraphics();
+            try {
+                graphics.drawImage(source, posX, posY - from, targetW, targetH, null);
+            } finally {
+                graphics.dispose();
+            }
+            return destination;
+        }
+        if (horizontal == null) {
+            return destination;
+        }
+
+        // The rows of the resized image visible in these rows of the buffer
+        final int fromY = Math.max(vertical.from, from - posY);
+        final int toY = Math.min(vertical.to, to - posY);
+        if (fromY >= toY) {
+            return destination;
+        }
+
+        final int[] output = ((DataBufferInt) destination.getRaster().getDataBuffer()).getData();
+        final int outputY = posY - from;
+
+        final int bands = (toY - fromY + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int bandFrom = fromY + band * BAND_HEIGHT;
+            int bandTo = Math.min(bandFrom + BAND_HEIGHT, toY);
+            resampleBand(pixels, width, horizontal, vertical, bandFrom, bandTo,
+                    output, bufferW, posX, outputY);
+        });
+
+        return destination;
+    }
+
+    /**
+     * @return The width of the buffer.
+     */
+    int getBufferWidth() {
+        return bufferW;
+    }
+
+    /**
+     * @return The height of the buffer.
+     */
+    int getBufferHeight() {
+        return bufferH;
+    }
+
+    private static void resampleBand(int[] input, int inputWidth, Filter horizontal, Filter vertical,
+                                     int fromY, int toY, int[] output, int outputWidth, int posX, int posY) {
+        final int columns = horizontal.to - horizontal.from;
+
+        // Source rows needed by the destination rows of this band
+        final int firstRow = vertical.start[fromY - vertical.from];
+        final int lastRow = vertical.start[toY - 1 - vertical.from] + vertical.count[toY - 1 - vertical.from];
+        final int rows = lastRow - firstRow;
+
+        // Horizontally filtered rows of the band, followed by the row being computed. They are
+        // not kept between calls, as the worker threads are shared with the rest of the server.
+        final float[] scratch = new float[(rows + 1) * columns * 4];
+
+        for (int row = 0; row < rows; row++) {
+            final int rowOffset = (firstRow + row) * inputWidth;
+            for (int column = 0; column < columns; column++) {
+                final int start = horizontal.start[column];
+                final int count = horizontal.count[column];
+                final int weightsOffset = column * horizontal.stride;
+                float a = 0;
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int k = 0; k < count; k++) {
+                    final int pixel = input[rowOffset + start + k];
+                    final float weight = horizontal.weights[weightsOffset + k];
+                    a += weight * (pixel >>> 24);
+                    r += weight * ((pixel >> 16) & 0xFF);
+                    g += weight * ((pixel >> 8) & 0xFF);
+                    b += weight * (pixel & 0xFF);
+                }
+                final int index = (row * columns + column) * 4;
+                scratch[index] = a;
+                scratch[index + 1] = r;
+                scratch[index + 2] = g;
+                scratch[index + 3] = b;
+            }
+        }
+
+        // Rows are accumulated one source row at a time, to read the scratch sequentially.
+        final int accumulator = rows * columns * 4;
+        for (int y = fromY; y < toY; y++) {
+            final int start = vertical.start[y - vertical.from] - firstRow;
+            final int count = vertical.count[y - vertical.from];
+            final int weightsOffset = (y - vertical.from) * vertical.stride;
+            Arrays.fill(scratch, accumulator, accumulator + columns * 4, 0f);
+
+            for (int k = 0; k < count; k++) {
+                final float weight = vertical.weights[weightsOffset + k];
+                final int rowOffset = (start + k) * columns * 4;
+                for (int i = 0; i < columns * 4; i++) {
+                    scratch[accumulator + i] += weight * scratch[rowOffset + i];
+                }
+            }
+
+            final int outputOffset = (posY + y) * outputWidth + posX + horizontal.from;
+            for (int column = 0; column < columns; column++) {
+                final int index = accumulator + column * 4;
+                output[outputOffset + column] = unpremultiply(
+                        scratch[index], scratch[index + 1], scratch[index + 2], scratch[index + 3]);
+            }
+        }
+    }
+
+    /**
+     * Halves the image on one or both axes, averaging each block of pixels. On odd sizes,
+     * the last row or column is averaged alone, so that no pixel is dropped.
+     */
+    private static int[] halve(int[] pixels, int width, int height, int newWidth, int newHeight) {
+        final int[] halved = new int[newWidth * newHeight];
+        final int stepX = newWidth == width ? 1 : 2;
+        final int stepY = newHeight == height ? 1 : 2;
+
+        IntStream.range(0, newHeight).parallel().forEach(y -> {
+            final int blockH = Math.min(stepY, height - y * stepY);
+            for (int x = 0; x < newWidth; x++) {
+                final int blockW = Math.min(stepX, width - x * stepX);
+                final int count = blockW * blockH;
+                final int round = count >> 1;
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int dy = 0; dy < blockH; dy++) {
+                    final int rowOffset = (y * stepY + dy) * width + x * stepX;
+                    for (int dx = 0; dx < blockW; dx++) {
+                        final int pixel = pixels[rowOffset + dx];
+                        a += pixel >>> 24;
+                        r += (pixel >> 16) & 0xFF;
+                        g += (pixel >> 8) & 0xFF;
+                        b += pixel & 0xFF;
+                    }
+                }
+                halved[y * newWidth + x] = (a + round) / count << 24 | (r + round) / count << 16
+                        | (g + round) / count << 8 | (b + round) / count;
+            }
+        });
+
+        return halved;
+    }
+
+    /**
+     * @return A copy of the ARGB pixels of the image.
+     */
+    private static int[] readPixels(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getParent() == null) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData().clone();
+        }
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static int[] premultiply(int[] pixels, int width) {
+        IntStream.range(0, pixels.length / width).parallel().forEach(y -> {
+            for (int i = y * width, end = i + width; i < end; i++) {
+                final int pixel = pixels[i];
+                final int alpha = pixel >>> 24;
+                if (alpha != 0xFF) {
+                    pixels[i] = alpha << 24
+                            | (((pixel >> 16) & 0xFF) * alpha + 127) / 255 << 16
+                            | (((pixel >> 8) & 0xFF) * alpha + 127) / 255 << 8
+                            | ((pixel & 0xFF) * alpha + 127) / 255;
+                }
+            }
+        });
+        return pixels;
+    }
+
+    private static int unpremultiply(float a, float r, float g, float b) {
+        final int alpha = clamp(a);
+        if (alpha == 0) {
+            return 0;
+        }
+
+        final float factor = 255f / alpha;
+        return alpha << 24 | clamp(r * factor) << 16 | clamp(g * factor) << 8 | clamp(b * factor);
+    }
+
+    private static int clamp(float value) {
+        return value <= 0 ? 0 : value >= 255 ? 255 : (int) (value + .5f);
+    }
+
+    private static double lanczos(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        if (x <= -LOBES || x >= LOBES) {
+            return 0;
+        }
+        final double pix = Math.PI * x;
+        return LOBES * Math.sin(pix) * Math.sin(pix / LOBES) / (pix * pix);
+    }
+
+    /**
+     * The normalized weights of the source pixels contributing to each destination pixel, on one axis.
+     */
+    private static final class Filter {
+        private final int from;
+        private final int to;
+        private final int[] start;
+        private final int[] count;
+        private final float[] weights;
+        private final int stride;
+
+        private Filter(int sourceSize, int targetSize, int from, int to) {
+            this.from = from;
+            this.to = to;
+
+            final double scale = (double) sourceSize / targetSize;
+
+            // When reducing, the filter is widened to cover all the source pixels.
+            final double filterScale = Math.max(scale, 1);
+            final double support = LOBES * filterScale;
+
+            this.stride = (int) Math.ceil(support) * 2 + 1;
+            this.start = new int[to - from];
+            this.count = new int[to - from];
+            this.weights = new float[(to - from) * stride];
+
+            for (int i = from; i < to; i++) {
+                final double center = (i + .5) * scale;
+                final int first = Math.max(0, (int) Math.floor(center - support));
+                final int last = Math.min(sourceSize, (int) Math.ceil(center + support));
+                final int offset = (i - from) * stride;
+
+                double total = 0;
+                int n = 0;
+                for (int j = first; j < last && n < stride; j++, n++) {
+                    final double weight = lanczos((j + .5 - center) / filterScale);
+                    weights[offset + n] = (float) weight;
+                    total += weight;
+                }
+
+                if (total != 0) {
+                    for (int k = 0; k < n; k++) {
+                        weights[offset + k] /= (float) total;
+                    }
+                }
+
+                start[i - from] = first;
+                count[i - from] = n;
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The frames of an animated map, as map colors.
+ *
+ * <p>Only the first frame is stored in full. Each other frame is stored as the pixels
+ * which changed since the previous one, and the first frame also has the changes
+ * since the last one, so that the animation can loop.</p>
+ */
+public final class TileAnimation {
+    private static final int MAGIC = 0x494F4D41;
+    private static final int VERSION = 1;
+    private static final int SIZE = PosterImage.WIDTH * PosterImage.HEIGHT;
+
+    private final int[] delays;
+    private final int[] ends;
+    private final byte[] keyframe;
+    private final char[][] changedPixels;
+    private final byte[][] changedColors;
+
+    private TileAnimation(int[] delays, byte[] keyframe, char[][] changedPixels, byte[][] changedColors) {
+        this.delays = delays;
+        this.keyframe = keyframe;
+        this.changedPixels = changedPixels;
+        this.changedColors = changedColors;
+
+        this.ends = new int[delays.length];
+        int end = 0;
+        for (int i = 0; i < delays.length; i++) {
+            end += delays[i];
+            ends[i] = end;
+        }
+    }
+
+    /**
+     * @return The number of frames.
+     */
+    public int getFrameCount() {
+        return delays.length;
+    }
+
+    /**
+     * @return The duration of one loop of the animation, in milliseconds.
+     */
+    public int getDuration() {
+        return ends[ends.length - 1];
+    }
+
+    /**
+     * The frames only depend on the time, so that all the parts of a poster stay in sync.
+     *
+     * @param time A time, in milliseconds.
+     * @return The frame displayed at this time.
+     */
+    public int getFrameAt(long time) {
+        int position = Arrays.binarySearch(ends, (int) Math.floorMod(time, (long) getDuration()));
+        return position >= 0 ? (position + 1) % ends.length : -position - 1;
+    }
+
+    /**
+     * @return {@code true} if all the frames are the same, and the animation can be displayed as a still image.
+     */
+    public boolean isStatic() {
+        for (char[] pixels : changedPixels) {
+            if (pixels.length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The colors of the first frame. Must not be modified.
+     */
+    byte[] getKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * @param frame A frame.
+     * @return The pixels which changed since the previous frame, as indexes in the frame.
+     */
+    char[] getChangedPixels(int frame) {
+        return changedPixels[frame];
+    }
+
+    /**
+     * @param frame A frame.
+     * @return The new colors of the pixels which changed since the previous frame.
+     */
+    byte[] getChangedColors(int frame) {
+        return changedColors[frame];
+    }
+
+    /**
+     * @return A hash of the frames and of their timing, like {@link ImageUtils#tileHash(byte[])} for still images.
+     */
+    public String getHash() {
+        MessageDigest digest = ImageUtils.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(delays.length * Integer.BYTES);
+        buffer.asIntBuffer().put(delays);
+        digest.update(buffer);
+        digest.update(keyframe);
+        for (int i = 0; i < changedPixels.length; i++) {
+            for (char pixel : changedPixels[i]) {
+                digest.update((byte) (pixel >> 8));
+                digest.update((byte) pixel);
+            }
+            digest.update(changedColors[i]);
+        }
+        return ImageUtils.tileHash(digest);
+    }
+
+    /**
+     * Writes the animation, compressed.
+     *
+     * @param stream The stream to write to. It is not closed.
+     * @throws IOException if the animation could not be written.
+     */
+    public void write(OutputStream stream) throws IOException {
+        GZIPOutputStream compressed = new GZIPOutputStream(stream);
+        DataOutputStream output = new DataOutputStream(compressed);
+
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(delays.length);
+        for (int delay : delays) {
+            output.writeInt(delay);
+        }
+        output.write(keyframe);
+        for (int i = 0; i < changedPixels.length; i++) {
+            output.writeInt(changedPixels[i].length);
+            for (char pixel : changedPixels[i]) {
+                output.writeChar(pixel);
+            }
+            output.write(changedColors[i]);
+        }
+
+        output.flush();
+        compressed.finish();
+    }
+
+    /**
+     * Reads an animation written by {@link #write(OutputStream)}.
+     *
+     * @param stream The stream to read from. It is not closed.
+     * @return The animation.
+     * @throws IOException if the animation could not be read.
+     */
+    public static TileAnimation read(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new GZIPInputStream(stream));
+
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Not an animation file");
+        }
+
+        int frameCount = input.readInt();
+        if (frameCount <= 0) {
+            throw new IOException("Invalid frame count: " + frameCount);
+        }
+
+        int[] delays = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            delays[i] = input.readInt();
+        }
+
+        byte[] keyframe = new byte[SIZE];
+        input.readFully(keyframe);
+
+        char[][] changedPixels = new char[frameCount][];
+        byte[][] changedColors = new byte[frameCount][];
+        for (int i = 0; i < frameCount; i++) {
+            int count = input.readInt();
+            if (count < 0 || count > SIZE) {
+                throw new IOException("Invalid frame size: " + count);
+            }
+            changedPixels[i] = new char[count];
+            for (int j = 0; j < count; j++) {
+                changedPixels[i][j] = input.readChar();
+            }
+            changedColors[i] = new byte[count];
+            input.readFully(changedColors[i]);
+        }
+
+        return new TileAnimation(delays, keyframe, changedPixels, changedColors);
+    }
+
+    /**
+     * Builds an animation frame by frame, only keeping the changes between them.
+     */
+    public static final class Builder {
+        private final byte[] keyframe;
+        private byte[] previous;
+        private final List<char[]> changedPixels = new ArrayList<>();
+        private final List<byte[]> changedColors = new ArrayList<>();
+
+        /**
+         * @param keyframe The colors of the first frame.
+         */
+        public Builder(byte[] keyframe) {
+            this.keyframe = keyframe;
+            this.previous = keyframe;
+
+            // The changes from the last frame to the first one are computed at the end.
+            changedPixels.add(null);
+            changedColors.add(null);
+        }
+
+        /**
+         * @param frame The colors of the next frame.
+         */
+        public void addFrame(byte[] frame) {
+            addChanges(previous, frame);
+            previous = frame;
+        }
+
+        /**
+         * @param delays The duration of each frame, in milliseconds.
+         * @return The animation.
+         */
+        public TileAnimation build(int[] delays) {
+            if (delays.length != changedPixels.size()) {
+                throw new IllegalArgumentException("Expected " + changedPixels.size() + " delays, got " + delays.length);
+            }
+
+            addChanges(previous, keyframe);
+            changedPixels.set(0, changedPixels.remove(changedPixels.size() - 1));
+            changedColors.set(0, changedColors.remove(changedColors.size() - 1));
+
+            return new TileAnimation(delays, keyframe,
+                    changedPixels.toArray(new char[0][]), changedColors.toArray(new byte[0][]));
+        }
+
+        private void addChanges(byte[] from, byte[] to) {
+            int count = 0;
+            for (int i = 0; i < SIZE; i++) {
+                if (from[i] != to[i]) {
+                    count++;
+                }
+            }
+
+            char[] pixels = new char[count];
+            byte[] colors = new byte[count];
+            for (int i = 0, j = 0; i < SIZE; i++) {
+                if (from[i] != to[i]) {
+                    pixels[j] = (char) i;
+                    colors[j++] = to[i];
+                }
+            }
+
+            changedPixels.add(pixels);
+            changedColors.add(colors);
+        }
+    }
+}
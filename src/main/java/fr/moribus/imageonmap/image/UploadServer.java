@@ -0,0 +1,346 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.image;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.ImageMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+/**
+ * A small web server receiving images uploaded by the players, as an alternative to giving
+ * an URL.
+ *
+ * <p>Each upload needs a link created by {@link #createLink}, which can only be used once.
+ * The uploaded file is written to the uploads directory while it is received, so that large
+ * files are never kept in memory, and rendered from there.</p>
+ */
+public final class UploadServer {
+    private static final String CONTEXT = "/upload/";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The properties of the JDK server closing the connections whose request, or response, takes
+     * longer than the given number of seconds.
+     */
+    private static final String MAX_REQUEST_TIME_PROPERTY = "sun.net.httpserver.maxReqTime";
+    private static final String MAX_RESPONSE_TIME_PROPERTY = "sun.net.httpserver.maxRspTime";
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private static HttpServer server = null;
+    private static ExecutorService executor = null;
+
+    private UploadServer() {
+    }
+
+    /**
+     * Starts the server if it is enabled.
+     */
+    public static void init() {
+        if (!PluginConfiguration.UPLOAD_SERVER.get()) {
+            return;
+        }
+
+        final String bindAddress = PluginConfiguration.UPLOAD_BIND_ADDRESS.get();
+        final int port = PluginConfiguration.UPLOAD_PORT.get();
+
+        // Slow or stalled clients would otherwise keep the threads of the server forever. The JDK server
+        // reads these once, when it is first used: they are left alone if they were already set.
+        final String timeout = String.valueOf(PluginConfiguration.UPLOAD_TIMEOUT.get());
+        if (System.getProperty(MAX_REQUEST_TIME_PROPERTY) == null) {
+            System.setProperty(MAX_REQUEST_TIME_PROPERTY, timeout);
+        }
+        if (System.getProperty(MAX_RESPONSE_TIME_PROPERTY) == null) {
+            System.setProperty(MAX_RESPONSE_TIME_PROPERTY, timeout);
+        }
+
+        try {
+            cleanUploadsDirectory();
+
+            server = HttpServer.create(bindAddress == null || bindAddress.isEmpty()
+                    ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port), 0);
+        } catch (IOException e) {
+            ImageOnMap.getPlugin().getLogger().log(Level.SEVERE, "Could not start the upload server", e);
+            server = null;
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(PluginConfiguration.UPLOAD_THREADS.get(), new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Image upload - #%d")
+                .build());
+
+        server.createContext(CONTEXT, UploadServer::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        ImageOnMap.getPlugin().getLogger().info("Upload server listening on port " + port);
+    }
+
+    /**
+     * Stops the server. The uploads being received are cancelled.
+     */
+    public static void exit() {
+        if (server == null) {
+            return;
+        }
+
+        server.stop(0);
+        executor.shutdownNow();
+        uploads.clear();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return {@code true} if the server is running.
+     */
+    public static boolean isEnabled() {
+        return server != null;
+    }
+
+    /**
+     * Creates a link to upload one image.
+     *
+     * @param callback Called on the main thread with the rendered image, or with the reason
+     *                 why it could not be rendered. Not called if the link is never used.
+     * @return The link to give to the player.
+     */
+    public static String createLink(UUID playerUUID, ImageUtils.ScalingType scaling, DitherMode dither,
+                                    int width, int height, BiConsumer<ImageMap, Throwable> callback) {
+        final long now = System.currentTimeMillis();
+        uploads.values().removeIf(upload -> upload.isExpired(now));
+
+        final byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        final String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        final long expiration = now + TimeUnit.MINUTES.toMillis(PluginConfiguration.UPLOAD_LINK_LIFETIME.get());
+        uploads.put(token, new Upload(playerUUID, scaling, dither, width, height, callback, expiration));
+
+        return getPublicUrl() + CONTEXT + token;
+    }
+
+    private static String getPublicUrl() {
+        String url = PluginConfiguration.UPLOAD_PUBLIC_URL.get();
+        if (url == null || url.isEmpty()) {
+            return "http://localhost:" + PluginConfiguration.UPLOAD_PORT.get();
+        }
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static void cleanUploadsDirectory() throws IOException {
+        final Path directory = ImageOnMap.getPlugin().getUploadsDirectory();
+
+        // Uploads which were not rendered before the server stopped
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        Files.createDirectories(directory);
+    }
+
+    private static void handle(HttpExchange exchange) {
+        try {
+            final String token = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    Upload upload = uploads.get(token);
+                    if (upload == null || upload.isExpired(System.currentTimeMillis())) {
+                        send(exchange, 404, "text/plain", "This upload link is invalid or has expired.");
+                    } else {
+                        send(exchange, 200, "text/html", page());
+                    }
+                    break;
+
+                case "POST":
+                case "PUT":
+                    receive(exchange, token);
+                    break;
+
+                default:
+                    exchange.getResponseHeaders().set("Allow", "GET, POST, PUT");
+                    send(exchange, 405, "text/plain", "Method not allowed.");
+            }
+        } catch (IOException e) {
+            ImageOnMap.getPlugin().getLogger().log(Level.FINE, "Upload failed", e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void receive(HttpExchange exchange, String token) throws IOException {
+        // Removed right away, so that the link cannot be used twice, even at the same time.
+        final Upload upload = uploads.remove(token);
+        if (upload == null || upload.isExpired(System.currentTimeMillis())) {
+            send(exchange, 404, "text/plain", "This upload link is invalid or has expired.");
+            return;
+        }
+
+        final long maxSize = PluginConfiguration.UPLOAD_MAX_SIZE.get();
+        final long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(PluginConfiguration.UPLOAD_TIMEOUT.get());
+        final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (length != null && Long.parseLong(length) > maxSize) {
+                send(exchange, 413, "text/plain", tooLarge(maxSize));
+                return;
+            }
+        } catch (NumberFormatException e) {
+            send(exchange, 400, "text/plain", "Invalid Content-Length.");
+            return;
+        }
+
+        final Path file = Files.createTempFile(ImageOnMap.getPlugin().getUploadsDirectory(), "upload", ".tmp");
+        boolean rendering = false;
+
+        try {
+            long size = 0;
+            try (InputStream input = exchange.getRequestBody(); OutputStream output = Files.newOutputStream(file)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    size += read;
+                    if (size > maxSize) {
+                        send(exchange, 413, "text/plain", tooLarge(maxSize));
+                        return;
+                    }
+                    // Also checked here, in case the JDK server does not enforce the timeouts.
+                    if (System.currentTimeMillis() > deadline) {
+                        send(exchange, 408, "text/plain",
+                                "The upload took too long. Use /maptool upload again to get a new link.");
+                        return;
+                    }
+                    output.write(buffer, 0, read);
+                }
+            }
+
+            if (size == 0) {
+                send(exchange, 400, "text/plain", "The uploaded file is empty.");
+                return;
+            }
+
+            ImageRendererExecutor.renderUpload(file, upload.scaling, upload.dither, upload.playerUUID,
+                            upload.width, upload.height)
+                    .whenCompleteAsync(upload.callback, ImageRendererExecutor.getMainThread());
+            rendering = true;
+
+            send(exchange, 202, "text/plain", "Image received! It is being rendered; you can go back to the game.");
+        } finally {
+            // Once rendering, the file is deleted when the render is done.
+            if (!rendering) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String tooLarge(long maxSize) {
+        return "This file is too large. The maximum size is " + maxSize / (1024 * 1024)
+                + " MB. Use /maptool upload again to get a new link.";
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.getResponseHeaders().set("X-Content-Type-Options", "nosniff");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static String page() {
+        return "<!DOCTYPE html>\n"
+                + "<html><head><meta charset=\"utf-8\"><title>ImageOnMap</title></head><body>\n"
+                + "<h1>Upload an image</h1>\n"
+                + "<p><input type=\"file\" id=\"file\" accept=\"image/*\"> <button id=\"send\">Upload</button></p>\n"
+                + "<p id=\"status\">Maximum size: " + PluginConfiguration.UPLOAD_MAX_SIZE.get() / (1024 * 1024)
+                + " MB.</p>\n"
+                + "<script>\n"
+                + "document.getElementById('send').onclick = function () {\n"
+                + "  var file = document.getElementById('file').files[0];\n"
+                + "  var status = document.getElementById('status');\n"
+                + "  if (!file) { return; }\n"
+                + "  this.disabled = true;\n"
+                + "  status.textContent = 'Uploading...';\n"
+                + "  fetch(location.href, {method: 'POST', body: file})\n"
+                + "    .then(function (response) { return response.text(); })\n"
+                + "    .then(function (text) { status.textContent = text; },\n"
+                + "          function () { status.textContent = 'The upload failed.'; });\n"
+                + "};\n"
+                + "</script>\n"
+                + "</body></html>\n";
+    }
+
+    private record Upload(UUID playerUUID, ImageUtils.ScalingType scaling, DitherMode dither, int width,
+                          int height, BiConsumer<ImageMap, Throwable> callback, long expiration) {
+        boolean isExpired(long now) {
+            return now > expiration;
+        }
+    }
+}
@@ -40,7 +40,6 @@ import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.i18n.I;
 import fr.moribus.imageonmap.ui.MapItemManager;
 
-import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
@@ -63,6 +62,14 @@ public abstract class ImageMap implements ConfigurationSerializable {
     private final Type mapType;
     private String id;
     private String name;
+    private String contentHash;
+    private String[] tileHashes;
+    private MapSource source;
+
+    /**
+     * Identifies this image on its map items, whatever its name and its Minecraft maps.
+     */
+    private UUID imageUUID = UUID.randomUUID();
 
     protected ImageMap(UUID userUUID, Type mapType, String id, String name) {
         this.userUUID = userUUID;
@@ -83,6 +90,23 @@ public abstract class ImageMap implements ConfigurationSerializable {
                 getNullableFieldValue(map, "id"),
                 getNullableFieldValue(map, "name"));
 
+        this.contentHash = getNullableFieldValue(map, "hash");
+
+        List<String> tiles = getNullableFieldValue(map, "tiles");
+        if (tiles != null) {
+            this.tileHashes = tiles.toArray(new String[0]);
+        }
+
+        this.source = MapSource.fromConfig(map);
+
+        String uuid = getNullableFieldValue(map, "uuid");
+        if (uuid != null) {
+            try {
+                this.imageUUID = UUID.fromString(uuid);
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidConfigurationException("Invalid field \"uuid\"", ex);
+            }
+        }
     }
 
     public static Path getFullImageFile(int mapIDstart, int mapIDend) {
@@ -146,18 +170,27 @@ public abstract class ImageMap implements ConfigurationSerializable {
 
     public abstract int[] getMapsIDs();
 
+    /**
+     * @param index The index of a part, as in {@link #getMapsIDs()}.
+     * @return The Minecraft map of this part.
+     */
+    public abstract int getMapIdAt(int index);
+
+    /**
+     * Replaces one of the Minecraft maps used by this image.
+     * The index and the map count are left unchanged.
+     *
+     * @param index The index of the map to replace, as in {@link #getMapsIDs()}.
+     * @param mapID The new Minecraft map ID.
+     */
+    abstract void replaceMapID(int index, int mapID);
+
     /* ====== Serialization methods ====== */
 
     public abstract boolean managesMap(int mapID);
 
     public boolean managesMap(ItemStack item) {
-        if (item == null) {
-            return false;
-        }
-        if (item.getType() != Material.FILLED_MAP) {
-            return false;
-        }
-        return managesMap(MapManager.getMapIdFromItemStack(item));
+        return MapItemInfo.of(item).isPartOf(this);
     }
 
     //
@@ -177,6 +210,16 @@ public abstract class ImageMap implements ConfigurationSerializable {
         map.put("id", getId());
         map.put("type", mapType.toString());
         map.put("name", getName());
+        map.put("uuid", imageUUID.toString());
+        if (getContentHash() != null) {
+            map.put("hash", getContentHash());
+        }
+        if (getTileHashes() != null) {
+            map.put("tiles", List.of(getTileHashes()));
+        }
+        if (getSource() != null) {
+            getSource().serialize(map);
+        }
         this.postSerialize(map);
         return map;
     }
@@ -185,6 +228,13 @@ public abstract class ImageMap implements ConfigurationSerializable {
         return userUUID;
     }
 
+    /**
+     * @return The unique ID of this image, kept on its map items.
+     */
+    public UUID getImageUUID() {
+        return imageUUID;
+    }
+
 
     /* ====== Getters & Setters ====== */
 
@@ -200,6 +250,45 @@ public abstract class ImageMap implements ConfigurationSerializable {
         return mapType;
     }
 
+    /**
+     * Returns the hash of the content this image was rendered from, used to share
+     * the Minecraft maps between identical images.
+     *
+     * @return The content hash, or {@code null} if unknown.
+     */
+    public synchronized String getContentHash() {
+        return contentHash;
+    }
+
+    synchronized void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the hashes of each Minecraft map of this image, used to share identical
+     * maps between images.
+     *
+     * @return The hashes, in the same order as {@link #getMapsIDs()}, or {@code null} if unknown.
+     */
+    public synchronized String[] getTileHashes() {
+        return tileHashes != null && tileHashes.length == getMapCount() ? tileHashes : null;
+    }
+
+    synchronized void setTileHashes(String[] tileHashes) {
+        this.tileHashes = tileHashes;
+    }
+
+    /**
+     * @return Where this image was rendered from, or {@code null} if unknown.
+     */
+    public synchronized MapSource getSource() {
+        return source;
+    }
+
+    public synchronized void setSource(MapSource source) {
+        this.source = source;
+    }
+
     public synchronized void rename(String id, String name) {
         this.id = id;
         this.name = name;
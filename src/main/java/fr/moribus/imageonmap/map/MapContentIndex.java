@@ -0,0 +1,166 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps track of which Minecraft maps are used by which images.
+ *
+ * <p>Images rendered from the same content, and identical tiles of posters, share
+ * their Minecraft maps, so a map is reference-counted: its image file can only be
+ * freed once no {@link ImageMap} uses it anymore.</p>
+ */
+final class MapContentIndex {
+    private static final Map<String, List<ImageMap>> mapsByContent = new HashMap<>();
+    private static final Map<String, Integer> mapsByTile = new HashMap<>();
+    private static final Map<Integer, Integer> references = new HashMap<>();
+    private static final Map<UUID, ImageMap> mapsByUUID = new HashMap<>();
+
+    private MapContentIndex() {
+    }
+
+    static synchronized void register(ImageMap map) {
+        int[] mapsIDs = map.getMapsIDs();
+        String[] tileHashes = map.getTileHashes();
+
+        for (int i = 0; i < mapsIDs.length; i++) {
+            if (mapsIDs[i] == PosterMap.BLANK_MAP_ID) {
+                continue;
+            }
+            if (references.merge(mapsIDs[i], 1, Integer::sum) == 1) {
+                MapOwnership.setOwned(mapsIDs[i], true);
+            }
+            if (tileHashes != null && tileHashes[i] != null) {
+                mapsByTile.putIfAbsent(tileHashes[i], mapsIDs[i]);
+            }
+        }
+
+        mapsByUUID.put(map.getImageUUID(), map);
+
+        String contentHash = map.getContentHash();
+        if (contentHash != null) {
+            mapsByContent.computeIfAbsent(contentHash, hash -> new ArrayList<>(1)).add(map);
+        }
+    }
+
+    static synchronized void unregister(ImageMap map) {
+        int[] mapsIDs = map.getMapsIDs();
+        String[] tileHashes = map.getTileHashes();
+
+        for (int i = 0; i < mapsIDs.length; i++) {
+            if (mapsIDs[i] == PosterMap.BLANK_MAP_ID) {
+                continue;
+            }
+            if (references.computeIfPresent(mapsIDs[i], (id, count) -> count > 1 ? count - 1 : null) == null) {
+                MapOwnership.setOwned(mapsIDs[i], false);
+                if (tileHashes != null && tileHashes[i] != null) {
+                    mapsByTile.remove(tileHashes[i], mapsIDs[i]);
+                }
+            }
+        }
+
+        mapsByUUID.remove(map.getImageUUID(), map);
+
+        String contentHash = map.getContentHash();
+        if (contentHash != null) {
+            List<ImageMap> maps = mapsByContent.get(contentHash);
+            if (maps != null && maps.remove(map) && maps.isEmpty()) {
+                mapsByContent.remove(contentHash);
+            }
+        }
+    }
+
+    /**
+     * Forgets every image, e.g. when the plugin is disabled.
+     */
+    static synchronized void clear() {
+        mapsByContent.clear();
+        mapsByTile.clear();
+        references.clear();
+        mapsByUUID.clear();
+        MapOwnership.clear();
+    }
+
+    /**
+     * Returns an image rendered from the given content, if any.
+     *
+     * @param contentHash The content hash, as computed by the renderer.
+     * @return An {@link ImageMap} with this content, or {@code null}.
+     */
+    static synchronized ImageMap getMap(String contentHash) {
+        List<ImageMap> maps = mapsByContent.get(contentHash);
+        return maps == null || maps.isEmpty() ? null : maps.get(0);
+    }
+
+    /**
+     * @param imageUUID The unique ID of an image.
+     * @return The loaded image with this ID, or {@code null}.
+     */
+    static synchronized ImageMap getMapByUUID(UUID imageUUID) {
+        return mapsByUUID.get(imageUUID);
+    }
+
+    /**
+     * Returns a Minecraft map displaying the given tile, if any.
+     *
+     * @param tileHash The tile hash, as computed by the renderer.
+     * @return The Minecraft map ID, or {@code null}.
+     */
+    static synchronized Integer getMapID(String tileHash) {
+        return mapsByTile.get(tileHash);
+    }
+
+    /**
+     * @param mapID The Minecraft map ID.
+     * @return The number of times this map is used by the loaded images.
+     */
+    static synchronized int getReferenceCount(int mapID) {
+        return references.getOrDefault(mapID, 0);
+    }
+
+    /**
+     * @return The number of distinct Minecraft maps used by the loaded images.
+     */
+    static synchronized int getDistinctMapCount() {
+        return references.size();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.map;
+
+import java.util.UUID;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+/**
+ * What ImageOnMap needs to know about an item: the map it shows, the part of an image it
+ * stands for, and if it is a splatter map.
+ *
+ * <p>Identical parts of images share their Minecraft maps, so the map alone does not tell
+ * which image an item comes from. The items made by ImageOnMap are marked with their image
+ * and part, so that they can follow the part when an update moves it to another map.</p>
+ *
+ * <p>Bukkit copies the meta of an item on each {@link ItemStack#getItemMeta()} call, so it
+ * is read only once here, and only for filled maps. Items that are not maps all share the
+ * same instance.</p>
+ */
+public final class MapItemInfo {
+    /**
+     * Marks the splatter maps.
+     */
+    public static final NamespacedKey SPLATTER_KEY = new NamespacedKey("imageonmap", "splatter");
+
+    /**
+     * Marks the image and the part of the items: the two halves of the image UUID, then the
+     * index of the part.
+     */
+    public static final NamespacedKey PART_KEY = new NamespacedKey("imageonmap", "part");
+
+    private static final MapItemInfo NONE = new MapItemInfo(false, 0, false, null, -1);
+
+    private final boolean map;
+    private final int mapID;
+    private final boolean splatter;
+    private final UUID imageUUID;
+    private final int partIndex;
+
+    private MapItemInfo(boolean map, int mapID, boolean splatter, UUID imageUUID, int partIndex) {
+        this.map = map;
+        this.mapID = mapID;
+        this.splatter = splatter;
+        this.imageUUID = imageUUID;
+        this.partIndex = partIndex;
+    }
+
+    /**
+     * @param item The item; may be {@code null}.
+     * @return What this item is.
+     */
+    @SuppressWarnings("deprecation")
+    public static MapItemInfo of(ItemStack item) {
+        if (item == null || item.getType() != Material.FILLED_MAP) {
+            return NONE;
+        }
+
+        ItemMeta meta = item.getItemMeta();
+        if (!(meta instanceof MapMeta mapMeta) || !mapMeta.hasMapId()) {
+            return NONE;
+        }
+
+        PersistentDataContainer data = meta.getPersistentDataContainer();
+        Byte splatter = data.get(SPLATTER_KEY, PersistentDataType.BYTE);
+        long[] part = data.get(PART_KEY, PersistentDataType.LONG_ARRAY);
+        boolean hasPart = part != null && part.length == 3;
+
+        return new MapItemInfo(true, mapMeta.getMapId(), splatter != null && splatter == 1,
+                hasPart ? new UUID(part[0], part[1]) : null, hasPart ? (int) part[2] : -1);
+    }
+
+    /**
+     * Marks an item as a part of an image.
+     *
+     * @param meta  The meta of the item.
+     * @param image The image.
+     * @param index The index of the part, as in {@link ImageMap#getMapsIDs()}.
+     */
+    public static void setPart(ItemMeta meta, ImageMap image, int index) {
+        UUID imageUUID = image.getImageUUID();
+        meta.getPersistentDataContainer().set(PART_KEY, PersistentDataType.LONG_ARRAY,
+                new long[] {imageUUID.getMostSignificantBits(), imageUUID.getLeastSignificantBits(), index});
+    }
+
+    /**
+     * @return {@code true} if the item is a filled map with an ID.
+     */
+    public boolean isMap() {
+        return map;
+    }
+
+    /**
+     * @return The ID of the Minecraft map, or 0 if the item is not a map.
+     */
+    public int getMapID() {
+        return mapID;
+    }
+
+    /**
+     * @return {@code true} if the item is marked as a splatter map.
+     */
+    public boolean isSplatter() {
+        return splatter;
+    }
+
+    /**
+     * @return The image the item was made from, or {@code null} if the item is not marked.
+     */
+    public UUID getImageUUID() {
+        return imageUUID;
+    }
+
+    /**
+     * @return The index of the part of the image the item stands for, or -1 if the item is
+     *     not marked.
+     */
+    public int getPartIndex() {
+        return partIndex;
+    }
+
+    /**
+     * @param image An image.
+     * @return {@code true} if the item is a map of this image. Items which are not marked are
+     *     recognized by their map only.
+     */
+    public boolean isPartOf(ImageMap image) {
+        if (!map) {
+            return false;
+        }
+        if (imageUUID != null) {
+            return imageUUID.equals(image.getImageUUID());
+        }
+        return image.managesMap(mapID);
+    }
+
+    /**
+     * @return {@code true} if the item is a map of a loaded image.
+     */
+    public boolean isManaged() {
+        return map && (MapManager.managesMap(mapID)
+                || imageUUID != null && MapManager.getMapByUUID(imageUUID) != null);
+    }
+
+    /**
+     * @return {@code true} if the item is a splatter map of a loaded image.
+     */
+    public boolean isSplatterMap() {
+        return splatter && isManaged();
+    }
+}
@@ -39,92 +39,286 @@ package fr.moribus.imageonmap.map;
 import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.image.ImageIOExecutor;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
 import fr.moribus.imageonmap.image.PosterImage;
+import fr.moribus.imageonmap.image.Renderer;
 import fr.moribus.imageonmap.map.MapManagerException.Reason;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import org.bukkit.Bukkit;
-import org.bukkit.Material;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
-import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.map.MapView;
 
 public abstract class MapManager {
     private static final ArrayList<PlayerMapStore> playerMaps = new ArrayList<>();
 
+    /**
+     * Maps allocated for images which could not be rendered, given again before creating
+     * new ones. Only used from the main thread.
+     */
+    private static final IntArrayList releasedMapsIds = new IntArrayList();
+
     public static void init() {
         load();
     }
 
     public static void exit() {
         save();
-        playerMaps.clear();
+        synchronized (playerMaps) {
+            playerMaps.clear();
+        }
+        MapContentIndex.clear();
+        releasedMapsIds.clear();
     }
 
     public static boolean managesMap(ItemStack item) {
-        if (item == null) {
-            return false;
-        }
-        if (item.getType() != Material.FILLED_MAP) {
-            return false;
-        }
+        return MapItemInfo.of(item).isManaged();
+    }
 
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.managesMap(item)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return {@code true} if this map is part of a loaded image.
+     */
+    public static boolean managesMap(int mapID) {
+        return MapOwnership.isOwned(mapID);
     }
 
-    public static ImageMap createMap(UUID playerUUID, int mapID) throws MapManagerException {
+    public static ImageMap createMap(UUID playerUUID, int mapID, String contentHash, String tileHash)
+            throws MapManagerException {
         ImageMap newMap = new SingleMap(playerUUID, mapID);
+        newMap.setContentHash(contentHash);
+        newMap.setTileHashes(new String[] {tileHash});
         addMap(newMap);
         return newMap;
     }
 
-    public static ImageMap createMap(PosterImage image, UUID playerUUID, int[] mapsIDs) throws MapManagerException {
+    public static ImageMap createMap(PosterImage image, UUID playerUUID, int[] mapsIDs, String contentHash,
+                                     String[] tileHashes) throws MapManagerException {
+        return createMap(image.getColumns(), image.getLines(), playerUUID, mapsIDs, contentHash, tileHashes);
+    }
+
+    public static ImageMap createMap(int columns, int lines, UUID playerUUID, int[] mapsIDs, String contentHash,
+                                     String[] tileHashes) throws MapManagerException {
         ImageMap newMap;
 
-        if (image.getImagesCount() == 1) {
+        if (mapsIDs.length == 1) {
             newMap = new SingleMap(playerUUID, mapsIDs[0]);
         } else {
-            newMap = new PosterMap(playerUUID, mapsIDs, image.getColumns(), image.getLines());
+            newMap = new PosterMap(playerUUID, mapsIDs, columns, lines);
+        }
+        newMap.setContentHash(contentHash);
+        newMap.setTileHashes(tileHashes);
+        addMap(newMap);
+        return newMap;
+    }
+
+    /**
+     * Creates a new image for the given player, using the same Minecraft maps as
+     * an existing image rendered from the same content.
+     *
+     * @param source     The existing image.
+     * @param playerUUID The owner of the new image.
+     * @return The new image.
+     * @throws MapManagerException if the player cannot have more maps.
+     */
+    public static ImageMap createSharedMap(ImageMap source, UUID playerUUID) throws MapManagerException {
+        ImageMap newMap;
+
+        if (source instanceof PosterMap poster) {
+            newMap = new PosterMap(playerUUID, poster.getMapsIDs().clone(),
+                    poster.getColumnCount(), poster.getRowCount());
+        } else {
+            newMap = new SingleMap(playerUUID, source.getMapsIDs()[0]);
         }
+        newMap.setContentHash(source.getContentHash());
+        newMap.setTileHashes(source.getTileHashes());
         addMap(newMap);
         return newMap;
     }
 
+    /**
+     * Returns an image already rendered from the given content.
+     *
+     * @param contentHash The content hash.
+     * @return The {@link ImageMap}, or {@code null} if this content was never rendered.
+     */
+    public static ImageMap getMapByContent(String contentHash) {
+        return MapContentIndex.getMap(contentHash);
+    }
+
+    /**
+     * @param imageUUID The unique ID of an image, as kept on its map items.
+     * @return The loaded image with this ID, or {@code null}.
+     */
+    public static ImageMap getMapByUUID(UUID imageUUID) {
+        return MapContentIndex.getMapByUUID(imageUUID);
+    }
+
+    /**
+     * Returns the Minecraft map an item should show: the current map of its part, if an
+     * update moved the part to another map since the item was made.
+     *
+     * @param info The item.
+     * @return The map ID, which is the one of the item if it is up to date or not marked.
+     */
+    public static int getCurrentMapID(MapItemInfo info) {
+        if (info.getImageUUID() == null) {
+            return info.getMapID();
+        }
+
+        ImageMap map = getMapByUUID(info.getImageUUID());
+        int index = info.getPartIndex();
+        if (map == null || index < 0 || index >= map.getMapCount()) {
+            return info.getMapID();
+        }
+
+        int mapID = map.getMapIdAt(index);
+        return mapID != PosterMap.BLANK_MAP_ID ? mapID : info.getMapID();
+    }
+
+    /**
+     * Returns a Minecraft map already displaying the given tile.
+     *
+     * @param tileHash The tile hash.
+     * @return The Minecraft map ID, or {@code null} if no loaded image has this tile.
+     */
+    public static Integer getMapIDByTile(String tileHash) {
+        return MapContentIndex.getMapID(tileHash);
+    }
+
+    /**
+     * Returns the changed parts of an image which cannot be redrawn in place, as redrawing
+     * their map would change other parts too: parts whose map is also used by another image,
+     * or by a part of this one keeping its content. When all the parts using a map change,
+     * the map is redrawn with the new content of the first one, and only the parts getting
+     * another content move. Blank parts, which have no map, always move.
+     *
+     * @param map            The image.
+     * @param changedIndexes The sorted indexes of the parts which change.
+     * @param tileHashes     The new hashes of all the parts.
+     * @return The sorted indexes of the parts to move to other maps, as in {@link ImageMap#getMapsIDs()}.
+     */
+    public static int[] getMapsIndexesToDetach(ImageMap map, int[] changedIndexes, String[] tileHashes) {
+        synchronized (MapContentIndex.class) {
+            final int[] mapsIDs = map.getMapsIDs();
+            final Int2IntOpenHashMap uses = new Int2IntOpenHashMap();
+            for (int mapID : mapsIDs) {
+                uses.addTo(mapID, 1);
+            }
+
+            final Int2IntOpenHashMap changedUses = new Int2IntOpenHashMap();
+            final Int2ObjectOpenHashMap<String> contents = new Int2ObjectOpenHashMap<>();
+            for (int i : changedIndexes) {
+                changedUses.addTo(mapsIDs[i], 1);
+                contents.putIfAbsent(mapsIDs[i], tileHashes[i]);
+            }
+
+            return Arrays.stream(changedIndexes).filter(i -> {
+                final int mapID = mapsIDs[i];
+                return mapID == PosterMap.BLANK_MAP_ID
+                        || changedUses.get(mapID) != uses.get(mapID)
+                        || MapContentIndex.getReferenceCount(mapID) != uses.get(mapID)
+                        || !tileHashes[i].equals(contents.get(mapID));
+            }).toArray();
+        }
+    }
+
+    /**
+     * Applies an update to an image: moves the parts which cannot be redrawn in place to
+     * other Minecraft maps, and changes its content hashes.
+     *
+     * <p>Other images may have been rendered or updated since the maps were chosen. Nothing
+     * is changed if the parts to move are not the same anymore, or if a map reused for a
+     * part does not display its new content anymore; the maps then have to be chosen again.</p>
+     *
+     * @param map            The image.
+     * @param changedIndexes The sorted indexes of the parts which change.
+     * @param movedIndexes   The parts to move, as returned by {@link #getMapsIndexesToDetach}.
+     * @param mapsIDs        The new Minecraft maps of these parts.
+     * @param reused         Tells, for each of these parts, if its new map is an existing map
+     *                       already displaying its new content.
+     * @param contentHash    The new content hash.
+     * @param tileHashes     The new hashes of all the parts.
+     * @return {@code true} if the image was changed.
+     */
+    public static boolean updateMap(ImageMap map, int[] changedIndexes, int[] movedIndexes, int[] mapsIDs,
+                                    boolean[] reused, String contentHash, String[] tileHashes) {
+        synchronized (MapContentIndex.class) {
+            if (!Arrays.equals(getMapsIndexesToDetach(map, changedIndexes, tileHashes), movedIndexes)) {
+                return false;
+            }
+            for (int i = 0; i < movedIndexes.length; i++) {
+                if (reused[i] && !Objects.equals(MapContentIndex.getMapID(tileHashes[movedIndexes[i]]), mapsIDs[i])) {
+                    return false;
+                }
+            }
+
+            MapContentIndex.unregister(map);
+            for (int i = 0; i < movedIndexes.length; i++) {
+                map.replaceMapID(movedIndexes[i], mapsIDs[i]);
+            }
+            map.setContentHash(contentHash);
+            map.setTileHashes(tileHashes);
+            MapContentIndex.register(map);
+            return true;
+        }
+    }
+
     public static int[] getNewMapsIds(int amount) {
         int[] mapsIds = new int[amount];
         for (int i = 0; i < amount; i++) {
-            mapsIds[i] = Bukkit.createMap(Bukkit.getWorlds().get(0)).getId();
+            mapsIds[i] = releasedMapsIds.isEmpty()
+                    ? Bukkit.createMap(Bukkit.getWorlds().get(0)).getId() : releasedMapsIds.popInt();
         }
         return mapsIds;
     }
 
+    /**
+     * Gives back maps returned by {@link #getNewMapsIds(int)} which no image ended up using,
+     * e.g. as the rendering failed. Their renderers and their files are removed, and they are
+     * given to the next images instead of new maps. Must be called from the main thread.
+     *
+     * @param mapsIds The maps to give back. Maps used by an image are ignored.
+     */
+    @SuppressWarnings("deprecation")
+    public static void releaseMapsIds(int[] mapsIds) {
+        for (int mapID : mapsIds) {
+            if (mapID == PosterMap.BLANK_MAP_ID || MapContentIndex.getReferenceCount(mapID) > 0) {
+                continue;
+            }
+
+            MapView view = Bukkit.getMap(mapID);
+            if (view != null) {
+                Renderer.removeRenderers(view);
+            }
+
+            // Given again only once its files are gone, so that they do not replace the next ones.
+            CompletableFuture.allOf(
+                    ImageIOExecutor.deleteImage(ImageOnMap.getPlugin().getImageFile(mapID)),
+                    ImageIOExecutor.deleteAnimation(mapID)
+            ).handleAsync((result, throwable) -> releasedMapsIds.add(mapID), ImageRendererExecutor.getMainThread());
+        }
+    }
+
     /**
      * Returns the map ID from an ItemStack
      *
      * @param item The item stack
      * @return The map ID, or 0 if invalid.
      */
-    @SuppressWarnings("deprecation")
     public static int getMapIdFromItemStack(final ItemStack item) {
-        final ItemMeta meta = item.getItemMeta();
-        if (!(meta instanceof MapMeta)) {
-            return 0;
-        }
-
-        return ((MapMeta) meta).hasMapId() ? ((MapMeta) meta).getMapId() : 0;
+        return MapItemInfo.of(item).getMapID();
     }
 
     public static void addMap(ImageMap map) throws MapManagerException {
@@ -133,7 +327,14 @@ public abstract class MapManager {
 
     public static void deleteMap(ImageMap map) throws MapManagerException {
         getPlayerMapStore(map.getUserUUID()).deleteMap(map);
-        ImageIOExecutor.deleteImage(map);
+
+        // Maps shared with other images are kept until they are not used anymore
+        for (int mapID : map.getMapsIDs()) {
+            if (mapID != PosterMap.BLANK_MAP_ID && MapContentIndex.getReferenceCount(mapID) == 0) {
+                ImageIOExecutor.deleteImage(ImageOnMap.getPlugin().getImageFile(mapID));
+                ImageIOExecutor.deleteAnimation(mapID);
+            }
+        }
     }
 
     public static String getNextAvailableMapID(String mapId, UUID playerUUID) {
@@ -158,6 +359,21 @@ public abstract class MapManager {
         return getPlayerMapStore(playerUUID).getMapCount();
     }
 
+    /**
+     * Returns the images of every player.
+     *
+     * @return A copy of the list of the loaded images.
+     */
+    public static List<ImageMap> getAllMaps() {
+        List<ImageMap> maps = new ArrayList<>();
+        synchronized (playerMaps) {
+            for (PlayerMapStore mapStore : playerMaps) {
+                maps.addAll(Arrays.asList(mapStore.getMaps()));
+            }
+        }
+        return maps;
+    }
+
     public static ImageMap getMap(UUID playerUUID, String mapId) {
         return getPlayerMapStore(playerUUID).getMap(mapId);
     }
@@ -191,19 +407,34 @@ public abstract class MapManager {
      * @return The {@link ImageMap}.
      */
     public static ImageMap getMap(ItemStack item) {
-        if (item == null) {
+        return getMap(MapItemInfo.of(item));
+    }
+
+    /**
+     * Returns the {@link ImageMap} an item is a map of. Marked items are resolved by their
+     * image; the other ones, and the ones whose image was deleted, by their map.
+     *
+     * @param info The item.
+     * @return The {@link ImageMap}, or {@code null}.
+     */
+    public static ImageMap getMap(MapItemInfo info) {
+        if (!info.isMap()) {
             return null;
         }
-        if (item.getType() != Material.FILLED_MAP) {
-            return null;
+        if (info.getImageUUID() != null) {
+            ImageMap map = getMapByUUID(info.getImageUUID());
+            if (map != null) {
+                return map;
+            }
         }
-        return getMap(getMapIdFromItemStack(item));
+        return managesMap(info.getMapID()) ? getMap(info.getMapID()) : null;
     }
 
     public static void clear(Inventory inventory, ImageMap map) {
-        for (int i = 0, c = inventory.getSize(); i < c; i++) {
-            if (map.managesMap(inventory.getItem(i))) {
-                inventory.setItem(i, new ItemStack(Material.AIR));
+        ItemStack[] contents = inventory.getContents();
+        for (int i = 0; i < contents.length; i++) {
+            if (MapItemInfo.of(contents[i]).isPartOf(map)) {
+                inventory.setItem(i, null);
             }
         }
     }
@@ -258,17 +489,12 @@ public abstract class MapManager {
 
     /**
      * Returns the total number of minecraft maps used by ImageOnMap images.
+     * Maps shared by several images are only counted once.
      *
      * @return The count.
      */
     public static int getMapCount() {
-        int mapCount = 0;
-        synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
-                mapCount += tmpStore.getMapCount();
-            }
-        }
-        return mapCount;
+        return MapContentIndex.getDistinctMapCount();
     }
 
     public static PlayerMapStore getPlayerMapStore(UUID playerUUID) {
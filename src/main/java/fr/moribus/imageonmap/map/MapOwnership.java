@@ -0,0 +1,136 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.map;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit per Minecraft map ID, telling if ImageOnMap owns the map, and if one of its
+ * renderers is installed on it.
+ *
+ * <p>Most maps seen by the event handlers are vanilla maps; they are rejected by a single
+ * bit test, without locking nor walking the stores or the renderers of the map. The bits
+ * are read from any thread; they are only written by {@link MapContentIndex}, when a map
+ * starts or stops being used, and by the renderers when they are installed or removed.</p>
+ */
+public final class MapOwnership {
+    private static final Bits owned = new Bits();
+    private static final Bits rendered = new Bits();
+
+    private MapOwnership() {
+    }
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return {@code true} if this map is part of a loaded image.
+     */
+    public static boolean isOwned(int mapID) {
+        return owned.get(mapID);
+    }
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return {@code true} if an ImageOnMap renderer is installed on this map.
+     */
+    public static boolean isRendered(int mapID) {
+        return rendered.get(mapID);
+    }
+
+    static void setOwned(int mapID, boolean value) {
+        owned.set(mapID, value);
+    }
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @param value {@code true} when an ImageOnMap renderer was installed on it,
+     *              {@code false} when the renderers were removed.
+     */
+    public static void setRendered(int mapID, boolean value) {
+        rendered.set(mapID, value);
+    }
+
+    /**
+     * Forgets every map, e.g. when the plugin is disabled.
+     */
+    static void clear() {
+        owned.clear();
+        rendered.clear();
+    }
+
+    /**
+     * A bit set growing with the highest map ID set, whose reads do not lock.
+     */
+    private static final class Bits {
+        private volatile AtomicLongArray words = new AtomicLongArray(64);
+
+        boolean get(int index) {
+            if (index < 0) {
+                return false;
+            }
+            AtomicLongArray words = this.words;
+            int word = index >>> 6;
+            return word < words.length() && (words.get(word) & 1L << index) != 0;
+        }
+
+        synchronized void clear() {
+            words = new AtomicLongArray(64);
+        }
+
+        synchronized void set(int index, boolean value) {
+            if (index < 0) {
+                return;
+            }
+            int word = index >>> 6;
+            AtomicLongArray words = this.words;
+
+            if (word >= words.length()) {
+                if (!value) {
+                    return;
+                }
+                AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, words.length() * 2));
+                for (int i = 0; i < words.length(); i++) {
+                    grown.set(i, words.get(i));
+                }
+                this.words = words = grown;
+            }
+
+            long bit = 1L << index;
+            words.set(word, value ? words.get(word) | bit : words.get(word) & ~bit);
+        }
+    }
+}
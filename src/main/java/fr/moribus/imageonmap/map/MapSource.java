@@ -0,0 +1,166 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.moribus.imageonmap.image.DitherMode;
+import fr.moribus.imageonmap.image.ImageUtils;
+import java.util.Map;
+import org.bukkit.configuration.InvalidConfigurationException;
+
+/**
+ * Where an image was rendered from, so that it can be refreshed from the same URL.
+ */
+public class MapSource {
+    private final String url;
+    private final ImageUtils.ScalingType scaling;
+    private final DitherMode dither;
+    private int refreshInterval;
+
+    private String etag;
+    private String lastModified;
+    private String contentHash;
+
+    public MapSource(String url, ImageUtils.ScalingType scaling, DitherMode dither, int refreshInterval) {
+        this.url = url;
+        this.scaling = scaling;
+        this.dither = dither;
+        this.refreshInterval = Math.max(refreshInterval, 0);
+    }
+
+    static MapSource fromConfig(Map<String, Object> map) throws InvalidConfigurationException {
+        String url = ImageMap.getNullableFieldValue(map, "source");
+        if (url == null) {
+            return null;
+        }
+
+        ImageUtils.ScalingType scaling;
+        DitherMode dither;
+        try {
+            scaling = ImageUtils.ScalingType.valueOf(ImageMap.getFieldValue(map, "scaling"));
+
+            String ditherName = ImageMap.getNullableFieldValue(map, "dither");
+            dither = ditherName != null ? DitherMode.valueOf(ditherName) : DitherMode.NONE;
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidConfigurationException("Invalid scaling or dithering", ex);
+        }
+
+        Integer refreshInterval = ImageMap.getNullableFieldValue(map, "refresh");
+
+        MapSource source = new MapSource(url, scaling, dither, refreshInterval != null ? refreshInterval : 0);
+        source.etag = ImageMap.getNullableFieldValue(map, "etag");
+        source.lastModified = ImageMap.getNullableFieldValue(map, "last-modified");
+        source.contentHash = ImageMap.getNullableFieldValue(map, "source-hash");
+        return source;
+    }
+
+    synchronized void serialize(Map<String, Object> map) {
+        map.put("source", url);
+        map.put("scaling", scaling.name());
+        if (dither != DitherMode.NONE) {
+            map.put("dither", dither.name());
+        }
+        if (refreshInterval > 0) {
+            map.put("refresh", refreshInterval);
+        }
+        if (etag != null) {
+            map.put("etag", etag);
+        }
+        if (lastModified != null) {
+            map.put("last-modified", lastModified);
+        }
+        if (contentHash != null) {
+            map.put("source-hash", contentHash);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public ImageUtils.ScalingType getScaling() {
+        return scaling;
+    }
+
+    public DitherMode getDither() {
+        return dither;
+    }
+
+    /**
+     * @return The delay between two refreshes of the image, in minutes, or 0 if it is never refreshed.
+     */
+    public synchronized int getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public synchronized void setRefreshInterval(int refreshInterval) {
+        this.refreshInterval = Math.max(refreshInterval, 0);
+    }
+
+    /**
+     * @return The ETag sent by the server the last time the image was downloaded, or {@code null}.
+     */
+    public synchronized String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return The Last-Modified date sent by the server the last time the image was downloaded, or {@code null}.
+     */
+    public synchronized String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The hash of the bytes downloaded the last time, or {@code null}.
+     */
+    public synchronized String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Remembers what the server sent, to only download the image again if it changed.
+     *
+     * @param etag         The ETag header, or {@code null}.
+     * @param lastModified The Last-Modified header, or {@code null}.
+     * @param contentHash  The hash of the downloaded bytes.
+     */
+    public synchronized void setValidators(String etag, String lastModified, String contentHash) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+}
@@ -49,7 +49,6 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
 
-import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -78,20 +77,9 @@ public class PlayerMapStore implements ConfigurationSerializable {
         return false;
     }
 
-    public synchronized boolean managesMap(ItemStack item) {
-        if (item == null) {
-            return false;
-        }
-        if (item.getType() != Material.FILLED_MAP) {
-            return false;
-        }
-
-        for (ImageMap map : mapList) {
-            if (map.managesMap(item)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean managesMap(ItemStack item) {
+        MapItemInfo info = MapItemInfo.of(item);
+        return info.isMap() && managesMap(info.getMapID());
     }
 
     public synchronized void addMap(ImageMap map) throws MapManagerException {
@@ -106,6 +94,7 @@ public class PlayerMapStore implements ConfigurationSerializable {
     private void add_Map(ImageMap map) {
         mapList.add(map);
         mapCount += map.getMapCount();
+        MapContentIndex.register(map);
     }
 
     public synchronized void deleteMap(ImageMap map) throws MapManagerException {
@@ -117,6 +106,7 @@ public class PlayerMapStore implements ConfigurationSerializable {
             throw new MapManagerException(Reason.IMAGEMAP_DOES_NOT_EXIST);
         }
         mapCount -= map.getMapCount();
+        MapContentIndex.unregister(map);
     }
 
     public synchronized boolean mapExists(String id) {
@@ -36,6 +36,7 @@
 
 package fr.moribus.imageonmap.map;
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -43,15 +44,28 @@ import org.bukkit.block.BlockFace;
 import org.bukkit.configuration.InvalidConfigurationException;
 
 public class PosterMap extends ImageMap {
+    /**
+     * The map ID of fully transparent parts, for which no Minecraft map is allocated.
+     */
+    public static final int BLANK_MAP_ID = -1;
+
     protected final int[] mapsIDs;
     protected final int columnCount;
     protected final int rowCount;
 
+    /**
+     * Map ID → index of its first part. Posters are looked up by map ID on every
+     * frame and inventory scan, so this is rebuilt whenever an ID changes instead
+     * of walking {@link #mapsIDs}.
+     */
+    private volatile Int2IntOpenHashMap indexes;
+
     public PosterMap(UUID userUUID, int[] mapsIDs, String id, String name, int columnCount, int rowCount) {
         super(userUUID, Type.POSTER, id, name);
         this.mapsIDs = mapsIDs;
         this.columnCount = Math.max(columnCount, 0);
         this.rowCount = Math.max(rowCount, 0);
+        this.indexes = buildIndexes(mapsIDs);
     }
 
     public PosterMap(UUID userUUID, int[] mapsIDs, int columnCount, int rowCount) {
@@ -69,6 +83,18 @@ public class PosterMap extends ImageMap {
         for (int i = 0, c = idList.size(); i < c; i++) {
             mapsIDs[i] = idList.get(i);
         }
+        indexes = buildIndexes(mapsIDs);
+    }
+
+    private static Int2IntOpenHashMap buildIndexes(int[] mapsIDs) {
+        final Int2IntOpenHashMap indexes = new Int2IntOpenHashMap(mapsIDs.length);
+        indexes.defaultReturnValue(-1);
+        for (int i = 0; i < mapsIDs.length; i++) {
+            if (mapsIDs[i] != BLANK_MAP_ID) {
+                indexes.putIfAbsent(mapsIDs[i], i);
+            }
+        }
+        return indexes;
     }
 
     @Override
@@ -76,17 +102,17 @@ public class PosterMap extends ImageMap {
         return mapsIDs;
     }
 
+    @Override
+    void replaceMapID(int index, int mapID) {
+        mapsIDs[index] = mapID;
+        indexes = buildIndexes(mapsIDs);
+    }
+
     /* ====== Serialization methods ====== */
 
     @Override
     public boolean managesMap(int mapID) {
-        for (int mapsID : mapsIDs) {
-            if (mapsID == mapID) {
-                return true;
-            }
-        }
-
-        return false;
+        return mapID != BLANK_MAP_ID && indexes.containsKey(mapID);
     }
 
     @Override
@@ -146,18 +172,57 @@ public class PosterMap extends ImageMap {
         return mapsIDs[y * columnCount + x];
     }
 
+    @Override
     public int getMapIdAt(int index) {
         return mapsIDs[index];
     }
 
+    /**
+     * @param index The index of the part.
+     * @return {@code true} if this part is fully transparent, and has no Minecraft map.
+     */
+    public boolean isBlankAt(int index) {
+        return mapsIDs[index] == BLANK_MAP_ID;
+    }
+
+    /**
+     * Returns the first Minecraft map of this poster which is not blank, used to
+     * represent the whole poster.
+     *
+     * @return The Minecraft map ID.
+     */
+    public int getFirstMapId() {
+        return mapsIDs[getFirstIndex()];
+    }
+
+    /**
+     * @return The index of the part whose map is returned by {@link #getFirstMapId()}.
+     */
+    public int getFirstIndex() {
+        for (int i = 0; i < mapsIDs.length; i++) {
+            if (mapsIDs[i] != BLANK_MAP_ID) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
     public int getMapIdAtReverseY(int index) {
+        return mapsIDs[getIndexAtReverseY(index)];
+    }
+
+    public int getIndexAtReverseY(int index) {
         int x = index % (columnCount);
         int y = index / (columnCount);
-        return getMapIdAt(x, rowCount - y - 1);
+        return getIndexAt(x, rowCount - y - 1);
     }
 
 
     public int getMapIdAtReverseZ(int index, BlockFace bf) {
+        return mapsIDs[getIndexAtReverseZ(index, bf)];
+    }
+
+    public int getIndexAtReverseZ(int index, BlockFace bf) {
         int x;
         int y;
 
@@ -176,7 +241,7 @@ public class PosterMap extends ImageMap {
             }
         }
 
-        return getMapIdAt(x, rowCount - y - 1);
+        return getIndexAt(x, rowCount - y - 1);
     }
 
 
@@ -191,13 +256,22 @@ public class PosterMap extends ImageMap {
     }
 
     public int getIndex(int mapID) {
-        for (int i = 0; i < mapsIDs.length; i++) {
-            if (mapsIDs[i] == mapID) {
-                return i;
-            }
+        final int index = indexOf(mapID);
+        if (index < 0) {
+            throw new IllegalArgumentException("Invalid map ID");
         }
+        return index;
+    }
 
-        throw new IllegalArgumentException("Invalid map ID");
+    /**
+     * Returns the index of the first part using the given map. Parts sharing the
+     * same (deduplicated) map all resolve to this index.
+     *
+     * @param mapID The Minecraft map ID.
+     * @return The index of the part, or -1 if this poster does not use this map.
+     */
+    public int indexOf(int mapID) {
+        return indexes.get(mapID);
     }
 
 }
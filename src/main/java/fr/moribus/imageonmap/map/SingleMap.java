@@ -41,7 +41,7 @@ import java.util.UUID;
 import org.bukkit.configuration.InvalidConfigurationException;
 
 public class SingleMap extends ImageMap {
-    protected final int mapID;
+    protected int mapID;
 
     public SingleMap(UUID ownerUUID, int mapID, String id, String name) {
         super(ownerUUID, Type.SINGLE, id, name);
@@ -62,6 +62,22 @@ public class SingleMap extends ImageMap {
         return new int[] {mapID};
     }
 
+    @Override
+    void replaceMapID(int index, int mapID) {
+        if (index != 0) {
+            throw new IndexOutOfBoundsException("Invalid map index " + index);
+        }
+        this.mapID = mapID;
+    }
+
+    @Override
+    public int getMapIdAt(int index) {
+        if (index != 0) {
+            throw new IndexOutOfBoundsException("Invalid map index " + index);
+        }
+        return mapID;
+    }
+
     @Override
     public boolean managesMap(int mapID) {
         return this.mapID == mapID;
@@ -0,0 +1,270 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.moribus.imageonmap.map.SingleMap;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Drops the maps of the item frames broken during a tick all at once.
+ *
+ * <p>An explosion near a large poster breaks hundreds of frames in the same tick. Their maps
+ * are taken out of the frames as they break, and dropped at the next tick: one stack per
+ * map and area instead of one item per frame, each image being looked up once. Optionally,
+ * every complete poster is dropped as a single splatter map.</p>
+ *
+ * <p>An area is a group of neighbouring chunks of a world with broken frames in them, so
+ * that maps shared by posters far apart are never dropped at the other poster.</p>
+ */
+final class FrameBreakBatch {
+    private static List<BrokenFrame> brokenFrames = new ArrayList<>();
+
+    private FrameBreakBatch() {
+    }
+
+    /**
+     * Takes the map out of a frame which is breaking, to drop it with the others. Main thread only.
+     *
+     * @param frame The frame.
+     * @param mapID The map it holds, which must be managed by ImageOnMap.
+     */
+    static void add(ItemFrame frame, int mapID) {
+        if (brokenFrames.isEmpty()) {
+            RunTask.nextTick(FrameBreakBatch::drop);
+        }
+
+        brokenFrames.add(new BrokenFrame(frame.getLocation(), mapID));
+        frame.setItem(null, false);
+    }
+
+    private static void drop() {
+        final List<BrokenFrame> batch = brokenFrames;
+        brokenFrames = new ArrayList<>();
+
+        // The images are resolved once for the whole batch.
+        final List<ImageMap> images = new ArrayList<>();
+        for (List<BrokenFrame> area : getAreas(batch)) {
+            drop(area, images);
+        }
+    }
+
+    /**
+     * Drops the maps of the frames broken in an area.
+     *
+     * @param area   The frames.
+     * @param images The images already resolved.
+     */
+    private static void drop(List<BrokenFrame> area, List<ImageMap> images) {
+        // Each map is dropped where the first frame holding it was.
+        final Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+        final Int2ObjectOpenHashMap<Location> locations = new Int2ObjectOpenHashMap<>();
+        for (BrokenFrame frame : area) {
+            counts.addTo(frame.mapID(), 1);
+            locations.putIfAbsent(frame.mapID(), frame.location());
+        }
+
+        final Map<ImageMap, IntList> areaImages = new LinkedHashMap<>();
+        for (int mapID : counts.keySet()) {
+            ImageMap image = resolve(mapID, images);
+            if (image != null) {
+                areaImages.computeIfAbsent(image, key -> new IntArrayList()).add(mapID);
+            }
+        }
+
+        for (Map.Entry<ImageMap, IntList> entry : areaImages.entrySet()) {
+            if (entry.getKey() instanceof PosterMap poster) {
+                if (PluginConfiguration.DROP_SPLATTER_MAPS.get() && poster.hasColumnData()) {
+                    dropSplatterMaps(poster, entry.getValue(), counts, locations);
+                }
+                for (int mapID : entry.getValue()) {
+                    int count = counts.get(mapID);
+                    if (count > 0) {
+                        drop(locations.get(mapID), MapItemManager.createMapItem(poster, poster.getIndex(mapID)), count);
+                    }
+                }
+            } else if (entry.getKey() instanceof SingleMap map) {
+                int mapID = entry.getValue().getInt(0);
+                drop(locations.get(mapID), MapItemManager.createMapItem(map, true), counts.get(mapID));
+            }
+        }
+    }
+
+    /**
+     * @return The image of the map, or {@code null} if it was deleted in the meantime. The maps
+     *     of a poster are all resolved with the first one.
+     */
+    private static ImageMap resolve(int mapID, List<ImageMap> images) {
+        for (ImageMap image : images) {
+            if (image.managesMap(mapID)) {
+                return image;
+            }
+        }
+
+        ImageMap image = MapManager.getMap(mapID);
+        if (image != null) {
+            images.add(image);
+        }
+        return image;
+    }
+
+    /**
+     * Drops a splatter map for each complete copy of the poster among the broken maps, which
+     * are then not dropped.
+     */
+    private static void dropSplatterMaps(PosterMap poster, IntList mapsIDs, Int2IntOpenHashMap counts,
+                                         Int2ObjectOpenHashMap<Location> locations) {
+        // Identical parts share a map: a copy needs that map as many times as it is used.
+        final Int2IntOpenHashMap needed = new Int2IntOpenHashMap();
+        for (int mapID : poster.getMapsIDs()) {
+            if (mapID != PosterMap.BLANK_MAP_ID) {
+                needed.addTo(mapID, 1);
+            }
+        }
+        if (needed.isEmpty() || needed.size() > mapsIDs.size()) {
+            return;
+        }
+
+        int copies = Integer.MAX_VALUE;
+        for (Int2IntMap.Entry entry : needed.int2IntEntrySet()) {
+            copies = Math.min(copies, counts.get(entry.getIntKey()) / entry.getIntValue());
+        }
+        if (copies == 0) {
+            return;
+        }
+
+        for (Int2IntMap.Entry entry : needed.int2IntEntrySet()) {
+            counts.addTo(entry.getIntKey(), -copies * entry.getIntValue());
+        }
+        drop(locations.get(mapsIDs.getInt(0)), SplatterMapManager.makeSplatterMap(poster), copies);
+    }
+
+    /**
+     * Groups the frames by area: frames of the same world whose chunks touch, directly or
+     * through other chunks with broken frames, are in the same area.
+     */
+    private static List<List<BrokenFrame>> getAreas(List<BrokenFrame> frames) {
+        final Map<World, Long2ObjectOpenHashMap<List<BrokenFrame>>> chunks = new LinkedHashMap<>();
+        for (BrokenFrame frame : frames) {
+            Location location = frame.location();
+            Long2ObjectOpenHashMap<List<BrokenFrame>> worldChunks =
+                    chunks.computeIfAbsent(location.getWorld(), world -> new Long2ObjectOpenHashMap<>());
+            long key = chunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+            List<BrokenFrame> chunkFrames = worldChunks.get(key);
+            if (chunkFrames == null) {
+                chunkFrames = new ArrayList<>();
+                worldChunks.put(key, chunkFrames);
+            }
+            chunkFrames.add(frame);
+        }
+
+        final List<List<BrokenFrame>> areas = new ArrayList<>();
+        for (Long2ObjectOpenHashMap<List<BrokenFrame>> worldChunks : chunks.values()) {
+            final LongOpenHashSet visited = new LongOpenHashSet();
+            for (Long2ObjectMap.Entry<List<BrokenFrame>> start : worldChunks.long2ObjectEntrySet()) {
+                if (!visited.add(start.getLongKey())) {
+                    continue;
+                }
+
+                final List<BrokenFrame> area = new ArrayList<>();
+                final LongArrayList pending = new LongArrayList();
+                pending.add(start.getLongKey());
+                while (!pending.isEmpty()) {
+                    final long key = pending.popLong();
+                    area.addAll(worldChunks.get(key));
+
+                    final int chunkX = (int) (key >> 32);
+                    final int chunkZ = (int) key;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        for (int dz = -1; dz <= 1; dz++) {
+                            long neighbour = chunkKey(chunkX + dx, chunkZ + dz);
+                            if (worldChunks.containsKey(neighbour) && visited.add(neighbour)) {
+                                pending.add(neighbour);
+                            }
+                        }
+                    }
+                }
+                areas.add(area);
+            }
+        }
+        return areas;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Drops the given amount of an item, in as few stacks as possible.
+     */
+    private static void drop(Location location, ItemStack item, int amount) {
+        if (item == null) {
+            return;
+        }
+
+        while (amount > 0) {
+            ItemStack stack = item.clone();
+            stack.setAmount(Math.min(amount, item.getMaxStackSize()));
+            amount -= stack.getAmount();
+            location.getWorld().dropItemNaturally(location, stack);
+        }
+    }
+
+    private record BrokenFrame(Location location, int mapID) {
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.zcraft.quartzlib.tools.world.FlatLocation;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Hanging;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.BoundingBox;
+
+/**
+ * The item frames of an area, by block, and the bounding boxes of all its hanging entities.
+ * The area is queried once, so that looking up the frame of each part of a poster does not
+ * go through all the entities of its chunk again.
+ *
+ * <p>The index is built on the main thread. The bounding boxes are copies, and can be read
+ * from any thread; the frames cannot, but which of them are empty can be copied.</p>
+ */
+final class FrameIndex {
+    private final Map<Long, List<ItemFrame>> frames = new HashMap<>();
+    private final List<BoundingBox> hangings = new ArrayList<>();
+
+    private FrameIndex(World world, BoundingBox box) {
+        for (Entity entity : world.getNearbyEntities(box, entity -> entity instanceof Hanging)) {
+            hangings.add(entity.getBoundingBox());
+
+            if (entity instanceof ItemFrame frame) {
+                Location location = frame.getLocation();
+                frames.computeIfAbsent(key(location.getBlockX(), location.getBlockY(), location.getBlockZ()),
+                        key -> new ArrayList<>(1)).add(frame);
+            }
+        }
+    }
+
+    /**
+     * Queries the hanging entities between the given block coordinates, included.
+     */
+    static FrameIndex of(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return new FrameIndex(world, new BoundingBox(minX, minY, minZ, maxX + 1, maxY + 1, maxZ + 1));
+    }
+
+    /**
+     * Queries the item frames of the blocks containing the given locations, which must be
+     * in the same world.
+     *
+     * @param locations The locations; {@code null} ones are ignored.
+     * @return The frames of these blocks, and maybe of some others in between.
+     */
+    static FrameIndex of(Location... locations) {
+        World world = null;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+
+        for (Location location : locations) {
+            if (location == null) {
+                continue;
+            }
+
+            world = location.getWorld();
+            minX = Math.min(minX, location.getBlockX());
+            minY = Math.min(minY, location.getBlockY());
+            minZ = Math.min(minZ, location.getBlockZ());
+            maxX = Math.max(maxX, location.getBlockX());
+            maxY = Math.max(maxY, location.getBlockY());
+            maxZ = Math.max(maxZ, location.getBlockZ());
+        }
+
+        if (world == null) {
+            throw new IllegalArgumentException("No location given");
+        }
+        return of(world, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * @return The frame facing the given way in the block of the location, and holding a map
+     *     of the given poster, or {@code null}.
+     */
+    ItemFrame getMapFrameAt(Location location, BlockFace facing, PosterMap map) {
+        for (ItemFrame frame : getFramesAt(location)) {
+            if (frame.getFacing() != facing) {
+                continue;
+            }
+            ItemStack item = frame.getItem();
+            if (item.getType() == Material.FILLED_MAP && map.managesMap(item)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The empty frame facing the given way in the block of the location, or {@code null}.
+     */
+    ItemFrame getEmptyFrameAt(Location location, BlockFace facing) {
+        for (ItemFrame frame : getFramesAt(location)) {
+            if (frame.getFacing() == facing && frame.getItem().getType() == Material.AIR) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param cells The locations of the frames, facing the way the frames should.
+     * @return The empty frame of each cell, or {@code null} if one of them has none.
+     */
+    ItemFrame[] getEmptyFrames(FlatLocation[] cells) {
+        ItemFrame[] found = new ItemFrame[cells.length];
+
+        for (int i = 0; i < cells.length; i++) {
+            found[i] = getEmptyFrameAt(cells[i], cells[i].getFacing());
+            if (found[i] == null) {
+                return null;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Looks for an empty frame in each cell, off the main thread. The frames of the cells are
+     * read once on the main thread; they are then matched to the cells on another thread, and
+     * checked again on the main thread, as they may have changed in between.
+     *
+     * @param cells The locations of the frames, facing the way the frames should.
+     * @return A future completed on the main thread with the empty frame of each cell, or
+     *     {@code null} if one of them has none.
+     */
+    static CompletableFuture<ItemFrame[]> findEmptyFrames(FlatLocation[] cells) {
+        final EmptyFrames emptyFrames = of(cells).getEmptyFrames();
+        final long[] keys = new long[cells.length];
+        final BlockFace[] facings = new BlockFace[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            keys[i] = key(cells[i].getBlockX(), cells[i].getBlockY(), cells[i].getBlockZ());
+            facings[i] = cells[i].getFacing();
+        }
+
+        // Matching the cells is short, and only reads plain data.
+        return CompletableFuture.supplyAsync(() -> emptyFrames.find(keys, facings), ForkJoinPool.commonPool())
+                .thenApplyAsync(emptyFrames::resolve, ImageRendererExecutor.getMainThread());
+    }
+
+    /**
+     * Copies which frames of the index are empty. Main thread only.
+     */
+    private EmptyFrames getEmptyFrames() {
+        final List<ItemFrame> emptyFrames = new ArrayList<>();
+        final List<BlockFace> facings = new ArrayList<>();
+        final Long2ObjectOpenHashMap<IntList> byBlock = new Long2ObjectOpenHashMap<>();
+
+        for (Map.Entry<Long, List<ItemFrame>> entry : frames.entrySet()) {
+            for (ItemFrame frame : entry.getValue()) {
+                if (frame.getItem().getType() == Material.AIR) {
+                    byBlock.computeIfAbsent(entry.getKey().longValue(), key -> new IntArrayList(1))
+                            .add(emptyFrames.size());
+                    emptyFrames.add(frame);
+                    facings.add(frame.getFacing());
+                }
+            }
+        }
+
+        return new EmptyFrames(emptyFrames.toArray(new ItemFrame[0]), facings.toArray(new BlockFace[0]), byBlock);
+    }
+
+    /**
+     * @return {@code true} if a hanging entity of the area overlaps the given box. Any thread.
+     */
+    boolean overlapsHanging(BoundingBox box) {
+        for (BoundingBox hanging : hangings) {
+            if (hanging.overlaps(box)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<ItemFrame> getFramesAt(Location location) {
+        return frames.getOrDefault(key(location.getBlockX(), location.getBlockY(), location.getBlockZ()),
+                List.of());
+    }
+
+    private static long key(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+    }
+
+    /**
+     * The empty frames of an index, by block. Their blocks and facings are plain data, read
+     * from any thread; the frames themselves are only touched on the main thread.
+     */
+    private record EmptyFrames(ItemFrame[] frames, BlockFace[] facings, Long2ObjectOpenHashMap<IntList> byBlock) {
+        /**
+         * @return The index of the empty frame of each cell, or {@code null} if one of them
+         *     has none. Any thread.
+         */
+        int[] find(long[] keys, BlockFace[] cellFacings) {
+            final int[] found = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                found[i] = -1;
+                final IntList candidates = byBlock.get(keys[i]);
+                if (candidates != null) {
+                    for (int j = 0; j < candidates.size(); j++) {
+                        if (facings[candidates.getInt(j)] == cellFacings[i]) {
+                            found[i] = candidates.getInt(j);
+                            break;
+                        }
+                    }
+                }
+                if (found[i] < 0) {
+                    return null;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return The frames found, or {@code null} if they were not found, or one of them
+         *     was removed or got an item since. Main thread only.
+         */
+        ItemFrame[] resolve(int[] found) {
+            if (found == null) {
+                return null;
+            }
+
+            final ItemFrame[] resolved = new ItemFrame[found.length];
+            for (int i = 0; i < found.length; i++) {
+                resolved[i] = frames[found[i]];
+                if (!resolved[i].isValid() || resolved[i].getItem().getType() != Material.AIR) {
+                    return null;
+                }
+            }
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import fr.zcraft.quartzlib.tools.world.FlatLocation;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.hanging.HangingBreakEvent;
+import org.bukkit.event.hanging.HangingPlaceEvent;
+import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Knows which item frames display ImageOnMap maps, including in unloaded chunks, so that
+ * finding where a map is displayed never goes through the entities of the chunks.
+ *
+ * <p>The frames are updated when their chunk loads or unloads, and when they are placed,
+ * broken, or get or lose an item. Frames changed while the plugin was not running are
+ * found again when their chunk loads. Each world's frames are saved in the plugin's
+ * {@code frames} directory.</p>
+ *
+ * <p>Everything here happens on the main thread.</p>
+ */
+public final class FrameRegistry implements Listener {
+    private static final int MAGIC = 0x494F4D46;
+    private static final int VERSION = 1;
+
+    /*
+     * A frame is stored as a long: 25 bits for X and Z, 11 bits for Y from the bottom of
+     * the world, and 3 for the facing. Frames out of these bounds are not tracked.
+     */
+    private static final int HORIZONTAL_LIMIT = 1 << 24;
+    private static final int HEIGHT_LIMIT = 1 << 11;
+    private static final BlockFace[] FACES = {BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST,
+            BlockFace.UP, BlockFace.DOWN};
+
+    private static final Map<UUID, WorldFrames> worlds = new HashMap<>();
+
+    private FrameRegistry() {
+    }
+
+    public static void init() {
+        Bukkit.getPluginManager().registerEvents(new FrameRegistry(), ImageOnMap.getPlugin());
+
+        for (World world : Bukkit.getWorlds()) {
+            WorldFrames frames = load(world);
+            for (Chunk chunk : world.getLoadedChunks()) {
+                if (chunk.isEntitiesLoaded()) {
+                    frames.update(chunk, Arrays.asList(chunk.getEntities()));
+                }
+            }
+        }
+    }
+
+    public static void exit() {
+        worlds.values().forEach(WorldFrames::save);
+        worlds.clear();
+    }
+
+    /**
+     * Updates the registry after the item of a frame changed.
+     *
+     * @param frame The frame.
+     */
+    public static void update(ItemFrame frame) {
+        WorldFrames frames = worlds.get(frame.getWorld().getUID());
+        if (frames != null) {
+            frames.update(frame);
+        }
+    }
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return The locations of the frames displaying it, in all the worlds, facing the way
+     *     the frames do.
+     */
+    public static List<FlatLocation> getFrameLocations(int mapID) {
+        List<FlatLocation> locations = new ArrayList<>();
+
+        for (WorldFrames frames : worlds.values()) {
+            LongSet keys = frames.framesByMap.get(mapID);
+            if (keys != null) {
+                for (LongIterator iterator = keys.iterator(); iterator.hasNext(); ) {
+                    locations.add(frames.toLocation(iterator.nextLong()));
+                }
+            }
+        }
+
+        return locations;
+    }
+
+    /**
+     * @return The ID of the ImageOnMap map displayed by the frame in the block of the
+     *     location and facing the given way, or 0.
+     */
+    public static int getMapAt(Location location, BlockFace facing) {
+        WorldFrames frames = worlds.get(location.getWorld().getUID());
+        if (frames == null || !frames.isTracked(location.getBlockY())) {
+            return 0;
+        }
+        return frames.mapByFrame.get(frames.key(location.getBlockX(), location.getBlockY(),
+                location.getBlockZ(), facing));
+    }
+
+    /**
+     * Calls the consumer for each frame displaying an ImageOnMap map in a cube around
+     * the given location.
+     *
+     * @param center The center of the cube.
+     * @param radius The half size of the cube, in blocks.
+     */
+    public static void forEachFrameAround(Location center, int radius, FrameConsumer consumer) {
+        WorldFrames frames = worlds.get(center.getWorld().getUID());
+        if (frames == null) {
+            return;
+        }
+
+        final int minX = center.getBlockX() - radius;
+        final int maxX = center.getBlockX() + radius;
+        final int minY = center.getBlockY() - radius;
+        final int maxY = center.getBlockY() + radius;
+        final int minZ = center.getBlockZ() - radius;
+        final int maxZ = center.getBlockZ() + radius;
+
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                LongSet keys = frames.framesByChunk.get(chunkKey(chunkX, chunkZ));
+                if (keys == null) {
+                    continue;
+                }
+
+                for (LongIterator iterator = keys.iterator(); iterator.hasNext(); ) {
+                    long key = iterator.nextLong();
+                    int x = getX(key);
+                    int y = frames.getY(key);
+                    int z = getZ(key);
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                        consumer.accept(frames.mapByFrame.get(key), x, y, z, getFacing(key));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int getX(long key) {
+        return (int) (key >> 39);
+    }
+
+    private static int getZ(long key) {
+        return (int) (key << 25 >> 39);
+    }
+
+    private static BlockFace getFacing(long key) {
+        return FACES[(int) (key & 7)];
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return (long) chunkZ << 32 | (chunkX & 0xFFFFFFFFL);
+    }
+
+    private static long chunkKeyOf(long key) {
+        return chunkKey(getX(key) >> 4, getZ(key) >> 4);
+    }
+
+    private static int getMapID(ItemFrame frame) {
+        ItemStack item = frame.getItem();
+        if (item.getType() != Material.FILLED_MAP) {
+            return 0;
+        }
+
+        int mapID = MapManager.getMapIdFromItemStack(item);
+        return MapManager.managesMap(mapID) ? mapID : 0;
+    }
+
+    private static Path getFile(World world) {
+        return ImageOnMap.getPlugin().getDataFolder().toPath().resolve("frames").resolve(world.getUID() + ".dat");
+    }
+
+    private static WorldFrames load(World world) {
+        WorldFrames frames = new WorldFrames(world);
+        worlds.put(world.getUID(), frames);
+
+        Path file = getFile(world);
+        if (!Files.isRegularFile(file)) {
+            return frames;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a frame registry file");
+            }
+
+            // The bottom of the world may have changed since the file was saved.
+            int minHeight = input.readInt();
+            int mapCount = input.readInt();
+            for (int i = 0; i < mapCount; i++) {
+                int mapID = input.readInt();
+                int frameCount = input.readInt();
+                for (int j = 0; j < frameCount; j++) {
+                    long key = input.readLong();
+                    int y = (int) (key >>> 3 & (HEIGHT_LIMIT - 1)) + minHeight;
+                    if (frames.isTracked(y)) {
+                        frames.set(frames.key(getX(key), y, getZ(key), getFacing(key)), mapID);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                    "Could not load the item frames of the world " + world.getName(), e);
+        }
+
+        frames.dirty = false;
+        return frames;
+    }
+
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+        load(event.getWorld());
+    }
+
+    @EventHandler
+    public void onWorldSave(WorldSaveEvent event) {
+        WorldFrames frames = worlds.get(event.getWorld().getUID());
+        if (frames != null) {
+            frames.save();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        WorldFrames frames = worlds.remove(event.getWorld().getUID());
+        if (frames != null) {
+            frames.save();
+        }
+    }
+
+    @EventHandler
+    public void onEntitiesLoad(EntitiesLoadEvent event) {
+        WorldFrames frames = worlds.get(event.getWorld().getUID());
+        if (frames != null) {
+            frames.update(event.getChunk(), event.getEntities());
+        }
+    }
+
+    @EventHandler
+    public void onEntitiesUnload(EntitiesUnloadEvent event) {
+        WorldFrames frames = worlds.get(event.getWorld().getUID());
+        if (frames != null) {
+            frames.update(event.getChunk(), event.getEntities());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingPlace(HangingPlaceEvent event) {
+        if (event.getEntity() instanceof ItemFrame frame) {
+            // Frames may be placed with an item, which is only set after the event.
+            RunTask.nextTick(() -> update(frame));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingBreak(HangingBreakEvent event) {
+        if (event.getEntity() instanceof ItemFrame frame) {
+            WorldFrames frames = worlds.get(frame.getWorld().getUID());
+            if (frames != null) {
+                frames.remove(frame);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onFrameInteract(PlayerInteractEntityEvent event) {
+        if (event.getRightClicked() instanceof ItemFrame frame) {
+            RunTask.nextTick(() -> update(frame));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onFrameDamage(EntityDamageByEntityEvent event) {
+        if (event.getEntity() instanceof ItemFrame frame) {
+            RunTask.nextTick(() -> update(frame));
+        }
+    }
+
+    @FunctionalInterface
+    public interface FrameConsumer {
+        void accept(int mapID, int x, int y, int z, BlockFace facing);
+    }
+
+    private static final class WorldFrames {
+        private final World world;
+        private final int minHeight;
+
+        private final Long2IntOpenHashMap mapByFrame = new Long2IntOpenHashMap();
+        private final Int2ObjectOpenHashMap<LongSet> framesByMap = new Int2ObjectOpenHashMap<>();
+        private final Long2ObjectOpenHashMap<LongSet> framesByChunk = new Long2ObjectOpenHashMap<>();
+        private boolean dirty = false;
+
+        private WorldFrames(World world) {
+            this.world = world;
+            this.minHeight = world.getMinHeight();
+        }
+
+        private boolean isTracked(int y) {
+            return y >= minHeight && y < minHeight + HEIGHT_LIMIT;
+        }
+
+        private boolean isTracked(Location location) {
+            return location.getBlockX() >= -HORIZONTAL_LIMIT && location.getBlockX() < HORIZONTAL_LIMIT
+                    && location.getBlockZ() >= -HORIZONTAL_LIMIT && location.getBlockZ() < HORIZONTAL_LIMIT
+                    && isTracked(location.getBlockY());
+        }
+
+        private long key(int x, int y, int z, BlockFace facing) {
+            return (long) x << 39 | ((long) z & 0x1FFFFFF) << 14 | (long) (y - minHeight) << 3 | facing.ordinal();
+        }
+
+        private long key(ItemFrame frame) {
+            Location location = frame.getLocation();
+            return key(location.getBlockX(), location.getBlockY(), location.getBlockZ(), frame.getFacing());
+        }
+
+        private int getY(long key) {
+            return (int) (key >>> 3 & (HEIGHT_LIMIT - 1)) + minHeight;
+        }
+
+        private FlatLocation toLocation(long key) {
+            return new FlatLocation(world, getX(key), getY(key), getZ(key), getFacing(key));
+        }
+
+        private void update(ItemFrame frame) {
+            if (frame.isValid() && isTracked(frame.getLocation())) {
+                set(key(frame), getMapID(frame));
+            }
+        }
+
+        private void remove(ItemFrame frame) {
+            if (isTracked(frame.getLocation())) {
+                set(key(frame), 0);
+            }
+        }
+
+        /**
+         * Replaces the frames of a chunk by the ones of its entities.
+         */
+        private void update(Chunk chunk, List<Entity> entities) {
+            Long2IntOpenHashMap current = new Long2IntOpenHashMap();
+            for (Entity entity : entities) {
+                if (entity instanceof ItemFrame frame && isTracked(frame.getLocation())) {
+                    int mapID = getMapID(frame);
+                    if (mapID != 0) {
+                        current.put(key(frame), mapID);
+                    }
+                }
+            }
+
+            LongSet previous = framesByChunk.get(chunkKey(chunk.getX(), chunk.getZ()));
+            if (previous != null) {
+                for (long key : previous.toLongArray()) {
+                    if (!current.containsKey(key)) {
+                        set(key, 0);
+                    }
+                }
+            }
+
+            for (Long2IntMap.Entry entry : current.long2IntEntrySet()) {
+                set(entry.getLongKey(), entry.getIntValue());
+            }
+        }
+
+        /**
+         * @param mapID The map displayed by the frame, or 0 if it does not display any.
+         */
+        private void set(long key, int mapID) {
+            int previousMapID = mapByFrame.get(key);
+            if (previousMapID == mapID) {
+                return;
+            }
+
+            if (previousMapID != 0) {
+                LongSet mapFrames = framesByMap.get(previousMapID);
+                if (mapFrames.remove(key) && mapFrames.isEmpty()) {
+                    framesByMap.remove(previousMapID);
+                }
+            }
+
+            final long chunkKey = chunkKeyOf(key);
+            if (mapID == 0) {
+                mapByFrame.remove(key);
+
+                LongSet chunkFrames = framesByChunk.get(chunkKey);
+                if (chunkFrames.remove(key) && chunkFrames.isEmpty()) {
+                    framesByChunk.remove(chunkKey);
+                }
+            } else {
+                mapByFrame.put(key, mapID);
+
+                LongSet mapFrames = framesByMap.get(mapID);
+                if (mapFrames == null) {
+                    mapFrames = new LongOpenHashSet(2);
+                    framesByMap.put(mapID, mapFrames);
+                }
+                mapFrames.add(key);
+
+                LongSet chunkFrames = framesByChunk.get(chunkKey);
+                if (chunkFrames == null) {
+                    chunkFrames = new LongOpenHashSet(4);
+                    framesByChunk.put(chunkKey, chunkFrames);
+                }
+                chunkFrames.add(key);
+            }
+
+            dirty = true;
+        }
+
+        private void save() {
+            if (!dirty) {
+                return;
+            }
+
+            Path file = getFile(world);
+            try {
+                Files.createDirectories(file.getParent());
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(Files.newOutputStream(file))))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeInt(minHeight);
+                    output.writeInt(framesByMap.size());
+
+                    for (Int2ObjectMap.Entry<LongSet> entry : framesByMap.int2ObjectEntrySet()) {
+                        output.writeInt(entry.getIntKey());
+                        output.writeInt(entry.getValue().size());
+                        for (LongIterator iterator = entry.getValue().iterator(); iterator.hasNext(); ) {
+                            output.writeLong(iterator.nextLong());
+                        }
+                    }
+                }
+                dirty = false;
+            } catch (IOException e) {
+                ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                        "Could not save the item frames of the world " + world.getName(), e);
+            }
+        }
+    }
+}
@@ -38,17 +38,17 @@ package fr.moribus.imageonmap.ui;
 
 import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.i18n.I;
 import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapItemInfo;
 import fr.moribus.imageonmap.map.MapManager;
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.moribus.imageonmap.map.SingleMap;
 import fr.zcraft.quartzlib.tools.items.ItemUtils;
 import fr.zcraft.quartzlib.tools.runners.RunTask;
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Queue;
-import java.util.UUID;
+import fr.zcraft.quartzlib.tools.world.FlatLocation;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -58,38 +58,41 @@ import org.bukkit.Material;
 import org.bukkit.Rotation;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Entity;
-import org.bukkit.entity.Hanging;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.hanging.HangingBreakEvent;
+import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemFlag;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.util.BoundingBox;
 import org.jetbrains.annotations.Nullable;
 
 public class MapItemManager implements Listener {
-    private static HashMap<UUID, Queue<ItemStack>> mapItemCache;
-
     public static void init() {
-        mapItemCache = new HashMap<>();
+        MapOverflowStore.init();
         Bukkit.getPluginManager().registerEvents(new MapItemManager(), ImageOnMap.getPlugin());
     }
 
     public static void exit() {
-        if (mapItemCache != null) {
-            mapItemCache.clear();
-        }
-        mapItemCache = null;
+        MapOverflowStore.exit();
     }
 
     public static boolean give(Player player, ImageMap map) {
@@ -122,12 +125,29 @@ public class MapItemManager implements Listener {
         return !given;
     }
 
+    /**
+     * Gives the parts of a poster. The parts which do not fit in the inventory are kept
+     * for {@code /maptool getremaining}, or dropped if the player has too many maps waiting.
+     *
+     * @return {@code true} if some parts were not given.
+     */
     public static boolean giveParts(Player player, PosterMap map) {
+        final Inventory inventory = player.getInventory();
         boolean inventoryFull = false;
 
-        ItemStack mapPartItem;
         for (int i = 0, c = map.getMapCount(); i < c; i++) {
-            mapPartItem = map.hasColumnData() ? createMapItem(map, map.getColumnAt(i), map.getRowAt(i)) :
+            if (map.isBlankAt(i)) {
+                continue;
+            }
+
+            if (inventory.firstEmpty() < 0) {
+                inventoryFull = true;
+                if (MapOverflowStore.add(player.getUniqueId(), map, map.getMapIdAt(i))) {
+                    continue;
+                }
+            }
+
+            ItemStack mapPartItem = map.hasColumnData() ? createMapItem(map, map.getColumnAt(i), map.getRowAt(i)) :
                     createMapItem(map, i);
             inventoryFull = give(player, mapPartItem) || inventoryFull;
         }
@@ -135,29 +155,66 @@ public class MapItemManager implements Listener {
         return inventoryFull;
     }
 
+    /**
+     * Gives the maps kept for the player, as long as their inventory has room for them.
+     * Maps deleted since they were kept are skipped.
+     *
+     * @return The number of maps given.
+     */
     public static int giveCache(Player player) {
-        Queue<ItemStack> cache = getCache(player);
         Inventory inventory = player.getInventory();
         int givenItemsCount = 0;
 
-        while (inventory.firstEmpty() >= 0 && !cache.isEmpty()) {
-            give(player, cache.poll());
-            givenItemsCount++;
+        while (inventory.firstEmpty() >= 0) {
+            MapOverflowStore.Entry entry = MapOverflowStore.poll(player.getUniqueId());
+            if (entry == null) {
+                break;
+            }
+
+            ImageMap image = entry.getImage();
+            ItemStack mapItem = entry.splatter() && image instanceof PosterMap poster
+                    ? SplatterMapManager.makeSplatterMap(poster) : createMapItem(image, entry.mapID());
+            if (mapItem != null) {
+                give(player, mapItem);
+                givenItemsCount++;
+            }
         }
 
         return givenItemsCount;
     }
 
     public static ItemStack createMapItem(SingleMap map, boolean goldTitle) {
-        return createMapItem(map.getMapsIDs()[0], map.getName(), false, goldTitle);
+        return createMapItem(map.getMapIdAt(0), map, 0, map.getName(), false, goldTitle);
     }
 
+    /**
+     * Gets a poster part itemstack.
+     *
+     * @param map   The poster.
+     * @param index The index of the part.
+     * @return The part item, or {@code null} if this part is blank.
+     */
     public static ItemStack createMapItem(PosterMap map, int index) {
-        return createMapItem(map.getMapIdAt(index), getMapTitle(map, index), true);
+        if (map.isBlankAt(index)) {
+            return null;
+        }
+        return createMapItem(map.getMapIdAt(index), map, index, getMapTitle(map, index), true, false);
     }
 
+    /**
+     * Gets a poster part itemstack.
+     *
+     * @param map The poster.
+     * @param x   The column of the part.
+     * @param y   The row of the part.
+     * @return The part item, or {@code null} if this part is blank.
+     */
     public static ItemStack createMapItem(PosterMap map, int x, int y) {
-        return createMapItem(map.getMapIdAt(x, y), getMapTitle(map, y, x), true);
+        final int index = map.getIndexAt(x, y);
+        if (map.isBlankAt(index)) {
+            return null;
+        }
+        return createMapItem(map.getMapIdAt(index), map, index, getMapTitle(map, y, x), true, false);
     }
 
     public static ItemStack createMapItem(int mapID, String text, boolean isMapPart) {
@@ -170,13 +227,31 @@ public class MapItemManager implements Listener {
      * @param originalMap original map item containing minecraft map id.
      * @return new map part item
      */
-    @SuppressWarnings("deprecation")
     public static ItemStack createMapItem(ItemStack originalMap) {
-        ItemMeta meta = originalMap.getItemMeta();
-        if (meta instanceof MapMeta && ((MapMeta) meta).hasMapId()) {
-            return createMapItem(((MapMeta) meta).getMapId());
+        return createMapItem(MapItemInfo.of(originalMap));
+    }
+
+    /**
+     * Gets new map part itemstack, for the part of the image an item stands for.
+     *
+     * @param info The original item.
+     * @return new map part item, or {@code null} if there is no image
+     */
+    public static ItemStack createMapItem(MapItemInfo info) {
+        final ImageMap map = MapManager.getMap(info);
+        if (map == null) {
+            return null;
         }
-        return null;
+
+        final int index = info.getPartIndex();
+        if (info.isPartOf(map) && info.getImageUUID() != null && index >= 0 && index < map.getMapCount()) {
+            if (map instanceof SingleMap single) {
+                return createMapItem(single, true);
+            } else if (map instanceof PosterMap poster) {
+                return createMapItem(poster, index);
+            }
+        }
+        return createMapItem(map, info.getMapID());
     }
 
     /**
@@ -186,28 +261,132 @@ public class MapItemManager implements Listener {
      * @return new map part item
      */
     public static ItemStack createMapItem(int mapID) {
-        ImageMap map = MapManager.getMap(mapID);
+        return createMapItem(MapManager.getMap(mapID), mapID);
+    }
+
+    /**
+     * Gets new map part itemstack.
+     *
+     * @param map   The image containing this map, or {@code null}.
+     * @param mapID minecraft mapid
+     * @return new map part item, or {@code null} if there is no image or it does not use the map
+     */
+    public static ItemStack createMapItem(ImageMap map, int mapID) {
         if (map instanceof SingleMap) {
             return createMapItem((SingleMap) map, true);
-        } else if (map instanceof PosterMap poster){
-            return createMapItem(poster, poster.getIndex(mapID));
+        } else if (map instanceof PosterMap poster) {
+            final int index = poster.indexOf(mapID);
+            return index >= 0 ? createMapItem(poster, index) : null;
         } else {
             return null;
         }
     }
 
-    @SuppressWarnings("deprecation")
     public static ItemStack createMapItem(int mapID, String text, boolean isMapPart, boolean goldTitle) {
+        return createMapItem(mapID, null, 0, text, isMapPart, goldTitle);
+    }
+
+    /**
+     * @param image The image the item is a part of, to mark the item with, or {@code null}.
+     * @param index The index of the part.
+     */
+    @SuppressWarnings("deprecation")
+    private static ItemStack createMapItem(int mapID, ImageMap image, int index, String text, boolean isMapPart,
+                                           boolean goldTitle) {
         ItemStack mapItem = new ItemStack(Material.FILLED_MAP);
         MapMeta meta = (MapMeta) mapItem.getItemMeta();
         meta.setDisplayName((goldTitle ? ChatColor.GOLD : "") + text);
         meta.addItemFlags(ItemFlag.values());
         meta.setMapId(mapID);
         meta.setColor(isMapPart ? Color.LIME : Color.GREEN);
+        if (image != null) {
+            MapItemInfo.setPart(meta, image, index);
+        }
         mapItem.setItemMeta(meta);
         return mapItem;
     }
 
+    /**
+     * Returns a copy of an item showing the current map of its part, if an update of its
+     * image moved the part to another Minecraft map since the item was made.
+     *
+     * @param item The item.
+     * @return The updated copy, or {@code null} if the item is up to date or not marked.
+     */
+    @SuppressWarnings("deprecation")
+    public static ItemStack getUpdatedItem(ItemStack item) {
+        final MapItemInfo info = MapItemInfo.of(item);
+        if (info.getImageUUID() == null) {
+            return null;
+        }
+
+        final int mapID = MapManager.getCurrentMapID(info);
+        if (mapID == info.getMapID()) {
+            return null;
+        }
+
+        final ItemStack updated = item.clone();
+        final MapMeta meta = (MapMeta) updated.getItemMeta();
+        meta.setMapId(mapID);
+        updated.setItemMeta(meta);
+        return updated;
+    }
+
+    /**
+     * Makes the frame show the current map of its part. Main thread only.
+     *
+     * @param frame The frame.
+     */
+    public static void updateFrame(ItemFrame frame) {
+        final ItemStack updated = getUpdatedItem(frame.getItem());
+        if (updated != null) {
+            frame.setItem(updated, false);
+            FrameRegistry.update(frame);
+        }
+    }
+
+    /**
+     * Makes the maps of the inventory show the current map of their part. Main thread only.
+     *
+     * @param inventory The inventory.
+     */
+    public static void updateInventory(Inventory inventory) {
+        final ItemStack[] contents = inventory.getContents();
+        for (int slot = 0; slot < contents.length; slot++) {
+            final ItemStack updated = getUpdatedItem(contents[slot]);
+            if (updated != null) {
+                inventory.setItem(slot, updated);
+            }
+        }
+    }
+
+    /**
+     * Makes the loaded frames and the inventories of the online players which still show
+     * maps an update moved away from show the new ones. The other frames and items follow
+     * when they are loaded. Main thread only.
+     *
+     * @param oldMapsIDs The maps the parts were moved from.
+     */
+    public static void updatePlacedMaps(int[] oldMapsIDs) {
+        for (int mapID : new IntOpenHashSet(oldMapsIDs)) {
+            for (FlatLocation location : FrameRegistry.getFrameLocations(mapID)) {
+                final World world = location.getWorld();
+                if (!world.isChunkLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4)) {
+                    continue;
+                }
+                for (Entity entity : world.getNearbyEntities(BoundingBox.of(location.getBlock()),
+                        entity -> entity instanceof ItemFrame)) {
+                    updateFrame((ItemFrame) entity);
+                }
+            }
+        }
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            updateInventory(player.getInventory());
+            updateInventory(player.getOpenInventory().getTopInventory());
+        }
+    }
+
     public static String getMapTitle(PosterMap map, int row, int column) {
         /// The name of a map item given to a player, if splatter maps are not used. 0 = map name; 1 = row; 2 = column.
         return I.t("{0} (row {1}, column {2})", map.getName(), row + 1, column + 1);
@@ -220,26 +399,20 @@ public class MapItemManager implements Listener {
     }
 
     public static int getCacheSize(Player player) {
-        return getCache(player).size();
-    }
-
-    private static Queue<ItemStack> getCache(Player player) {
-        Queue<ItemStack> cache = mapItemCache.get(player.getUniqueId());
-        if (cache == null) {
-            cache = new ArrayDeque<>();
-            mapItemCache.put(player.getUniqueId(), cache);
-        }
-        return cache;
+        return MapOverflowStore.size(player.getUniqueId());
     }
 
     @SuppressWarnings("deprecation")
     private static void onItemFramePlace(ItemFrame frame, Player player, PlayerInteractEntityEvent event) {
-        final ItemStack mapItem = player.getInventory().getItemInMainHand();
+        final ItemStack handItem = player.getInventory().getItemInMainHand();
+        final ItemStack updatedItem = getUpdatedItem(handItem);
+        final ItemStack mapItem = updatedItem != null ? updatedItem : handItem;
 
         if (frame.getItem().getType() != Material.AIR) {
             return;
         }
-        if (!MapManager.managesMap(mapItem)) {
+        final MapItemInfo mapItemInfo = MapItemInfo.of(mapItem);
+        if (!mapItemInfo.isManaged()) {
             return;
         }
 
@@ -250,14 +423,12 @@ public class MapItemManager implements Listener {
         }
 
         frame.setItem(new ItemStack(Material.AIR));
-        if (SplatterMapManager.hasSplatterAttributes(mapItem)) {
+        if (mapItemInfo.isSplatter()) {
+            // The maps are put in the frames by the placement, this one included.
+            event.setCancelled(true);
             if (!SplatterMapManager.placeSplatterMap(frame, player)) {
-                event.setCancelled(true); //In case of an error allow to cancel map placement
                 return;
             }
-            if (frame.getFacing() != BlockFace.UP && frame.getFacing() != BlockFace.DOWN) {
-                frame.setRotation(Rotation.NONE);
-            }
             frame.setRotation(Rotation.NONE);
 
         } else {
@@ -277,20 +448,27 @@ public class MapItemManager implements Listener {
                 RunTask.later(() -> {
                     frame.setItem(frameItem);
                     frame.setRotation(Rotation.NONE);
+                    FrameRegistry.update(frame);
                 }, 5L);
             } else {
                 final ItemStack frameItem = mapItem.clone();
                 frame.setRotation(Rotation.NONE);
-                RunTask.later(() -> frame.setItem(frameItem), 5L);
+                RunTask.later(() -> {
+                    frame.setItem(frameItem);
+                    FrameRegistry.update(frame);
+                }, 5L);
             }
         }
 
-        ItemUtils.consumeItem(player, mapItem);
+        ItemUtils.consumeItem(player, handItem);
     }
 
     private static void onItemFrameRemove(ItemFrame frame, @Nullable Player player, Cancellable event) {
-        ItemStack item = frame.getItem();
-        ImageMap map = MapManager.getMap(item);
+        MapItemInfo info = MapItemInfo.of(frame.getItem());
+        if (!info.isManaged()) {
+            return;
+        }
+        ImageMap map = MapManager.getMap(info);
         if (map == null) {
             return;
         }
@@ -316,7 +494,7 @@ public class MapItemManager implements Listener {
             }
         }
 
-        frame.setItem(createMapItem(item));
+        frame.setItem(createMapItem(info));
     }
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
@@ -338,12 +516,39 @@ public class MapItemManager implements Listener {
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public static void onItemFrameBreak(HangingBreakEvent event) {
-        Hanging hanging = event.getEntity();
-        if (hanging instanceof ItemFrame) {
-            onItemFrameRemove((ItemFrame) hanging, null, event);
+        // Only this event means the frame is really gone: its map is dropped with the others
+        // broken this tick.
+        if (event.getEntity() instanceof ItemFrame frame) {
+            MapItemInfo info = MapItemInfo.of(frame.getItem());
+            if (info.isManaged()) {
+                FrameBreakBatch.add(frame, MapManager.getCurrentMapID(info));
+            }
+        }
+    }
+
+    /**
+     * The frames follow the updates of their images when they load, before the registry sees them.
+     */
+    @EventHandler(priority = EventPriority.LOW)
+    public static void onEntitiesLoad(EntitiesLoadEvent event) {
+        for (Entity entity : event.getEntities()) {
+            if (entity instanceof ItemFrame frame) {
+                updateFrame(frame);
+            }
         }
     }
 
+    @EventHandler
+    public static void onPlayerJoin(PlayerJoinEvent event) {
+        updateInventory(event.getPlayer().getInventory());
+        updateInventory(event.getPlayer().getEnderChest());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public static void onInventoryOpen(InventoryOpenEvent event) {
+        updateInventory(event.getInventory());
+    }
+
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public static void onEntityInteract(PlayerInteractEntityEvent event) {
         if (!(event.getRightClicked() instanceof ItemFrame)) {
@@ -351,4 +556,47 @@ public class MapItemManager implements Listener {
         }
         onItemFramePlace((ItemFrame) event.getRightClicked(), event.getPlayer(), event);
     }
+
+    /**
+     * Right-clicking a bare wall with a splatter map spawns the item frames of the poster,
+     * for the players allowed to.
+     */
+    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+    public static void onBlockInteract(PlayerInteractEvent event) {
+        if (event.getAction() != Action.RIGHT_CLICK_BLOCK || event.getHand() != EquipmentSlot.HAND) {
+            return;
+        }
+
+        final Block block = event.getClickedBlock();
+        final BlockFace face = event.getBlockFace();
+        if (block == null || face == BlockFace.UP || face == BlockFace.DOWN || !face.isCartesian()) {
+            return;
+        }
+
+        final Player player = event.getPlayer();
+        final ItemStack mapItem = player.getInventory().getItemInMainHand();
+        if (!PluginConfiguration.SPAWN_ITEM_FRAMES.get()) {
+            return;
+        }
+        final MapItemInfo mapItemInfo = MapItemInfo.of(mapItem);
+        if (!mapItemInfo.isSplatterMap()) {
+            return;
+        }
+        if (block.getType().isInteractable() && !player.isSneaking()) {
+            return;
+        }
+        if (!Permissions.SPAWN_SPLATTER_FRAMES.grantedTo(player)) {
+            return;
+        }
+
+        final ImageMap map = MapManager.getMap(mapItemInfo);
+        if (!(map instanceof PosterMap poster) || !poster.hasColumnData()) {
+            return;
+        }
+
+        event.setCancelled(true);
+        if (new SplatterFrameSpawner(player, poster, block, face).start()) {
+            ItemUtils.consumeItem(player, mapItem);
+        }
+    }
 }
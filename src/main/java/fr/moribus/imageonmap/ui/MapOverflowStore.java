@@ -0,0 +1,426 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageIOExecutor;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PosterMap;
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps the map parts which did not fit in a player's inventory, and the splatter maps
+ * which could not be given back to a player who left, until they get them with
+ * {@code /maptool getremaining}.
+ *
+ * <p>Only the map IDs are kept, with the image they were given from, as identical tiles
+ * of different images share the same map; the items are created when they are given. Each player
+ * has a limited number of maps waiting, which expire after a while. They are saved in the
+ * plugin's {@code overflow} directory. The files are read while the player logs in and
+ * written once they left, on the {@link ImageIOExecutor} threads; the file of a player is
+ * only read on the main thread if they are online but it is not loaded yet, e.g. right
+ * after the plugin is enabled.</p>
+ */
+public final class MapOverflowStore implements Listener {
+    private static final int MAGIC = 0x494F4D4F;
+    private static final int VERSION = 3;
+
+    private static final Map<UUID, PlayerOverflow> players = new ConcurrentHashMap<>();
+
+    private MapOverflowStore() {
+    }
+
+    public static void init() {
+        Bukkit.getPluginManager().registerEvents(new MapOverflowStore(), ImageOnMap.getPlugin());
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            UUID playerUUID = player.getUniqueId();
+            ImageIOExecutor.submit(() -> join(playerUUID));
+        }
+    }
+
+    public static void exit() {
+        players.values().forEach(PlayerOverflow::save);
+        players.clear();
+    }
+
+    /**
+     * Keeps a map for the player.
+     *
+     * @param playerUUID The player.
+     * @param image      The image the map is part of.
+     * @param mapID      The ID of the Minecraft map.
+     * @return {@code false} if the player already has too many maps waiting.
+     */
+    public static boolean add(UUID playerUUID, ImageMap image, int mapID) {
+        return get(playerUUID).add(mapID, image.getUserUUID(), image.getId(), false);
+    }
+
+    /**
+     * Keeps the splatter map of a poster for a player who is not there to get it back,
+     * for instance if they left while it was being placed. It is kept even if the player
+     * already has too many maps waiting, as it was theirs.
+     *
+     * @param playerUUID The player.
+     * @param poster     The poster.
+     */
+    public static void addSplatterMap(UUID playerUUID, PosterMap poster) {
+        final int mapID = poster.getFirstMapId();
+        final UUID ownerUUID = poster.getUserUUID();
+        final String imageID = poster.getId();
+
+        ImageIOExecutor.submit(() -> players.compute(playerUUID, (uuid, overflow) -> {
+            if (overflow != null) {
+                overflow.add(mapID, ownerUUID, imageID, true);
+                return overflow;
+            }
+
+            // Not in memory, so not online: the file is updated right away.
+            overflow = PlayerOverflow.load(uuid);
+            overflow.add(mapID, ownerUUID, imageID, true);
+            overflow.save();
+            return null;
+        }));
+    }
+
+    /**
+     * Takes the oldest map waiting for the player.
+     *
+     * @param playerUUID The player.
+     * @return The map, or {@code null} if there is none.
+     */
+    public static Entry poll(UUID playerUUID) {
+        return get(playerUUID).poll();
+    }
+
+    /**
+     * @param playerUUID The player.
+     * @return The number of maps waiting for the player.
+     */
+    public static int size(UUID playerUUID) {
+        return get(playerUUID).size();
+    }
+
+    private static PlayerOverflow get(UUID playerUUID) {
+        PlayerOverflow overflow = players.get(playerUUID);
+        return overflow != null ? overflow : join(playerUUID);
+    }
+
+    /**
+     * Loads the maps of a player who is logging in, unless they are still in memory.
+     */
+    private static PlayerOverflow join(UUID playerUUID) {
+        return players.compute(playerUUID, (uuid, overflow) -> {
+            if (overflow == null) {
+                overflow = PlayerOverflow.load(uuid);
+            }
+            overflow.online = true;
+            return overflow;
+        });
+    }
+
+    /**
+     * Saves the maps of a player who left, and forgets them unless they came back meanwhile.
+     */
+    private static void leave(UUID playerUUID) {
+        if (players.computeIfPresent(playerUUID, (uuid, overflow) -> {
+            overflow.online = false;
+            return overflow;
+        }) == null) {
+            return;
+        }
+
+        ImageIOExecutor.submit(() -> players.computeIfPresent(playerUUID, (uuid, overflow) -> {
+            overflow.save();
+            return overflow.online ? overflow : null;
+        }));
+    }
+
+    private static Path getFile(UUID playerUUID) {
+        return ImageOnMap.getPlugin().getDataFolder().toPath().resolve("overflow").resolve(playerUUID + ".dat");
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            join(event.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerLogin(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            leave(event.getPlayer().getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        PlayerOverflow overflow = players.get(event.getPlayer().getUniqueId());
+        int size = overflow != null ? overflow.size() : 0;
+        if (size > 0) {
+            event.getPlayer().sendMessage(Component.text(I.tn(
+                    "There is {0} map waiting for you. Use '/maptool getremaining' to get it.",
+                    "There are {0} maps waiting for you. Use '/maptool getremaining' to get them.",
+                    size), NamedTextColor.GRAY));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        leave(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * A map waiting for a player.
+     *
+     * @param mapID     The ID of the Minecraft map.
+     * @param ownerUUID The owner of the image it was given from, or {@code null} if unknown.
+     * @param imageID   The ID of this image, or {@code null} if unknown.
+     * @param splatter  {@code true} if this is the splatter map of the whole poster, the map
+     *                  ID being then the first one of the poster.
+     */
+    public record Entry(int mapID, UUID ownerUUID, String imageID, boolean splatter) {
+        /**
+         * @return The image the map was given from, or {@code null} if it was deleted since.
+         */
+        public ImageMap getImage() {
+            if (ownerUUID == null) {
+                return MapManager.getMap(mapID);
+            }
+
+            ImageMap image = MapManager.getMap(ownerUUID, imageID);
+            if (image != null && image.managesMap(mapID)) {
+                return image;
+            }
+
+            // Renamed since, the ID of an image being derived from its name.
+            for (ImageMap candidate : MapManager.getMapList(ownerUUID)) {
+                if (candidate.managesMap(mapID)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class PlayerOverflow {
+        private final UUID playerUUID;
+
+        /* The maps, the images they belong to, and their expiry dates, oldest first. */
+        private final IntArrayList mapsIDs = new IntArrayList();
+        private final List<UUID> owners = new ArrayList<>();
+        private final List<String> imagesIDs = new ArrayList<>();
+        private final BooleanArrayList splatters = new BooleanArrayList();
+        private final LongArrayList expiries = new LongArrayList();
+        private boolean dirty = false;
+
+        /* Only changed within the compute methods of the map of the players. */
+        private boolean online = false;
+
+        private PlayerOverflow(UUID playerUUID) {
+            this.playerUUID = playerUUID;
+        }
+
+        private static PlayerOverflow load(UUID playerUUID) {
+            PlayerOverflow overflow = new PlayerOverflow(playerUUID);
+
+            Path file = getFile(playerUUID);
+            if (!Files.isRegularFile(file)) {
+                return overflow;
+            }
+
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (input.readInt() != MAGIC) {
+                    throw new IOException("Not a map overflow file");
+                }
+
+                // The first version did not know the images of the maps, nor the second one
+                // the splatter maps.
+                int version = input.readInt();
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Unknown map overflow file version " + version);
+                }
+
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    overflow.mapsIDs.add(input.readInt());
+                    overflow.expiries.add(input.readLong());
+                    UUID owner = null;
+                    String imageID = null;
+                    if (version > 1) {
+                        owner = new UUID(input.readLong(), input.readLong());
+                        imageID = input.readUTF();
+                        if (imageID.isEmpty()) {
+                            owner = null;
+                            imageID = null;
+                        }
+                    }
+                    overflow.owners.add(owner);
+                    overflow.imagesIDs.add(imageID);
+                    overflow.splatters.add(version > 2 && input.readBoolean());
+                }
+            } catch (IOException e) {
+                ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                        "Could not load the remaining maps of the player " + playerUUID, e);
+            }
+
+            overflow.purge();
+            return overflow;
+        }
+
+        private synchronized boolean add(int mapID, UUID ownerUUID, String imageID, boolean splatter) {
+            purge();
+            if (!splatter && mapsIDs.size() >= PluginConfiguration.OVERFLOW_MAX_MAPS.get()) {
+                return false;
+            }
+
+            int lifetime = PluginConfiguration.OVERFLOW_LIFETIME.get();
+            mapsIDs.add(mapID);
+            owners.add(ownerUUID);
+            imagesIDs.add(imageID);
+            splatters.add(splatter);
+            expiries.add(lifetime > 0 ? System.currentTimeMillis() + TimeUnit.DAYS.toMillis(lifetime) : Long.MAX_VALUE);
+            dirty = true;
+            return true;
+        }
+
+        private synchronized Entry poll() {
+            purge();
+            if (mapsIDs.isEmpty()) {
+                return null;
+            }
+
+            dirty = true;
+            expiries.removeLong(0);
+            return new Entry(mapsIDs.removeInt(0), owners.remove(0), imagesIDs.remove(0), splatters.removeBoolean(0));
+        }
+
+        private synchronized int size() {
+            purge();
+            return mapsIDs.size();
+        }
+
+        /**
+         * Forgets the expired maps. As they are kept in the order they were added, the
+         * expired ones are at the beginning, unless the lifetime was changed meanwhile.
+         */
+        private void purge() {
+            long now = System.currentTimeMillis();
+            int expired = 0;
+            while (expired < expiries.size() && expiries.getLong(expired) <= now) {
+                expired++;
+            }
+
+            if (expired > 0) {
+                mapsIDs.removeElements(0, expired);
+                owners.subList(0, expired).clear();
+                imagesIDs.subList(0, expired).clear();
+                splatters.removeElements(0, expired);
+                expiries.removeElements(0, expired);
+                dirty = true;
+            }
+        }
+
+        private synchronized void save() {
+            if (!dirty) {
+                return;
+            }
+
+            Path file = getFile(playerUUID);
+            try {
+                if (mapsIDs.isEmpty()) {
+                    Files.deleteIfExists(file);
+                } else {
+                    Files.createDirectories(file.getParent());
+                    try (DataOutputStream output = new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(file)))) {
+                        output.writeInt(MAGIC);
+                        output.writeInt(VERSION);
+                        output.writeInt(mapsIDs.size());
+                        for (int i = 0; i < mapsIDs.size(); i++) {
+                            output.writeInt(mapsIDs.getInt(i));
+                            output.writeLong(expiries.getLong(i));
+
+                            // Entries from the first version are saved as images nobody owns.
+                            UUID owner = owners.get(i);
+                            output.writeLong(owner != null ? owner.getMostSignificantBits() : 0);
+                            output.writeLong(owner != null ? owner.getLeastSignificantBits() : 0);
+                            output.writeUTF(imagesIDs.get(i) != null ? imagesIDs.get(i) : "");
+                            output.writeBoolean(splatters.getBoolean(i));
+                        }
+                    }
+                }
+                dirty = false;
+            } catch (IOException e) {
+                ImageOnMap.getPlugin().getLogger().log(Level.WARNING,
+                        "Could not save the remaining maps of the player " + playerUUID, e);
+            }
+        }
+    }
+}
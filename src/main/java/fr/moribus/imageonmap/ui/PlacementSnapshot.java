@@ -0,0 +1,152 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.util.BoundingBox;
+
+/**
+ * The blocks and hanging entities of an area, copied on the main thread so that the
+ * placement of new item frames can be checked from any thread.
+ */
+final class PlacementSnapshot {
+    /**
+     * Item frames are 12 pixels wide and 1 pixel thick.
+     */
+    private static final double FRAME_MARGIN = 2.0 / 16;
+    private static final double FRAME_THICKNESS = 1.0 / 16;
+
+    private final int minHeight;
+    private final int maxHeight;
+    private final Long2ObjectOpenHashMap<ChunkSnapshot> chunks = new Long2ObjectOpenHashMap<>();
+    private final FrameIndex hangings;
+
+    private PlacementSnapshot(World world, FrameIndex hangings) {
+        this.minHeight = world.getMinHeight();
+        this.maxHeight = world.getMaxHeight();
+        this.hangings = hangings;
+    }
+
+    /**
+     * Copies the blocks and the hanging entities between the given block coordinates,
+     * included. Main thread only.
+     *
+     * @return The snapshot, or {@code null} if some of the blocks are not loaded.
+     */
+    static PlacementSnapshot of(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                    return null;
+                }
+            }
+        }
+
+        PlacementSnapshot snapshot = new PlacementSnapshot(world,
+                FrameIndex.of(world, minX, minY, minZ, maxX, maxY, maxZ));
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                snapshot.chunks.put(chunkKey(chunkX, chunkZ),
+                        world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The type of the block, or {@link Material#VOID_AIR} outside of the world or of
+     *     this snapshot.
+     */
+    Material getType(int x, int y, int z) {
+        if (y < minHeight || y >= maxHeight) {
+            return Material.VOID_AIR;
+        }
+        ChunkSnapshot chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+        if (chunk == null) {
+            return Material.VOID_AIR;
+        }
+        return chunk.getBlockType(x & 15, y, z & 15);
+    }
+
+    /**
+     * Checks if an item frame facing the given way can be put in a block: the block must
+     * be free, the one behind it solid, and no other hanging entity may be in the way.
+     *
+     * @return {@code true} if the frame can be put there.
+     */
+    boolean canHoldFrame(int x, int y, int z, BlockFace facing) {
+        if (getType(x, y, z).isSolid()) {
+            return false;
+        }
+        if (!getType(x - facing.getModX(), y - facing.getModY(), z - facing.getModZ()).isSolid()) {
+            return false;
+        }
+
+        return !hangings.overlapsHanging(getFrameBox(x, y, z, facing));
+    }
+
+    /**
+     * @return The bounding box of an item frame in the given block, against the block behind it.
+     */
+    private static BoundingBox getFrameBox(int x, int y, int z, BlockFace facing) {
+        double[] min = {x + FRAME_MARGIN, y + FRAME_MARGIN, z + FRAME_MARGIN};
+        double[] max = {x + 1 - FRAME_MARGIN, y + 1 - FRAME_MARGIN, z + 1 - FRAME_MARGIN};
+        int[] mods = {facing.getModX(), facing.getModY(), facing.getModZ()};
+        int[] coordinates = {x, y, z};
+
+        for (int axis = 0; axis < 3; axis++) {
+            if (mods[axis] > 0) {
+                min[axis] = coordinates[axis];
+                max[axis] = coordinates[axis] + FRAME_THICKNESS;
+            } else if (mods[axis] < 0) {
+                min[axis] = coordinates[axis] + 1 - FRAME_THICKNESS;
+                max[axis] = coordinates[axis] + 1;
+            }
+        }
+
+        return new BoundingBox(min[0], min[1], min[2], max[0], max[1], max[2]);
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+}
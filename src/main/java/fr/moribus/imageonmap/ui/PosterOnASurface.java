@@ -39,13 +39,11 @@ package fr.moribus.imageonmap.ui;
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.zcraft.quartzlib.tools.world.FlatLocation;
 import fr.zcraft.quartzlib.tools.world.WorldUtils;
+import java.util.concurrent.CompletableFuture;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.block.BlockFace;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.ItemStack;
 
 public class PosterOnASurface {
 
@@ -69,7 +67,7 @@ public class PosterOnASurface {
     }
 
     public static ItemFrame[] getMatchingMapFrames(PosterMap map, FlatLocation location, BlockFace bf) {
-        ItemFrame[] frames = new ItemFrame[map.getMapCount()];
+        FlatLocation[] cells = new FlatLocation[map.getMapCount()];
         FlatLocation loc = location.clone();
 
 
@@ -85,12 +83,8 @@ public class PosterOnASurface {
 
         for (int j = 0; j < y; ++j) {
             for (int i = 0; i < x; ++i) {
-                int mapIndex = map.getIndexAt(i, j);
+                cells[map.getIndexAt(i, j)] = loc.clone();
 
-                ItemFrame frame = getMapFrameAt(loc, map);
-                if (frame != null) {
-                    frames[mapIndex] = frame;
-                }
                 switch (bf) {
                     case EAST, WEST -> loc.addH(0, -1, bf);
                     case NORTH, SOUTH -> loc.addH(1, 0, bf);
@@ -105,65 +99,54 @@ public class PosterOnASurface {
             }
         }
 
+        FrameIndex index = FrameIndex.of(cells);
+        ItemFrame[] frames = new ItemFrame[cells.length];
+        for (int mapIndex = 0; mapIndex < cells.length; mapIndex++) {
+            frames[mapIndex] = index.getMapFrameAt(cells[mapIndex], cells[mapIndex].getFacing(), map);
+        }
+
         return frames;
     }
 
     public static ItemFrame getMapFrameAt(FlatLocation location, PosterMap map) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame frame)) {
-                continue;
-            }
-            if (WorldUtils.differentLocation(location, entity.getLocation())) {
-                continue;
-            }
-            if (frame.getFacing() != location.getFacing()) {
-                continue;
-            }
-            ItemStack item = frame.getItem();
-            if (item.getType() != Material.FILLED_MAP) {
-                continue;
-            }
-            if (!map.managesMap(item)) {
-                continue;
-            }
-            return frame;
-        }
-
-        return null;
+        return FrameIndex.of(location).getMapFrameAt(location, location.getFacing(), map);
     }
 
     public static ItemFrame getEmptyFrameAt(Location location, BlockFace facing) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame frame)) {
-                continue;
-            }
-            if (WorldUtils.differentLocation(location, entity.getLocation())) {
-                continue;
-            }
-            if (frame.getFacing() != facing) {
-                continue;
-            }
-            ItemStack item = frame.getItem();
-            if (item.getType() != Material.AIR) {
-                continue;
-            }
-            return frame;
-        }
-
-        return null;
+        return FrameIndex.of(location).getEmptyFrameAt(location, facing);
     }
 
     public boolean isValid(Player p) {
-        ItemFrame curFrame;
+        return isValid(WorldUtils.get4thOrientation(p.getLocation()));
+    }
 
+    /**
+     * @param bf The orientation of the player placing the poster.
+     * @return {@code true} if the frames were found, {@link #frames} being set.
+     */
+    public boolean isValid(BlockFace bf) {
+        FlatLocation[] cells = getPlacementCells(bf);
+        frames = FrameIndex.of(cells).getEmptyFrames(cells);
+        return frames != null;
+    }
 
-        FlatLocation l = loc1.clone();
+    /**
+     * Like {@link #isValid(BlockFace)}, but the frames of the surface are matched to the poster
+     * off the main thread.
+     *
+     * @param bf The orientation of the player placing the poster.
+     * @return A future completed on the main thread, with {@code true} if the frames were
+     *     found, {@link #frames} being set.
+     */
+    public CompletableFuture<Boolean> checkAsync(BlockFace bf) {
+        return FrameIndex.findEmptyFrames(getPlacementCells(bf)).thenApply(found -> {
+            frames = found;
+            return found != null;
+        });
+    }
 
-        BlockFace bf = WorldUtils.get4thOrientation(p.getLocation());
+    private FlatLocation[] getPlacementCells(BlockFace bf) {
+        FlatLocation l = loc1.clone();
 
         l.subtract(loc2);
 
@@ -171,18 +154,11 @@ public class PosterOnASurface {
         int distX = Math.abs(l.getBlockX());
         int distZ = Math.abs(l.getBlockZ());
 
-        frames = new ItemFrame[distX * distZ];
+        FlatLocation[] cells = new FlatLocation[distX * distZ];
         l = loc1.clone();
         for (int x = 0; x < distX; x++) {
             for (int z = 0; z < distZ; z++) {
-
-                curFrame = getEmptyFrameAt(l, l.getFacing());
-
-                if (curFrame == null) {
-                    return false;
-                }
-
-                frames[z * distX + x] = curFrame;
+                cells[z * distX + x] = l.clone();
 
                 switch (bf) {
                     case NORTH, SOUTH -> l.addH(0, 1, bf);
@@ -198,7 +174,7 @@ public class PosterOnASurface {
             }
         }
 
-        return true;
+        return cells;
     }
 
 }
@@ -38,13 +38,15 @@ package fr.moribus.imageonmap.ui;
 
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.zcraft.quartzlib.tools.world.FlatLocation;
-import fr.zcraft.quartzlib.tools.world.WorldUtils;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.block.BlockFace;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.ItemFrame;
-import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class PosterWall {
 
@@ -54,24 +56,60 @@ public class PosterWall {
     public ItemFrame[] frames;
 
     public static ItemFrame[] getMatchingMapFrames(PosterMap map, FlatLocation location, int mapId) {
-        int mapIndex = map.getIndex(mapId);
-        int x = map.getColumnAt(mapIndex);
-        int y = map.getRowAt(mapIndex);
+        List<FlatLocation[]> candidates = new ArrayList<>();
+        for (int mapIndex = 0; mapIndex < map.getMapCount(); mapIndex++) {
+            if (map.getMapIdAt(mapIndex) == mapId) {
+                candidates.add(getCells(map, location.clone().add(-map.getColumnAt(mapIndex), map.getRowAt(mapIndex))));
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("Invalid map ID");
+        }
+
+        // The frames of all the possible locations of the poster are queried at once.
+        FrameIndex index = FrameIndex.of(candidates.stream().flatMap(Arrays::stream).toArray(Location[]::new));
+
+        ItemFrame[] bestFrames = null;
+        int bestCount = -1;
+        int partsCount = (int) Arrays.stream(map.getMapsIDs()).filter(id -> id != PosterMap.BLANK_MAP_ID).count();
+
+        // Identical parts share the same map: the poster is located from the one matching the most frames.
+        for (int i = 0; i < candidates.size() && bestCount < partsCount; i++) {
+            ItemFrame[] frames = getMatchingMapFrames(map, candidates.get(i), index);
+            int count = (int) Arrays.stream(frames).filter(Objects::nonNull).count();
+            if (count > bestCount) {
+                bestFrames = frames;
+                bestCount = count;
+            }
+        }
 
-        return getMatchingMapFrames(map, location.clone().add(-x, y));
+        return bestFrames;
     }
 
     public static ItemFrame[] getMatchingMapFrames(PosterMap map, FlatLocation location) {
-        ItemFrame[] frames = new ItemFrame[map.getMapCount()];
+        FlatLocation[] cells = getCells(map, location);
+        return getMatchingMapFrames(map, cells, FrameIndex.of(cells));
+    }
+
+    private static ItemFrame[] getMatchingMapFrames(PosterMap map, FlatLocation[] cells, FrameIndex index) {
+        ItemFrame[] frames = new ItemFrame[cells.length];
+        for (int mapIndex = 0; mapIndex < cells.length; mapIndex++) {
+            frames[mapIndex] = index.getMapFrameAt(cells[mapIndex], cells[mapIndex].getFacing(), map);
+        }
+        return frames;
+    }
+
+    /**
+     * @return The location of each part of a poster whose top left corner is at the given location.
+     */
+    private static FlatLocation[] getCells(PosterMap map, FlatLocation location) {
+        FlatLocation[] cells = new FlatLocation[map.getMapCount()];
         FlatLocation loc = location.clone();
 
         for (int y = 0; y < map.getRowCount(); ++y) {
             for (int x = 0; x < map.getColumnCount(); ++x) {
-                int mapIndex = map.getIndexAt(x, y);
-                ItemFrame frame = getMapFrameAt(loc, map);
-                if (frame != null) {
-                    frames[mapIndex] = frame;
-                }
+                cells[map.getIndexAt(x, y)] = loc.clone();
                 loc.add(1, 0);
             }
             loc.setX(location.getX());
@@ -79,81 +117,54 @@ public class PosterWall {
             loc.add(0, -1);
         }
 
-        return frames;
+        return cells;
     }
 
     public static ItemFrame getMapFrameAt(FlatLocation location, PosterMap map) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame frame)) {
-                continue;
-            }
-            if (WorldUtils.differentLocation(location, entity.getLocation())) {
-                continue;
-            }
-            if (frame.getFacing() != location.getFacing()) {
-                continue;
-            }
-            ItemStack item = frame.getItem();
-            if (item.getType() != Material.FILLED_MAP) {
-                continue;
-            }
-            if (!map.managesMap(item)) {
-                continue;
-            }
-            return frame;
-        }
-
-        return null;
+        return FrameIndex.of(location).getMapFrameAt(location, location.getFacing(), map);
     }
 
     public static ItemFrame getEmptyFrameAt(Location location, BlockFace facing) {
-        Entity[] entities = location.getChunk().getEntities();
+        return FrameIndex.of(location).getEmptyFrameAt(location, facing);
+    }
 
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame frame)) {
-                continue;
-            }
-            if (WorldUtils.differentLocation(location, entity.getLocation())) {
-                continue;
-            }
-            if (frame.getFacing() != facing) {
-                continue;
-            }
-            ItemStack item = frame.getItem();
-            if (item.getType() != Material.AIR) {
-                continue;
-            }
-            return frame;
-        }
+    public boolean isValid() {
+        FlatLocation[] cells = getPlacementCells();
+        frames = FrameIndex.of(cells).getEmptyFrames(cells);
+        return frames != null;
+    }
 
-        return null;
+    /**
+     * Like {@link #isValid()}, but the frames of the wall are matched to the poster off the
+     * main thread.
+     *
+     * @return A future completed on the main thread, with {@code true} if the frames were
+     *     found, {@link #frames} being set.
+     */
+    public CompletableFuture<Boolean> checkAsync() {
+        return FrameIndex.findEmptyFrames(getPlacementCells()).thenApply(found -> {
+            frames = found;
+            return found != null;
+        });
     }
 
-    public boolean isValid() {
-        ItemFrame curFrame;
+    private FlatLocation[] getPlacementCells() {
         FlatLocation bottomLeft = FlatLocation.minMerged(loc1, loc2);
         FlatLocation loc = bottomLeft.clone();
 
         int distX = FlatLocation.flatBlockDistanceX(loc1, loc2);
         int distY = FlatLocation.flatBlockDistanceY(loc1, loc2);
 
-        frames = new ItemFrame[distX * distY];
-
+        FlatLocation[] cells = new FlatLocation[distX * distY];
         for (int x = 0; x < distX; x++) {
             for (int y = 0; y < distY; y++) {
-                curFrame = getEmptyFrameAt(loc, loc.getFacing());
-                if (curFrame == null) {
-                    return false;
-                }
-                frames[y * distX + x] = curFrame;
+                cells[y * distX + x] = loc.clone();
                 loc.add(0, 1);
             }
             loc.add(1, 0);
             loc.setY(bottomLeft.getY());
         }
 
-        return true;
+        return cells;
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import fr.zcraft.quartzlib.tools.world.FlatLocation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.Rotation;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Spawns the item frames of a splatter poster on a bare wall, with their maps already in
+ * them, instead of having the player place every frame by hand.
+ *
+ * <p>The wall is checked off the main thread, from a snapshot of its blocks; the frames are
+ * then spawned a batch at a time within the main thread budget. Like
+ * {@link SplatterPlacement}, the poster is placed entirely or not at all.</p>
+ */
+final class SplatterFrameSpawner {
+    private static final int BATCH_SIZE = 16;
+
+    private final Player player;
+    private final PosterMap poster;
+    private final World world;
+    private final BlockFace facing;
+
+    /**
+     * The blocks the frames go in, and their maps. Transparent parts get no frame.
+     */
+    private final int[] cellsX;
+    private final int[] cellsY;
+    private final int[] cellsZ;
+    private final int[] indexes;
+    private final int cellCount;
+
+    private final List<ItemFrame> spawnedFrames = new ArrayList<>();
+
+    /**
+     * @param player The player placing the poster.
+     * @param poster The poster.
+     * @param wall   The block the bottom-left frame is put against.
+     * @param facing The face of this block the player clicked, to put the frames on.
+     */
+    SplatterFrameSpawner(Player player, PosterMap poster, Block wall, BlockFace facing) {
+        this.player = player;
+        this.poster = poster;
+        this.world = wall.getWorld();
+        this.facing = facing;
+
+        int count = poster.getColumnCount() * poster.getRowCount();
+        cellsX = new int[count];
+        cellsY = new int[count];
+        cellsZ = new int[count];
+        indexes = new int[count];
+
+        FlatLocation bottomLeft = new FlatLocation(wall.getRelative(facing).getLocation(), facing);
+        int cell = 0;
+        for (int i = 0; i < count; i++) {
+            int index = poster.getIndexAtReverseY(i);
+            if (poster.isBlankAt(index)) {
+                continue;
+            }
+
+            Location location = bottomLeft.clone().add(poster.getColumnAt(i), poster.getRowAt(i));
+            cellsX[cell] = location.getBlockX();
+            cellsY[cell] = location.getBlockY();
+            cellsZ[cell] = location.getBlockZ();
+            indexes[cell] = index;
+            cell++;
+        }
+        cellCount = cell;
+    }
+
+    /**
+     * Starts checking the wall, then spawning the frames. Main thread only.
+     *
+     * @return {@code false} if the poster cannot be placed there at all. Otherwise, the
+     *     splatter map is taken from the player, and given back if the poster ends up not
+     *     being placed.
+     */
+    boolean start() {
+        if (cellCount == 0) {
+            return false;
+        }
+
+        PlacementSnapshot snapshot = takeSnapshot();
+        if (snapshot == null) {
+            sendNotEnoughSpace();
+            return false;
+        }
+
+        CompletableFuture.supplyAsync(() -> isValid(snapshot))
+                .whenCompleteAsync((valid, throwable) -> {
+                    if (throwable == null && valid) {
+                        RunTask.budgeted(this::spawnBatch);
+                    } else {
+                        if (player.isOnline()) {
+                            sendNotEnoughSpace();
+                        }
+                        giveBack();
+                    }
+                }, ImageRendererExecutor.getMainThread());
+
+        return true;
+    }
+
+    /**
+     * @return The blocks of the frames and of the wall behind them, or {@code null} if they
+     *     are not all loaded.
+     */
+    private PlacementSnapshot takeSnapshot() {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+
+        for (int i = 0; i < cellCount; i++) {
+            minX = Math.min(minX, Math.min(cellsX[i], cellsX[i] - facing.getModX()));
+            minY = Math.min(minY, cellsY[i]);
+            minZ = Math.min(minZ, Math.min(cellsZ[i], cellsZ[i] - facing.getModZ()));
+            maxX = Math.max(maxX, Math.max(cellsX[i], cellsX[i] - facing.getModX()));
+            maxY = Math.max(maxY, cellsY[i]);
+            maxZ = Math.max(maxZ, Math.max(cellsZ[i], cellsZ[i] - facing.getModZ()));
+        }
+
+        return PlacementSnapshot.of(world, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    private boolean isValid(PlacementSnapshot snapshot) {
+        for (int i = 0; i < cellCount; i++) {
+            if (!snapshot.canHoldFrame(cellsX[i], cellsY[i], cellsZ[i], facing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void spawnBatch() {
+        final int start = spawnedFrames.size();
+        final int end = Math.min(start + BATCH_SIZE, cellCount);
+
+        // The wall may have changed since it was checked.
+        for (int i = start; i < end; i++) {
+            if (!canStillHoldFrame(i)) {
+                rollback();
+                return;
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            final ItemStack item = SplatterPlacement.createFrameItem(poster, indexes[i]);
+            final ItemFrame frame;
+            try {
+                frame = world.spawn(new Location(world, cellsX[i], cellsY[i], cellsZ[i]), ItemFrame.class,
+                        spawned -> {
+                            spawned.setFacingDirection(facing, true);
+                            spawned.setRotation(Rotation.NONE);
+                            spawned.setItem(item, false);
+                        });
+            } catch (IllegalArgumentException e) {
+                rollback();
+                return;
+            }
+
+            spawnedFrames.add(frame);
+            FrameRegistry.update(frame);
+        }
+
+        if (spawnedFrames.size() < cellCount) {
+            RunTask.budgeted(this::spawnBatch);
+        }
+    }
+
+    /**
+     * A cheap check of the blocks of a frame, before spawning it.
+     */
+    private boolean canStillHoldFrame(int i) {
+        if (!world.isChunkLoaded(cellsX[i] >> 4, cellsZ[i] >> 4)) {
+            return false;
+        }
+        Block block = world.getBlockAt(cellsX[i], cellsY[i], cellsZ[i]);
+        return !block.getType().isSolid() && block.getRelative(facing.getOppositeFace()).getType().isSolid();
+    }
+
+    /**
+     * Removes the frames already spawned, and gives the splatter map back.
+     */
+    private void rollback() {
+        for (ItemFrame frame : spawnedFrames) {
+            if (frame.isValid()) {
+                frame.setItem(null, false);
+                FrameRegistry.update(frame);
+                frame.remove();
+            }
+        }
+        spawnedFrames.clear();
+
+        if (player.isOnline()) {
+            player.sendActionBar(Component.text(
+                    I.t("The poster was not placed, as the wall changed."), NamedTextColor.RED));
+        }
+        giveBack();
+    }
+
+    private void giveBack() {
+        if (!player.isOnline()) {
+            SplatterPlacement.giveBackLater(player, poster);
+            return;
+        }
+        if (player.getGameMode() != GameMode.CREATIVE || !SplatterMapManager.hasSplatterMap(player, poster)) {
+            poster.give(player);
+        }
+    }
+
+    private void sendNotEnoughSpace() {
+        player.sendActionBar(Component.text(I.t("There is not enough space to place this map ({0} × {1}).",
+                poster.getColumnCount(), poster.getRowCount()), NamedTextColor.RED));
+    }
+}
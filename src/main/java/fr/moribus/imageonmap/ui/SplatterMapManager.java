@@ -38,25 +38,26 @@ package fr.moribus.imageonmap.ui;
 
 import fr.moribus.imageonmap.gui.GuiUtils;
 import fr.moribus.imageonmap.i18n.I;
-import fr.moribus.imageonmap.image.MapInitEvent;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
 import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapItemInfo;
 import fr.moribus.imageonmap.map.MapManager;
 import fr.moribus.imageonmap.map.PosterMap;
-import fr.zcraft.quartzlib.tools.runners.RunTask;
 import fr.zcraft.quartzlib.tools.world.FlatLocation;
 import fr.zcraft.quartzlib.tools.world.WorldUtils;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
 import net.md_5.bungee.api.ChatMessageType;
 import net.md_5.bungee.api.chat.TextComponent;
 import org.bukkit.ChatColor;
 import org.bukkit.Color;
+import org.bukkit.GameMode;
 import org.bukkit.Material;
-import org.bukkit.NamespacedKey;
 import org.bukkit.Rotation;
 import org.bukkit.block.BlockFace;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemFlag;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.PlayerInventory;
@@ -65,18 +66,16 @@ import org.bukkit.persistence.PersistentDataType;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 
 public abstract class SplatterMapManager {
 
-    private static final NamespacedKey SPLATTER_KEY = new NamespacedKey("imageonmap", "splatter");
+    /**
+     * Posters with at least this many parts take a moment to check; the player is told.
+     */
+    private static final int CHECKING_FEEDBACK_SIZE = 64;
 
     private SplatterMapManager() {
     }
@@ -106,7 +105,8 @@ public abstract class SplatterMapManager {
                 40));
         meta.setLore(lore);
         meta.addItemFlags(ItemFlag.values());
-        meta.setMapId(map.getMapIdAt(0));
+        meta.setMapId(map.getFirstMapId());
+        MapItemInfo.setPart(meta, map, map.getFirstIndex());
         meta.setColor(Color.GREEN);
         splatter.setItemMeta(meta);
 
@@ -133,7 +133,7 @@ public abstract class SplatterMapManager {
     public static ItemStack addSplatterAttribute(final ItemStack itemStack) {
         var meta = itemStack.getItemMeta();
 
-        meta.getPersistentDataContainer().set(SPLATTER_KEY, PersistentDataType.BYTE, (byte) 1);
+        meta.getPersistentDataContainer().set(MapItemInfo.SPLATTER_KEY, PersistentDataType.BYTE, (byte) 1);
 
         meta.addEnchant(Enchantment.DURABILITY, 1, false);
 
@@ -150,8 +150,7 @@ public abstract class SplatterMapManager {
      * @return True if the attribute was detected.
      */
     public static boolean hasSplatterAttributes(ItemStack itemStack) {
-        var value = itemStack.getItemMeta().getPersistentDataContainer().getOrDefault(SPLATTER_KEY, PersistentDataType.BYTE, (byte) 0);
-        return value == 1;
+        return MapItemInfo.of(itemStack).isSplatter();
     }
 
     /**
@@ -161,10 +160,7 @@ public abstract class SplatterMapManager {
      * @return True if is a splatter map
      */
     public static boolean isSplatterMap(ItemStack itemStack) {
-        if (itemStack == null) {
-            return false;
-        }
-        return hasSplatterAttributes(itemStack) && MapManager.managesMap(itemStack);
+        return MapItemInfo.of(itemStack).isSplatterMap();
     }
 
 
@@ -176,11 +172,9 @@ public abstract class SplatterMapManager {
      * @return True if the player has this map
      */
     public static boolean hasSplatterMap(Player player, PosterMap map) {
-        Inventory playerInventory = player.getInventory();
-
-        for (int i = 0; i < playerInventory.getSize(); ++i) {
-            ItemStack item = playerInventory.getItem(i);
-            if (isSplatterMap(item) && map.managesMap(item)) {
+        for (ItemStack item : player.getInventory().getContents()) {
+            MapItemInfo info = MapItemInfo.of(item);
+            if (info.isSplatter() && info.isPartOf(map)) {
                 return true;
             }
         }
@@ -189,135 +183,156 @@ public abstract class SplatterMapManager {
     }
 
     /**
-     * Place a splatter map
+     * Place a splatter map.
+     *
+     * <p>The frames of the poster are looked for off the main thread; the maps are then put
+     * in them over the next ticks. If the frames are missing, the player is told so and the
+     * splatter map is given back.</p>
      *
      * @param startFrame Frame clicked by the player
      * @param player     Player placing map
-     * @return true if the map was correctly placed
+     * @return true if the placement started, the splatter map being taken from the player
      */
-    @SuppressWarnings("deprecation")
     public static boolean placeSplatterMap(ItemFrame startFrame, Player player) {
         ImageMap map = MapManager.getMap(player.getInventory().getItemInMainHand());
 
         if (!(map instanceof PosterMap poster)) {
             return false;
         }
-        PosterWall wall = new PosterWall();
+
+        if (poster.getMapCount() >= CHECKING_FEEDBACK_SIZE) {
+            player.sendActionBar(Component.text(I.t("Checking the item frames…"), NamedTextColor.GRAY));
+        }
+
+        final BlockFace orientation = WorldUtils.get4thOrientation(player.getLocation());
+        final SplatterPlacement placement = new SplatterPlacement(player, poster);
 
         if (startFrame.getFacing().equals(BlockFace.DOWN) || startFrame.getFacing().equals(BlockFace.UP)) {
             // If it is on floor or ceiling
             PosterOnASurface surface = new PosterOnASurface();
             FlatLocation startLocation = new FlatLocation(startFrame.getLocation(), startFrame.getFacing());
             FlatLocation endLocation = startLocation.clone().addH(poster.getColumnCount(), poster.getRowCount(),
-                    WorldUtils.get4thOrientation(player.getLocation()));
+                    orientation);
 
             surface.loc1 = startLocation;
             surface.loc2 = endLocation;
 
-            if (!surface.isValid(player)) {
-                player.spigot().sendMessage(ChatMessageType.ACTION_BAR,
-                        TextComponent.fromLegacyText(I.t("{ce}There is not enough space to place this map ({0} × {1}).",
-                                poster.getColumnCount(), poster.getRowCount())));
-
-                return false;
-            }
-
-            int i = 0;
-            for (ItemFrame frame : surface.frames) {
-                BlockFace bf = WorldUtils.get4thOrientation(player.getLocation());
-                int id = poster.getMapIdAtReverseZ(i, startFrame.getFacing());
-                Rotation rot = Rotation.NONE;
-                switch (frame.getFacing()) {
-                    case UP:
-                        break;
-                    case DOWN:
-                        rot = Rotation.FLIPPED;
-                        break;
-                    default:
-                        //throw new IllegalStateException("Unexpected value: " + frame.getFacing());
-                }
-                //Rotation management relative to player rotation the default position is North,
-                // when on ceiling we flipped the rotation
-                RunTask.later(() -> {
-                    ItemStack item = new ItemStack(Material.FILLED_MAP);
-                    MapMeta meta = (MapMeta) item.getItemMeta();
-                    meta.setMapId(id);
-                    item.setItemMeta(meta);
-
-                    frame.setItem(item);
-                }, 5L);
-
-                if (i == 0) {
-                    //First map need to be rotate one time CounterClockwise
-                    rot = rot.rotateCounterClockwise();
-                }
-
-                switch (bf) {
-                    case NORTH -> {
-                        if (frame.getFacing() == BlockFace.DOWN) {
-                            rot = rot.rotateClockwise();
-                            rot = rot.rotateClockwise();
-                        }
-                        frame.setRotation(rot);
-                    }
-                    case EAST -> {
-                        rot = rot.rotateClockwise();
-                        frame.setRotation(rot);
-                    }
-                    case SOUTH -> {
-                        if (frame.getFacing() == BlockFace.UP) {
-                            rot = rot.rotateClockwise();
-                            rot = rot.rotateClockwise();
-                        }
-                        frame.setRotation(rot);
-                    }
-                    case WEST -> {
-                        rot = rot.rotateCounterClockwise();
-                        frame.setRotation(rot);
-                    }
-                    default -> throw new IllegalStateException("Unexpected value: " + bf);
+            surface.checkAsync(orientation).whenCompleteAsync((valid, throwable) -> {
+                if (throwable != null || !valid) {
+                    cancelPlacement(player, poster);
+                    return;
                 }
-
-                MapInitEvent.initMap(id);
-                i++;
-            }
+                placeOnSurface(surface, startFrame, orientation, poster, placement);
+                // The frame the player clicked is reset, as the interaction did before the check.
+                startFrame.setRotation(Rotation.NONE);
+                placement.start();
+            }, ImageRendererExecutor.getMainThread());
         } else {
             // If it is on a wall NSEW
+            PosterWall wall = new PosterWall();
             FlatLocation startLocation = new FlatLocation(startFrame.getLocation(), startFrame.getFacing());
             FlatLocation endLocation = startLocation.clone().add(poster.getColumnCount(), poster.getRowCount());
 
             wall.loc1 = startLocation;
             wall.loc2 = endLocation;
 
-            if (!wall.isValid()) {
-                player.spigot().sendMessage(ChatMessageType.ACTION_BAR,
-                        TextComponent.fromLegacyText(I.t("{ce}There is not enough space to place this map ({0} × {1}).",
-                                poster.getColumnCount(), poster.getRowCount())));
-                return false;
-            }
+            wall.checkAsync().whenCompleteAsync((valid, throwable) -> {
+                if (throwable != null || !valid) {
+                    cancelPlacement(player, poster);
+                    return;
+                }
+                placeOnWall(wall, poster, placement);
+                placement.start();
+            }, ImageRendererExecutor.getMainThread());
+        }
 
-            int i = 0;
-            for (ItemFrame frame : wall.frames) {
+        return true;
+    }
 
-                int id = poster.getMapIdAtReverseY(i);
+    private static void placeOnSurface(PosterOnASurface surface, ItemFrame startFrame, BlockFace bf,
+                                       PosterMap poster, SplatterPlacement placement) {
+        int i = 0;
+        for (ItemFrame frame : surface.frames) {
+            int index = poster.getIndexAtReverseZ(i, startFrame.getFacing());
+            if (poster.isBlankAt(index)) {
+                i++;
+                continue;
+            }
+            Rotation rot = Rotation.NONE;
+            switch (frame.getFacing()) {
+                case UP:
+                    break;
+                case DOWN:
+                    rot = Rotation.FLIPPED;
+                    break;
+                default:
+                    //throw new IllegalStateException("Unexpected value: " + frame.getFacing());
+            }
+            //Rotation management relative to player rotation the default position is North,
+            // when on ceiling we flipped the rotation
+            if (i == 0) {
+                //First map need to be rotate one time CounterClockwise
+                rot = rot.rotateCounterClockwise();
+            }
 
-                RunTask.later(() -> {
-                    ItemStack item = new ItemStack(Material.FILLED_MAP);
-                    MapMeta meta = (MapMeta) item.getItemMeta();
-                    meta.setMapId(id);
-                    item.setItemMeta(meta);
+            switch (bf) {
+                case NORTH -> {
+                    if (frame.getFacing() == BlockFace.DOWN) {
+                        rot = rot.rotateClockwise();
+                        rot = rot.rotateClockwise();
+                    }
+                }
+                case EAST -> rot = rot.rotateClockwise();
+                case SOUTH -> {
+                    if (frame.getFacing() == BlockFace.UP) {
+                        rot = rot.rotateClockwise();
+                        rot = rot.rotateClockwise();
+                    }
+                }
+                case WEST -> rot = rot.rotateCounterClockwise();
+                default -> throw new IllegalStateException("Unexpected value: " + bf);
+            }
 
-                    frame.setItem(item);
-                }, 5L);
+            frame.setRotation(rot);
+            placement.add(frame, index);
+            i++;
+        }
+    }
 
+    private static void placeOnWall(PosterWall wall, PosterMap poster, SplatterPlacement placement) {
+        int i = 0;
+        for (ItemFrame frame : wall.frames) {
 
-                //Force reset of rotation
-                frame.setRotation(Rotation.NONE);
-                MapInitEvent.initMap(id);
+            int index = poster.getIndexAtReverseY(i);
+            if (poster.isBlankAt(index)) {
                 ++i;
+                continue;
             }
+
+            //Force reset of rotation
+            frame.setRotation(Rotation.NONE);
+            placement.add(frame, index);
+            ++i;
+        }
+    }
+
+    /**
+     * Tells the player the poster could not be placed, and gives the splatter map back.
+     */
+    @SuppressWarnings("deprecation")
+    private static void cancelPlacement(Player player, PosterMap poster) {
+        if (!player.isOnline()) {
+            SplatterPlacement.giveBackLater(player, poster);
+            return;
+        }
+
+        player.spigot().sendMessage(ChatMessageType.ACTION_BAR,
+                TextComponent.fromLegacyText(I.t("{ce}There is not enough space to place this map ({0} × {1}).",
+                        poster.getColumnCount(), poster.getRowCount())));
+
+        if (player.getGameMode() != GameMode.CREATIVE || !hasSplatterMap(player, poster)) {
+            poster.give(player);
         }
-        return true;
     }
 
     /**
@@ -328,20 +343,20 @@ public abstract class SplatterMapManager {
      * @return the {@link PosterMap}
      **/
     public static PosterMap removeSplatterMap(ItemFrame startFrame, Player player) {
-        final ImageMap map = MapManager.getMap(startFrame.getItem());
+        final MapItemInfo startInfo = MapItemInfo.of(startFrame.getItem());
+        final ImageMap map = MapManager.getMap(startInfo);
         if (!(map instanceof PosterMap poster)) {
             return null;
         }
         if (!poster.hasColumnData()) {
             return null;
         }
+        final int startMapID = MapManager.getCurrentMapID(startInfo);
         FlatLocation loc = new FlatLocation(startFrame.getLocation(), startFrame.getFacing());
         ItemFrame[] matchingFrames = switch (startFrame.getFacing()) {
-            case UP, DOWN -> PosterOnASurface.getMatchingMapFrames(poster, loc,
-                    MapManager.getMapIdFromItemStack(startFrame.getItem()),
+            case UP, DOWN -> PosterOnASurface.getMatchingMapFrames(poster, loc, startMapID,
                     WorldUtils.get4thOrientation(player.getLocation()));//startFrame.getFacing());
-            case NORTH, SOUTH, EAST, WEST -> PosterWall.getMatchingMapFrames(poster, loc,
-                    MapManager.getMapIdFromItemStack(startFrame.getItem()));
+            case NORTH, SOUTH, EAST, WEST -> PosterWall.getMatchingMapFrames(poster, loc, startMapID);
             default -> throw new IllegalStateException("Unexpected value: " + startFrame.getFacing());
         };
 
@@ -350,38 +365,74 @@ public abstract class SplatterMapManager {
         }
 
         PlayerInventory inv = player.getInventory();
+        final int[] mapsIDs = poster.getMapsIDs();
+
+        // Everything below is keyed by the index of the first part using a map, so
+        // that parts sharing a deduplicated map are accounted for together.
+        // missing[i] counts the parts still to be taken back, from the frames or
+        // from the inventory; collected holds the maps found at least once.
+        final int[] missing = new int[mapsIDs.length];
+        final BitSet needed = new BitSet(mapsIDs.length);
+        final BitSet collected = new BitSet(mapsIDs.length);
+
+        for (int mapId : mapsIDs) {
+            if (mapId != PosterMap.BLANK_MAP_ID) {
+                final int index = poster.indexOf(mapId);
+                missing[index]++;
+                needed.set(index);
+            }
+        }
 
-        List<Integer> maps = Arrays.stream(poster.getMapsIDs()).boxed().collect(Collectors.toList());
-
-        Map<Integer, Integer> invMapSlots = toMapIdSlotMap(player.getInventory());
-        invMapSlots.keySet().removeIf(Predicate.not(maps::contains));
-
-        Set<Integer> matchingFrameMapIds = Arrays.stream(matchingFrames)
-                .filter(Objects::nonNull)
-                .map(ItemFrame::getItem)
-                .filter(MapManager::managesMap)
-                .map(MapManager::getMapIdFromItemStack)
-                .collect(Collectors.toSet());
+        for (ItemFrame frame : matchingFrames) {
+            if (frame != null) {
+                final int index = indexOf(poster, frame.getItem());
+                if (index >= 0) {
+                    collected.set(index);
+                }
+            }
+        }
 
-        matchingFrameMapIds.addAll(invMapSlots.keySet());
+        final int[] invMapSlots = new int[mapsIDs.length];
+        Arrays.fill(invMapSlots, -1);
+        final ItemStack[] contents = inv.getContents();
+        for (int slot = 0; slot < contents.length; slot++) {
+            final int index = indexOf(poster, contents[slot]);
+            if (index >= 0) {
+                invMapSlots[index] = slot;
+                collected.set(index);
+            }
+        }
 
-        if (matchingFrameMapIds.containsAll(maps)) {
+        collected.and(needed);
+        if (collected.cardinality() == needed.cardinality()) {
             for (ItemFrame frame : matchingFrames) {
                 if (frame != null) {
-                    maps.remove(Integer.valueOf(MapManager.getMapIdFromItemStack(frame.getItem())));
+                    final int index = indexOf(poster, frame.getItem());
+                    if (index >= 0 && missing[index] > 0) {
+                        missing[index]--;
+                    }
                     frame.setItem(null);
+                    FrameRegistry.update(frame);
                 }
             }
 
-            for (int mapId : maps) {
-                int invMapSlot = invMapSlots.get(mapId);
+            for (int index = needed.nextSetBit(0); index >= 0; index = needed.nextSetBit(index + 1)) {
+                final int invMapSlot = invMapSlots[index];
+                if (missing[index] == 0 || invMapSlot < 0) {
+                    continue;
+                }
                 ItemStack invMap = inv.getItem(invMapSlot);
                 if (invMap == null) {
                     // will not reach.
                     continue;
                 }
-                invMap.setAmount(invMap.getAmount() - 1);
-                inv.setItem(invMapSlot, invMap);
+                final int amount = invMap.getAmount() - missing[index];
+                if (amount > 0) {
+                    invMap.setAmount(amount);
+                    inv.setItem(invMapSlot, invMap);
+                } else {
+                    inv.setItem(invMapSlot, null);
+                }
             }
 
             return poster;
@@ -393,22 +444,19 @@ public abstract class SplatterMapManager {
                         frame.getWorld().dropItemNaturally(frame.getLocation(), drop);
                     }
                     frame.setItem(null);
+                    FrameRegistry.update(frame);
                 }
             }
             return null;
         }
     }
 
-    private static Map<Integer, Integer> toMapIdSlotMap(Inventory inv) {
-        Map<Integer /* :mapId */, Integer /* :slot */> invMapSlots = new HashMap<>();
-        for (int slot = 0; slot < inv.getSize(); slot++) {
-            ItemStack invItem = inv.getItem(slot);
-            if (!MapManager.managesMap(invItem)) {
-                continue;
-            }
-            int id = MapManager.getMapIdFromItemStack(invItem);
-            invMapSlots.put(id, slot);
-        }
-        return invMapSlots;
+    /**
+     * @return The index of the first part of the poster using the map held by this
+     *     item, or -1 if the item is not one of the poster's maps.
+     */
+    private static int indexOf(PosterMap poster, ItemStack item) {
+        final MapItemInfo info = MapItemInfo.of(item);
+        return info.isPartOf(poster) ? poster.indexOf(MapManager.getCurrentMapID(info)) : -1;
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.MapInitEvent;
+import fr.moribus.imageonmap.map.MapItemInfo;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.zcraft.quartzlib.tools.runners.RunTask;
+import java.util.ArrayList;
+import java.util.List;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.MapMeta;
+
+/**
+ * Puts the maps of a splatter poster in its item frames, a batch at a time within the
+ * main thread budget, so that large posters do not slow the server down.
+ *
+ * <p>The poster is placed entirely or not at all: before each batch, its frames are
+ * checked, and if one of them was broken or got an item in the meantime, the maps
+ * already placed are removed and the splatter map is given back to the player.</p>
+ */
+final class SplatterPlacement {
+    /**
+     * The first maps are placed once the interaction with the first frame is over.
+     */
+    private static final long PLACEMENT_DELAY = 5L;
+    private static final int BATCH_SIZE = 16;
+
+    private final Player player;
+    private final PosterMap poster;
+
+    private final List<ItemFrame> frames = new ArrayList<>();
+    private final List<Integer> indexes = new ArrayList<>();
+    private int placedCount = 0;
+
+    SplatterPlacement(Player player, PosterMap poster) {
+        this.player = player;
+        this.poster = poster;
+    }
+
+    /**
+     * Adds a frame to fill.
+     *
+     * @param frame The frame.
+     * @param index The index of the part of the poster to put in it.
+     */
+    void add(ItemFrame frame, int index) {
+        frames.add(frame);
+        indexes.add(index);
+    }
+
+    /**
+     * Starts placing the maps.
+     */
+    void start() {
+        RunTask.later(() -> {
+            if (isValid(0, frames.size())) {
+                RunTask.budgeted(this::placeBatch);
+            } else {
+                rollback();
+            }
+        }, PLACEMENT_DELAY);
+    }
+
+    private void placeBatch() {
+        final int end = Math.min(placedCount + BATCH_SIZE, frames.size());
+        if (!isValid(placedCount, end)) {
+            rollback();
+            return;
+        }
+
+        for (int i = placedCount; i < end; i++) {
+            ItemFrame frame = frames.get(i);
+            frame.setItem(createFrameItem(poster, indexes.get(i)));
+            FrameRegistry.update(frame);
+        }
+        placedCount = end;
+
+        if (placedCount < frames.size()) {
+            RunTask.budgeted(this::placeBatch);
+        }
+    }
+
+    /**
+     * @return {@code true} if the frames are still there and empty. Any item put in them
+     *     meanwhile, even a map of this poster, belongs to someone and must not be replaced.
+     */
+    private boolean isValid(int start, int end) {
+        for (int i = start; i < end; i++) {
+            ItemFrame frame = frames.get(i);
+            if (!frame.isValid() || frame.getItem().getType() != Material.AIR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the maps placed so far from their frames, and gives the splatter map back.
+     * Only the frames still holding the map put there by this placement are emptied.
+     */
+    private void rollback() {
+        for (int i = 0; i < placedCount; i++) {
+            ItemFrame frame = frames.get(i);
+            if (!frame.isValid()) {
+                continue;
+            }
+
+            MapItemInfo info = MapItemInfo.of(frame.getItem());
+            if (info.isPartOf(poster) && info.getPartIndex() == indexes.get(i)) {
+                frame.setItem(null);
+                FrameRegistry.update(frame);
+            }
+        }
+
+        if (!player.isOnline()) {
+            giveBackLater(player, poster);
+            return;
+        }
+
+        player.sendActionBar(Component.text(
+                I.t("The poster was not placed, as some of its item frames changed."), NamedTextColor.RED));
+
+        if (player.getGameMode() != GameMode.CREATIVE || !SplatterMapManager.hasSplatterMap(player, poster)) {
+            poster.give(player);
+        }
+    }
+
+    /**
+     * Keeps the splatter map of a player who left for their next login. Players in creative
+     * mode did not lose it while placing it.
+     */
+    static void giveBackLater(Player player, PosterMap poster) {
+        if (player.getGameMode() != GameMode.CREATIVE) {
+            MapOverflowStore.addSplatterMap(player.getUniqueId(), poster);
+        }
+    }
+
+    /**
+     * @return A bare item of the given part, to put in a frame, its map being ready to be displayed.
+     */
+    @SuppressWarnings("deprecation")
+    static ItemStack createFrameItem(PosterMap poster, int index) {
+        final int mapID = poster.getMapIdAt(index);
+        MapInitEvent.initMap(mapID);
+
+        ItemStack item = new ItemStack(Material.FILLED_MAP);
+        MapMeta meta = (MapMeta) item.getItemMeta();
+        meta.setMapId(mapID);
+        MapItemInfo.setPart(meta, poster, index);
+        item.setItemMeta(meta);
+        return item;
+    }
+}
@@ -31,8 +31,16 @@
 package fr.zcraft.quartzlib.tools.runners;
 
 import fr.moribus.imageonmap.ImageOnMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
 
 
 /**
@@ -41,6 +49,16 @@ import org.bukkit.scheduler.BukkitScheduler;
 public final class RunTask {
     private static final BukkitScheduler scheduler = Bukkit.getScheduler();
 
+    private static final Queue<Runnable> budgetedTasks = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean budgetedTasksRunner = new AtomicBoolean(false);
+    private static volatile long tickBudget = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static long executedTasks = 0;
+    private static long deferredTicks = 0;
+    private static long overrunTicks = 0;
+    private static long longestOverrun = 0;
+    private static boolean backlogged = false;
+
     private RunTask() {
     }
 
@@ -62,4 +80,122 @@ public final class RunTask {
     public static void later(Runnable runnable, long delay) {
         scheduler.runTaskLater(ImageOnMap.getPlugin(), runnable, delay);
     }
+
+    /**
+     * Returns a task that will run repeatedly, until cancelled.
+     *
+     * @param runnable The task to be run.
+     * @param delay    The ticks to wait before running the task for the first time.
+     * @param period   The ticks to wait between two runs.
+     * @return The task, to cancel it.
+     */
+    public static BukkitTask timer(Runnable runnable, long delay, long period) {
+        return scheduler.runTaskTimer(ImageOnMap.getPlugin(), runnable, delay, period);
+    }
+
+    /**
+     * Runs a task on the main thread, as soon as possible without spending more than the
+     * {@link #setTickBudget(long) tick budget} on such tasks per tick. Large batches of work
+     * are thus spread over several ticks. Tasks run in the order they were added.
+     * Can be called from any thread.
+     *
+     * @param runnable The task to be run.
+     */
+    public static void budgeted(Runnable runnable) {
+        budgetedTasks.add(runnable);
+
+        // The runner is started once; it costs nothing while there is nothing to run.
+        if (budgetedTasksRunner.compareAndSet(false, true)) {
+            scheduler.runTaskTimer(ImageOnMap.getPlugin(), RunTask::runBudgetedTasks, 0L, 1L);
+        }
+    }
+
+    /**
+     * @return An executor running its tasks like {@link #budgeted(Runnable)}.
+     */
+    public static Executor budgetedExecutor() {
+        return RunTask::budgeted;
+    }
+
+    /**
+     * @param nanoseconds The time which can be spent per tick on budgeted tasks, in nanoseconds.
+     *                    At least one task runs per tick, whatever its duration.
+     */
+    public static void setTickBudget(long nanoseconds) {
+        tickBudget = Math.max(nanoseconds, 0);
+    }
+
+    /**
+     * @return The time which can be spent per tick on budgeted tasks, in nanoseconds.
+     */
+    public static long getTickBudget() {
+        return tickBudget;
+    }
+
+    /**
+     * @return Statistics about the budgeted tasks since the server started. Main thread only.
+     */
+    public static BudgetStats getBudgetStats() {
+        return new BudgetStats(executedTasks, budgetedTasks.size(), deferredTicks, overrunTicks, longestOverrun);
+    }
+
+    private static void runBudgetedTasks() {
+        final long start = System.nanoTime();
+        final long budget = tickBudget;
+        long elapsed = 0;
+
+        Runnable task;
+        while ((elapsed == 0 || elapsed < budget) && (task = budgetedTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                ImageOnMap.getPlugin().getLogger().log(Level.SEVERE, "Error while running a budgeted task", t);
+            }
+            executedTasks++;
+            elapsed = Math.max(System.nanoTime() - start, 1);
+        }
+
+        if (elapsed > budget) {
+            overrunTicks++;
+            longestOverrun = Math.max(longestOverrun, elapsed - budget);
+        }
+
+        if (!budgetedTasks.isEmpty()) {
+            deferredTicks++;
+            backlogged = true;
+        } else if (backlogged) {
+            backlogged = false;
+            logBudgetStats();
+        }
+    }
+
+    /**
+     * Logs the statistics at the FINE level, each time tasks which had to wait for
+     * the next ticks are all done, so that the budget can be tuned.
+     */
+    private static void logBudgetStats() {
+        final Logger logger = ImageOnMap.getPlugin().getLogger();
+        if (!logger.isLoggable(Level.FINE)) {
+            return;
+        }
+
+        final BudgetStats stats = getBudgetStats();
+        logger.fine(String.format("Budgeted tasks: %d run, %d deferred ticks, %d overrun ticks,"
+                        + " longest overrun %.2f ms (budget %.2f ms)",
+                stats.executedTasks(), stats.deferredTicks(), stats.overrunTicks(),
+                stats.longestOverrun() / 1e6, tickBudget / 1e6));
+    }
+
+    /**
+     * Statistics about the budgeted tasks.
+     *
+     * @param executedTasks  The number of tasks run.
+     * @param pendingTasks   The number of tasks waiting to be run.
+     * @param deferredTicks  The number of ticks after which some tasks had to wait for the next tick.
+     * @param overrunTicks   The number of ticks during which the budget was exceeded, by a long task.
+     * @param longestOverrun The longest time the budget was exceeded by, in nanoseconds.
+     */
+    public record BudgetStats(long executedTasks, int pendingTasks, long deferredTicks, long overrunTicks,
+                              long longestOverrun) {
+    }
 }